@@ -0,0 +1,67 @@
+package org.terrier.querying;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+import org.terrier.structures.Index;
+
+/**
+ * Common configuration of the benchmarks: a synthetic index, and the first-pass results of a set of
+ * random queries, which the benchmark methods cycle through. Run with the GC profiler (as
+ * {@link BenchmarkRunner} does) to report the allocation per operation along with the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public abstract class AbstractPrfBenchmark
+{
+	@Param("20000")
+	public int numberOfDocuments;
+
+	@Param("50000")
+	public int vocabularySize;
+
+	@Param("1.0")
+	public double zipfExponent;
+
+	@Param("250")
+	public double meanLength;
+
+	@Param("10")
+	public int fbDocs;
+
+	@Param("50")
+	public int numberOfQueries;
+
+	protected Index index;
+	protected Request[] requests;
+	protected int next = 0;
+
+	protected void setupIndex() throws Exception
+	{
+		index = SyntheticIndex.get(numberOfDocuments, vocabularySize, zipfExponent, meanLength, 42);
+		requests = SyntheticIndex.firstPass(index, numberOfQueries, 42);
+	}
+
+	/** Returns the position of the next query to use. */
+	protected int nextQuery()
+	{
+		final int q = next;
+		next = (next + 1) % numberOfQueries;
+		return q;
+	}
+
+	/** Returns the docids of the top documents of a first-pass result set. */
+	protected int[] feedbackDocids(final Request rq)
+	{
+		return java.util.Arrays.copyOf(rq.getResultSet().getDocids(), Math.min(fbDocs, rq.getResultSet().getResultSize()));
+	}
+}
@@ -0,0 +1,91 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.terrier.querying.parser.SingleTermQuery;
+import org.terrier.utility.ApplicationSetup;
+
+import gnu.trove.TIntHashSet;
+
+/**
+ * Benchmarks the co-occurrence counting of AxiomaticQE over the feedback and random documents of a query,
+ * for both {@link CooccurrenceCounter} implementations, the computation of the mutual information and
+ * selection of the expansion terms, and the end-to-end computation of the expansion terms of a query.
+ */
+@State(Scope.Benchmark)
+public class AxiomaticBenchmark extends AbstractPrfBenchmark
+{
+	@Param({"dense", "bitset"})
+	public String cooccurrence;
+
+	@Param("1000")
+	public int K;
+
+	@Param("10")
+	public int R;
+
+	@Param("20")
+	public int M;
+
+	AxiomaticQE ax;
+	int[][] docids;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		setupIndex();
+		ApplicationSetup.setProperty("ax.K", String.valueOf(K));
+		ApplicationSetup.setProperty("ax.R", String.valueOf(R));
+		ApplicationSetup.setProperty("ax.cooccurrence", cooccurrence);
+		ax = new AxiomaticQE();
+		ax.configureIndex(index);
+
+		// the feedback documents, and R times as many random documents, as AxiomaticQE samples them
+		final Random r = new Random(42);
+		docids = new int[numberOfQueries][];
+		for (int q = 0; q < numberOfQueries; q++) {
+			final TIntHashSet sample = new TIntHashSet(feedbackDocids(requests[q]));
+			final int size = sample.size() * (R + 1);
+			while (sample.size() < size)
+				sample.add(r.nextInt(index.getCollectionStatistics().getNumberOfDocuments()));
+			docids[q] = sample.toArray();
+		}
+	}
+
+	protected AxiomaticQE.AxiomaticExpansionTerms newExpansionTerms(final int q) throws IOException
+	{
+		final AxiomaticQE.AxiomaticExpansionTerms terms = ax.new AxiomaticExpansionTerms();
+		for (int docid : docids[q])
+			terms.insertDocument(new FeedbackDocument(docid, 0, 0f));
+		terms.setOriginalQueryTerms(requests[q].getMatchingQueryTerms());
+		return terms;
+	}
+
+	@Benchmark
+	public CooccurrenceCounter analyseDocuments() throws IOException
+	{
+		final int q = nextQuery();
+		final AxiomaticQE.AxiomaticExpansionTerms terms = newExpansionTerms(q);
+		terms.analyseDocuments(docids[q].clone());
+		return terms.counter;
+	}
+
+	@Benchmark
+	public SingleTermQuery[] getExpandedTerms() throws IOException
+	{
+		return newExpansionTerms(nextQuery()).getExpandedTerms(M);
+	}
+
+	@Benchmark
+	public SingleTermQuery[] expandQuery() throws IOException
+	{
+		final Request rq = requests[nextQuery()];
+		return ax.getExpandedTerms(rq.getMatchingQueryTerms(), rq, M, new PrfMetrics(null), ExpansionDeadline.NONE);
+	}
+}
@@ -0,0 +1,67 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the RM3 expansion of a whole set of queries, one query at a time and through {@link RM1#expandAll(List)},
+ * with a fraction of the expansions already in the {@link ExpansionCache}. Each operation expands all the queries,
+ * so the throughput in queries per second is that of the benchmark times the number of queries.
+ */
+@State(Scope.Benchmark)
+public class BatchExpansionBenchmark extends AbstractPrfBenchmark
+{
+	@Param("50")
+	public int fbTerms;
+
+	/** memory budget of the document vector cache, 0 to decode the feedback documents every time */
+	@Param({"0", "67108864"})
+	public long vectorCacheBytes;
+
+	/** fraction of the queries whose expansion is cached; the others bypass the cache */
+	@Param({"0", "0.5", "0.9"})
+	public double cachedFraction;
+
+	RM3 rm3;
+	List<Request> batch;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		setupIndex();
+		DocumentVectorCache.CACHES.put(index, new DocumentVectorCache(index, vectorCacheBytes));
+		ExpansionCache.instance = new ExpansionCache(numberOfQueries, null);
+		ExpansionCache.initialised = true;
+		rm3 = new RM3(fbTerms, fbDocs, index);
+		batch = new ArrayList<>(Arrays.asList(requests));
+		for (int q = 0; q < numberOfQueries; q++) {
+			if (q < cachedFraction * numberOfQueries)
+				rm3.expand(requests[q]);
+			else
+				requests[q].setControl("prf.expansioncache.bypass", "on");
+		}
+	}
+
+	@Benchmark
+	public List<List<RM1.ExpansionTerm>> expandEach() throws IOException
+	{
+		final List<List<RM1.ExpansionTerm>> rtr = new ArrayList<>(numberOfQueries);
+		for (Request rq : requests)
+			rtr.add(rm3.expand(rq));
+		return rtr;
+	}
+
+	@Benchmark
+	public List<List<RM1.ExpansionTerm>> expandAll() throws IOException
+	{
+		return rm3.expandAll(batch);
+	}
+}
@@ -0,0 +1,22 @@
+package org.terrier.querying;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation per operation (<tt>gc.alloc.rate.norm</tt>)
+ * is reported along with the throughput. Any JMH command-line option can be passed, e.g. a regular expression
+ * of the benchmarks to run, or <tt>-p cooccurrence=bitset</tt>.
+ */
+public class BenchmarkRunner
+{
+	public static void main(String[] args) throws Exception
+	{
+		new Runner(new OptionsBuilder()
+			.parent(new CommandLineOptions(args))
+			.addProfiler(GCProfiler.class)
+			.build()).run();
+	}
+}
@@ -0,0 +1,87 @@
+package org.terrier.querying;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.terrier.structures.EntryStatistics;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+
+/**
+ * Benchmarks the counting of the co-occurrences with the query terms over the feedback and R times as many random
+ * documents of a query, decoded beforehand, for the hash maps of AxiomaticQE before {@link CooccurrenceCounter}
+ * (<tt>hashmap</tt>, see {@link HashMapCooccurrenceCounter}) and both <tt>ax.cooccurrence</tt> engines.
+ * Each operation counts the sample of one query.
+ */
+@State(Scope.Benchmark)
+public class CooccurrenceBenchmark extends AbstractPrfBenchmark
+{
+	@Param({"hashmap", "dense", "bitset"})
+	public String cooccurrence;
+
+	@Param("10")
+	public int R;
+
+	int[][] queryTerms;
+	// query -> document of its sample -> termids of the document, by increasing termid
+	int[][][] documents;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		setupIndex();
+		final Random r = new Random(42);
+		queryTerms = new int[numberOfQueries][];
+		documents = new int[numberOfQueries][][];
+		for (int q = 0; q < numberOfQueries; q++) {
+			final MatchingQueryTerms mqt = requests[q].getMatchingQueryTerms();
+			final TIntArrayList termids = new TIntArrayList();
+			for (String term : mqt.getTerms()) {
+				final EntryStatistics stats = mqt.getStatistics(term);
+				if (stats != null)
+					termids.add(stats.getTermId());
+			}
+			queryTerms[q] = termids.toNativeArray();
+
+			final TIntHashSet sample = new TIntHashSet(feedbackDocids(requests[q]));
+			final int size = sample.size() * (R + 1);
+			while (sample.size() < size)
+				sample.add(r.nextInt(index.getCollectionStatistics().getNumberOfDocuments()));
+			final DocumentVector[] dvs = DocumentVectorCache.of(index).getAll(sample.toArray());
+			documents[q] = new int[dvs.length][];
+			for (int d = 0; d < dvs.length; d++)
+				documents[q][d] = dvs[d].getTermIds();
+		}
+	}
+
+	@Benchmark
+	public Object count()
+	{
+		final int q = nextQuery();
+		switch (cooccurrence) {
+			case "hashmap": {
+				final HashMapCooccurrenceCounter counter = new HashMapCooccurrenceCounter(queryTerms[q]);
+				for (int[] terms : documents[q])
+					counter.addDocument(terms);
+				return counter;
+			}
+			case "dense": {
+				final CooccurrenceCounter counter = new CooccurrenceCounter.DenseCooccurrenceCounter(queryTerms[q]);
+				for (int[] terms : documents[q])
+					counter.addDocument(terms);
+				return counter;
+			}
+			default: {
+				final CooccurrenceCounter counter = new CooccurrenceCounter.BitsetCooccurrenceCounter(queryTerms[q], documents[q].length);
+				for (int[] terms : documents[q])
+					counter.addDocument(terms);
+				return counter;
+			}
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the decoding of the direct index postings of the feedback documents of a query, without
+ * and with the {@link DocumentVectorCache}, and their conversion into RM1 feedback documents.
+ */
+@State(Scope.Benchmark)
+public class DecodingBenchmark extends AbstractPrfBenchmark
+{
+	int[][] docids;
+	CandidateTermFilter filter;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		setupIndex();
+		docids = new int[numberOfQueries][];
+		for (int q = 0; q < numberOfQueries; q++)
+			docids[q] = feedbackDocids(requests[q]);
+		filter = CandidateTermFilter.of(index);
+	}
+
+	@Benchmark
+	public void decode(Blackhole bh) throws IOException
+	{
+		for (int docid : docids[nextQuery()])
+			bh.consume(DocumentVector.read(index, docid));
+	}
+
+	@Benchmark
+	public DocumentVector[] decodeCached() throws IOException
+	{
+		return DocumentVectorCache.of(index).getAll(docids[nextQuery()]);
+	}
+
+	@Benchmark
+	public void feedbackDocuments(Blackhole bh) throws IOException
+	{
+		for (DocumentVector dv : DocumentVectorCache.of(index).getAll(docids[nextQuery()]))
+			bh.consume(new RM1.FeedbackDocument(dv, 1.0d, filter));
+	}
+}
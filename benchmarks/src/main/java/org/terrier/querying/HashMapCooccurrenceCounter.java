@@ -0,0 +1,63 @@
+package org.terrier.querying;
+
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIntHashMap;
+import gnu.trove.TLongIntHashMap;
+
+/**
+ * The co-occurrence counting of AxiomaticQE before {@link CooccurrenceCounter}, kept as the baseline of
+ * {@link CooccurrenceBenchmark}: the document frequency of each term in a hash map, and the joint document
+ * frequency of each pair of terms involving a query term in another hash map, keyed by both termids.
+ */
+public class HashMapCooccurrenceCounter
+{
+	final TIntHashSet queryTerms;
+	final TLongIntHashMap pairCount = new TLongIntHashMap();
+	final TIntIntHashMap singleCounts = new TIntIntHashMap();
+
+	public HashMapCooccurrenceCounter(final int[] queryTerms)
+	{
+		this.queryTerms = new TIntHashSet(queryTerms);
+	}
+
+	/** Counts the terms of a document, given by increasing termid, and their pairs involving a query term. */
+	public void addDocument(final int[] terms)
+	{
+		for (int term : terms)
+			singleCounts.adjustOrPutValue(term, 1, 1);
+		for (int term1 : terms) {
+			for (int term2 : terms) {
+				if (term2 <= term1)
+					continue;
+				//we only count pairs that involve an original query term
+				if (queryTerms.contains(term1) || queryTerms.contains(term2))
+				{
+					// use a long to encode both of the termids
+					pairCount.adjustOrPutValue((((long) term1) << 32) | (term2 & 0xffffffffL), 1, 1);
+				}
+			}
+		}
+	}
+
+	public int getDocumentFrequencyOfTerm(final int termid)
+	{
+		return singleCounts.get(termid);
+	}
+
+	public int getJointDocumentFrequencyOfTerms(final int termid1, final int termid2)
+	{
+		final int term1 = Math.min(termid1, termid2);
+		final int term2 = Math.max(termid1, termid2);
+		return pairCount.get((((long) term1) << 32) | (term2 & 0xffffffffL));
+	}
+
+	public int getNumberOfTerms()
+	{
+		return singleCounts.size();
+	}
+
+	public long getNumberOfPairs()
+	{
+		return pairCount.size();
+	}
+}
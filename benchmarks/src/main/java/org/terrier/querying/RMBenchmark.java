@@ -0,0 +1,76 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import it.unimi.dsi.fastutil.ints.Int2FloatMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+
+/**
+ * Benchmarks the stages of RM1 on already decoded feedback documents, and the end-to-end RM3 expansion
+ * of a query, including the decoding of its feedback documents if they are not cached.
+ */
+@State(Scope.Benchmark)
+public class RMBenchmark extends AbstractPrfBenchmark
+{
+	@Param("50")
+	public int fbTerms;
+
+	/** memory budget of the document vector cache used by expandRM3, 0 to decode the feedback documents every time */
+	@Param({"0", "67108864"})
+	public long vectorCacheBytes;
+
+	RM1 rm1;
+	RM3 rm3;
+	RM1.ExpansionContext[] contexts;
+	Int2FloatMap[] feedbackTermScores;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		setupIndex();
+		DocumentVectorCache.CACHES.put(index, new DocumentVectorCache(index, vectorCacheBytes));
+		rm1 = new RM1(fbTerms, fbDocs, index);
+		rm3 = new RM3(fbTerms, fbDocs, index);
+		contexts = new RM1.ExpansionContext[numberOfQueries];
+		feedbackTermScores = new Int2FloatMap[numberOfQueries];
+		for (int q = 0; q < numberOfQueries; q++) {
+			contexts[q] = rm1.newContext(requests[q], requests[q].getMatchingQueryTerms());
+			rm1.retrieveTopDocuments(contexts[q], requests[q].getResultSet());
+			rm1.computeFeedbackTermScores(contexts[q]);
+			feedbackTermScores[q] = contexts[q].feedbackTermScores;
+		}
+	}
+
+	@Benchmark
+	public Int2FloatMap computeFeedbackTermScores()
+	{
+		final RM1.ExpansionContext ctx = contexts[nextQuery()];
+		ctx.feedbackTermScores = new Int2FloatOpenHashMap();
+		rm1.computeFeedbackTermScores(ctx);
+		return ctx.feedbackTermScores;
+	}
+
+	@Benchmark
+	public Int2FloatMap clipTerms()
+	{
+		final int q = nextQuery();
+		final RM1.ExpansionContext ctx = contexts[q];
+		// clipTerms replaces, rather than modifies, the scores of the context
+		ctx.feedbackTermScores = feedbackTermScores[q];
+		rm1.clipTerms(ctx);
+		return ctx.feedbackTermScores;
+	}
+
+	@Benchmark
+	public List<RM1.ExpansionTerm> expandRM3() throws IOException
+	{
+		return rm3.expand(requests[nextQuery()]);
+	}
+}
@@ -0,0 +1,142 @@
+package org.terrier.querying;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.indexing.IndexTestUtils;
+import org.terrier.structures.Index;
+import org.terrier.utility.ApplicationSetup;
+
+/**
+ * Generates and indexes a synthetic collection for the benchmarks. Terms are drawn from a Zipfian
+ * distribution over the vocabulary, and document lengths from a log-normal distribution, which gives
+ * realistic posting list and direct index sizes. Indices are built once per JVM for each configuration.
+ */
+public class SyntheticIndex
+{
+	protected static Logger logger = LoggerFactory.getLogger(SyntheticIndex.class);
+
+	static final Map<String, Index> INDICES = new HashMap<>();
+
+	/**
+	 * Returns a synthetic index, building it if necessary.
+	 *
+	 * @param numberOfDocuments the number of documents
+	 * @param vocabularySize the number of distinct terms that can be drawn
+	 * @param zipfExponent the exponent of the Zipfian term distribution, typically close to 1
+	 * @param meanLength the mean number of tokens of a document
+	 * @param seed the seed of the generator
+	 * @return the index
+	 *
+	 * @throws Exception if the index cannot be built
+	 */
+	public static synchronized Index get(final int numberOfDocuments, final int vocabularySize, final double zipfExponent,
+		final double meanLength, final long seed) throws Exception
+	{
+		final String key = numberOfDocuments + "/" + vocabularySize + "/" + zipfExponent + "/" + meanLength + "/" + seed;
+		Index index = INDICES.get(key);
+		if (index == null) {
+			index = build(numberOfDocuments, vocabularySize, zipfExponent, meanLength, seed);
+			INDICES.put(key, index);
+		}
+		return index;
+	}
+
+	protected static Index build(final int numberOfDocuments, final int vocabularySize, final double zipfExponent,
+		final double meanLength, final long seed) throws Exception
+	{
+		final long start = System.currentTimeMillis();
+		// must be set before ApplicationSetup is first used
+		final String home = Files.createTempDirectory("terrier-prf-bench").toString();
+		System.setProperty("terrier.home", home);
+		System.setProperty("terrier.etc", home);
+		System.setProperty("terrier.index.path", home);
+		// the synthetic terms need neither stopword removal nor stemming
+		ApplicationSetup.setProperty("termpipelines", "");
+
+		// cumulative Zipfian distribution over the term ranks
+		final double[] cdf = new double[vocabularySize];
+		double sum = 0;
+		for (int rank = 0; rank < vocabularySize; rank++) {
+			sum += 1.0d / Math.pow(rank + 1, zipfExponent);
+			cdf[rank] = sum;
+		}
+
+		// log-normal document lengths with the requested mean
+		final double sigma = 0.8d;
+		final double mu = Math.log(meanLength) - sigma * sigma / 2;
+		final Random r = new Random(seed);
+		final String[] docnos = new String[numberOfDocuments];
+		final String[] documents = new String[numberOfDocuments];
+		final StringBuilder text = new StringBuilder();
+		for (int d = 0; d < numberOfDocuments; d++) {
+			text.setLength(0);
+			final int length = Math.max(1, (int) Math.round(Math.exp(mu + sigma * r.nextGaussian())));
+			for (int i = 0; i < length; i++) {
+				int rank = Arrays.binarySearch(cdf, r.nextDouble() * sum);
+				if (rank < 0)
+					rank = -rank - 1;
+				text.append(term(Math.min(rank, vocabularySize - 1))).append(' ');
+			}
+			docnos[d] = "doc" + d;
+			documents[d] = text.toString();
+		}
+		final Index index = IndexTestUtils.makeIndex(docnos, documents);
+		logger.info("Built synthetic index of " + numberOfDocuments + " documents, vocabulary " + vocabularySize + ", zipf "
+			+ zipfExponent + ", mean length " + meanLength + " in " + (System.currentTimeMillis() - start) + "ms: "
+			+ index.getCollectionStatistics());
+		return index;
+	}
+
+	/** Returns the term of a rank, written with letters only, as the tokeniser drops terms with many digits. */
+	static String term(int rank)
+	{
+		final StringBuilder term = new StringBuilder("t");
+		do {
+			term.append((char) ('a' + rank % 26));
+			rank /= 26;
+		} while (rank > 0);
+		return term.toString();
+	}
+
+	/**
+	 * Runs the first-pass retrieval of random queries, as needed before expanding them.
+	 *
+	 * @param index the index
+	 * @param numberOfQueries the number of queries
+	 * @param seed the seed of the queries
+	 * @return the requests, with their result sets
+	 */
+	public static Request[] firstPass(final Index index, final int numberOfQueries, final long seed)
+	{
+		final Manager manager = ManagerFactory._from_(index.getIndexRef());
+		final Random r = new Random(seed);
+		final Request[] requests = new Request[numberOfQueries];
+		for (int i = 0; i < numberOfQueries; i++) {
+			requests[i] = (Request) manager.newSearchRequest("q" + i, query(r, 3));
+			manager.runSearchRequest(requests[i]);
+		}
+		return requests;
+	}
+
+	/**
+	 * Returns a query made of terms of mid-range frequency, i.e. neither stopword-like nor too rare
+	 * to retrieve feedback documents.
+	 *
+	 * @param r the random generator
+	 * @param numberOfTerms the number of query terms
+	 * @return the query
+	 */
+	public static String query(final Random r, final int numberOfTerms)
+	{
+		final StringBuilder query = new StringBuilder();
+		for (int i = 0; i < numberOfTerms; i++)
+			query.append(term(50 + r.nextInt(2000))).append(' ');
+		return query.toString().trim();
+	}
+}
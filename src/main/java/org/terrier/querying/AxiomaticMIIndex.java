@@ -0,0 +1,183 @@
+package org.terrier.querying;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+
+import lombok.Getter;
+
+/**
+ * This class provides read access to an offline term co-occurrence index for {@link AxiomaticQE}, as built by
+ * {@link AxiomaticMIIndexBuilder}. For each term, the index records the top related terms, ranked by their mutual
+ * information with that term, together with their document frequency. The file is memory-mapped and named
+ * <tt>prefix.axmi</tt>, next to the other files of the index. Its layout is:
+ * <ul>
+ * <li>a header of 5 ints: magic number, version, number of terms, maximum number of related terms per term, number of sampled documents</li>
+ * <li>numberOfTerms + 1 longs: the offset of the first related term entry of each term</li>
+ * <li>the related term entries, each made of an int termid, a float mutual information and an int document frequency</li>
+ * </ul>
+ */
+public class AxiomaticMIIndex
+{
+	protected static Logger logger = LoggerFactory.getLogger(AxiomaticMIIndex.class);
+
+	static final int MAGIC = 0x41584d49;
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 5 * Integer.BYTES;
+	static final int ENTRY_BYTES = 3 * Integer.BYTES;
+	static final String EXTENSION = ".axmi";
+	// the file is mapped in segments, each overlapping the next by a long, so that no value straddles two segments
+	static final long SEGMENT_BYTES = 1L << 30;
+
+	static final Map<Index, AxiomaticMIIndex> INDICES = Collections.synchronizedMap(new WeakHashMap<>());
+	// the indices for which no co-occurrence index was found
+	static final Map<Index, Boolean> MISSING = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * Returns the filename of the co-occurrence index of an index.
+	 *
+	 * @param index the index
+	 * @return the path of the co-occurrence index file
+	 */
+	public static String getFilename(final IndexOnDisk index)
+	{
+		return index.getPath() + File.separator + index.getPrefix() + EXTENSION;
+	}
+
+	/**
+	 * Returns the co-occurrence index of the specified index, opening it if necessary.
+	 *
+	 * @param index the index
+	 * @return the co-occurrence index, or null if the index is not on disk or has no co-occurrence index
+	 *
+	 * @throws IOException if there are problems in reading the co-occurrence index
+	 */
+	public static AxiomaticMIIndex of(final Index index) throws IOException
+	{
+		synchronized (INDICES) {
+			AxiomaticMIIndex miIndex = INDICES.get(index);
+			if (miIndex != null)
+				return miIndex;
+			// only the indices found are kept, so that a co-occurrence index built later is used, but the warning is only logged once
+			if (! (index instanceof IndexOnDisk)) {
+				if (MISSING.put(index, Boolean.TRUE) == null)
+					logger.warn("No co-occurrence index can be used for index " + index + ", as it is not on disk");
+				return null;
+			}
+			if (! new File(getFilename((IndexOnDisk) index)).exists()) {
+				if (MISSING.put(index, Boolean.TRUE) == null)
+					logger.warn("No co-occurrence index found at " + getFilename((IndexOnDisk) index) + ", see AxiomaticMIIndexBuilder");
+				return null;
+			}
+			miIndex = new AxiomaticMIIndex(getFilename((IndexOnDisk) index));
+			INDICES.put(index, miIndex);
+			MISSING.remove(index);
+			return miIndex;
+		}
+	}
+
+	protected final MappedByteBuffer[] segments;
+	protected final long segmentBytes;
+	@Getter protected final int numberOfTerms;
+	@Getter protected final int maxRelatedTerms;
+	@Getter protected final int numberOfSampledDocuments;
+	protected final long entriesOffset;
+
+	public AxiomaticMIIndex(final String filename) throws IOException
+	{
+		this(filename, SEGMENT_BYTES);
+	}
+
+	AxiomaticMIIndex(final String filename, final long segmentBytes) throws IOException
+	{
+		this.segmentBytes = segmentBytes;
+		try (RandomAccessFile raf = new RandomAccessFile(filename, "r"); FileChannel channel = raf.getChannel()) {
+			final long size = channel.size();
+			if (size < HEADER_BYTES)
+				throw new IOException(filename + " is not a co-occurrence index of version " + VERSION);
+			this.segments = new MappedByteBuffer[(int) Math.max(1, (size + segmentBytes - 1) / segmentBytes)];
+			for (int s = 0; s < segments.length; s++) {
+				final long start = s * segmentBytes;
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, segmentBytes + Long.BYTES));
+			}
+		}
+		if (getInt(0) != MAGIC || getInt(Integer.BYTES) != VERSION)
+			throw new IOException(filename + " is not a co-occurrence index of version " + VERSION);
+		this.numberOfTerms = getInt(2 * Integer.BYTES);
+		this.maxRelatedTerms = getInt(3 * Integer.BYTES);
+		this.numberOfSampledDocuments = getInt(4 * Integer.BYTES);
+		this.entriesOffset = HEADER_BYTES + (long) Long.BYTES * (numberOfTerms + 1);
+		logger.info("Opened co-occurrence index " + filename + " with up to " + maxRelatedTerms + " related terms for each of "
+			+ numberOfTerms + " terms, computed over " + numberOfSampledDocuments + " documents");
+	}
+
+	/** Returns the position of the first related term entry of a term. */
+	public long getFirstEntry(final int termid)
+	{
+		if (termid < 0 || termid >= numberOfTerms)
+			return 0;
+		return getLong(HEADER_BYTES + (long) Long.BYTES * termid);
+	}
+
+	/** Returns the number of related terms recorded for a term. */
+	public int getNumberOfRelatedTerms(final int termid)
+	{
+		if (termid < 0 || termid >= numberOfTerms)
+			return 0;
+		return (int) (getLong(HEADER_BYTES + (long) Long.BYTES * (termid + 1)) - getFirstEntry(termid));
+	}
+
+	/** Returns the termid of a related term entry. */
+	public int getRelatedTerm(final long entry)
+	{
+		return getInt(position(entry));
+	}
+
+	/** Returns the mutual information of a related term entry with its term. */
+	public float getMutualInformation(final long entry)
+	{
+		return Float.intBitsToFloat(getInt(position(entry) + Integer.BYTES));
+	}
+
+	/** Returns the document frequency, in the whole collection, of the term of a related term entry. */
+	public int getDocumentFrequency(final long entry)
+	{
+		return getInt(position(entry) + 2 * Integer.BYTES);
+	}
+
+	protected long position(final long entry)
+	{
+		return entriesOffset + entry * ENTRY_BYTES;
+	}
+
+	protected int getInt(final long position)
+	{
+		return segments[(int) (position / segmentBytes)].getInt((int) (position % segmentBytes));
+	}
+
+	protected long getLong(final long position)
+	{
+		return segments[(int) (position / segmentBytes)].getLong((int) (position % segmentBytes));
+	}
+
+	/** Writes the header of a co-occurrence index. */
+	static void writeHeader(final ByteBuffer header, final int numberOfTerms, final int maxRelatedTerms, final int numberOfSampledDocuments)
+	{
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(numberOfTerms);
+		header.putInt(maxRelatedTerms);
+		header.putInt(numberOfSampledDocuments);
+	}
+}
@@ -0,0 +1,215 @@
+package org.terrier.querying;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.utility.ApplicationSetup;
+
+import gnu.trove.TIntHashSet;
+
+/**
+ * This class builds the offline term co-occurrence index used by {@link AxiomaticQE} when <tt>ax.miindex</tt>
+ * is enabled. The direct index is read once, over a uniform random sample of the documents of the collection,
+ * and for each term, the <tt>ax.miindex.K</tt> terms with the highest mutual information with it are written
+ * to a {@link AxiomaticMIIndex} file next to the index. The sampled documents are held in memory while building.
+ * <p>
+ * Usage: <tt>bin/terrier org.terrier.querying.AxiomaticMIIndexBuilder</tt>, using the index denoted by the
+ * <tt>terrier.index.path</tt> and <tt>terrier.index.prefix</tt> properties.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>ax.miindex.K - number of related terms to record for each term, defaults to <tt>ax.K</tt>, or 1000</li>
+ * <li>ax.miindex.documents - number of documents to sample, defaults to 100000. 0 uses all documents.</li>
+ * <li>ax.miindex.seed - seed of the random sample, defaults to 13081982</li>
+ * <li>ax.miindex.maxdp - terms occurring in more than this proportion of the sampled documents get no related terms, as they
+ * are the most expensive to process and are rarely worth expanding, defaults to 0.1</li>
+ * </ul>
+ */
+public class AxiomaticMIIndexBuilder
+{
+	protected static Logger logger = LoggerFactory.getLogger(AxiomaticMIIndexBuilder.class);
+
+	protected final IndexOnDisk index;
+	protected final int K;
+	protected final int numberOfDocumentsToSample;
+	protected final long seed;
+	protected final double maxDocPercentage;
+
+	public AxiomaticMIIndexBuilder(final IndexOnDisk index, final int K, final int numberOfDocumentsToSample, final long seed, final double maxDocPercentage)
+	{
+		this.index = index;
+		this.K = K;
+		this.numberOfDocumentsToSample = numberOfDocumentsToSample;
+		this.seed = seed;
+		this.maxDocPercentage = maxDocPercentage;
+	}
+
+	/**
+	 * Builds the co-occurrence index, writing it to {@link AxiomaticMIIndex#getFilename(IndexOnDisk)}. The index is written
+	 * to a temporary file, then moved into place, so that a request never opens a partially written file.
+	 *
+	 * @throws IOException if there are problems in reading the index or writing the co-occurrence index
+	 */
+	public void build() throws IOException
+	{
+		final long start = System.currentTimeMillis();
+		final int[] docids = sampleDocuments();
+
+		// read the sampled documents once, keeping only their termids
+		final int[][] documents = new int[docids.length][];
+		int numberOfTerms = index.getCollectionStatistics().getNumberOfUniqueTerms();
+		long numberOfPostings = 0;
+		for (int d = 0; d < docids.length; d++) {
+			documents[d] = DocumentVector.read(index, docids[d]).getTermIds();
+			for (int termid : documents[d])
+				numberOfTerms = Math.max(numberOfTerms, termid + 1);
+			numberOfPostings += documents[d].length;
+		}
+		if (numberOfPostings > Integer.MAX_VALUE)
+			throw new IOException("Too many postings (" + numberOfPostings + ") in the sampled documents, reduce ax.miindex.documents");
+		logger.info("Read " + docids.length + " documents with " + numberOfPostings + " postings in " + (System.currentTimeMillis() - start) + "ms");
+
+		// invert the sample: term -> positions of the sampled documents containing it
+		final int[] sampleDfs = new int[numberOfTerms];
+		for (int[] terms : documents)
+			for (int termid : terms)
+				sampleDfs[termid]++;
+		final int[] offsets = new int[numberOfTerms + 1];
+		for (int t = 0; t < numberOfTerms; t++)
+			offsets[t + 1] = offsets[t] + sampleDfs[t];
+		final int[] postings = new int[(int) numberOfPostings];
+		final int[] fill = Arrays.copyOf(offsets, numberOfTerms);
+		for (int d = 0; d < documents.length; d++)
+			for (int termid : documents[d])
+				postings[fill[termid]++] = d;
+
+		final int[] collectionDfs = new int[numberOfTerms];
+		final Iterator<Map.Entry<String, LexiconEntry>> lexIter = index.getLexicon().iterator();
+		try {
+			while (lexIter.hasNext()) {
+				final LexiconEntry le = lexIter.next().getValue();
+				if (le.getTermId() < numberOfTerms)
+					collectionDfs[le.getTermId()] = le.getDocumentFrequency();
+			}
+		} finally {
+			if (lexIter instanceof Closeable)
+				((Closeable) lexIter).close();
+		}
+
+		final String filename = AxiomaticMIIndex.getFilename(index);
+		final Path temporary = Paths.get(filename + ".tmp");
+		final double total = docids.length;
+		final int maxSampleDf = (int) (maxDocPercentage * docids.length);
+		final long[] entryOffsets = new long[numberOfTerms + 1];
+		final int[] jointDfs = new int[numberOfTerms];
+		final int[] touched = new int[numberOfTerms];
+		final TopKSelector related = new TopKSelector(K);
+		try (RandomAccessFile raf = new RandomAccessFile(temporary.toFile(), "rw"); FileChannel channel = raf.getChannel()) {
+			channel.truncate(0);
+			channel.position(AxiomaticMIIndex.HEADER_BYTES + (long) Long.BYTES * (numberOfTerms + 1));
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1024 * 1024));
+			long entries = 0;
+			for (int t = 0; t < numberOfTerms; t++) {
+				entryOffsets[t] = entries;
+				if (sampleDfs[t] == 0 || sampleDfs[t] > maxSampleDf)
+					continue;
+
+				// count the joint document frequencies of t with all terms co-occurring with it
+				int numberTouched = 0;
+				for (int p = offsets[t]; p < offsets[t + 1]; p++)
+					for (int other : documents[postings[p]])
+						if (jointDfs[other]++ == 0)
+							touched[numberTouched++] = other;
+
+				related.clear();
+				for (int i = 0; i < numberTouched; i++) {
+					final int other = touched[i];
+					if (other != t) {
+						// order the terms by termid, as AxiomaticQE does
+						related.add(other, t < other
+							? AxiomaticQE.mutualInformation(total, sampleDfs[t], sampleDfs[other], jointDfs[other])
+							: AxiomaticQE.mutualInformation(total, sampleDfs[other], sampleDfs[t], jointDfs[other]));
+					}
+					jointDfs[other] = 0;
+				}
+				final int size = related.sort();
+				for (int i = 0; i < size; i++) {
+					out.writeInt(related.getId(i));
+					out.writeFloat((float) related.getScore(i));
+					out.writeInt(collectionDfs[related.getId(i)]);
+				}
+				entries += size;
+			}
+			entryOffsets[numberOfTerms] = entries;
+			out.flush();
+
+			final ByteBuffer header = ByteBuffer.allocate(AxiomaticMIIndex.HEADER_BYTES + Long.BYTES * (numberOfTerms + 1));
+			AxiomaticMIIndex.writeHeader(header, numberOfTerms, K, docids.length);
+			for (long offset : entryOffsets)
+				header.putLong(offset);
+			header.flip();
+			channel.position(0);
+			while (header.hasRemaining())
+				channel.write(header);
+			channel.force(true);
+			logger.info("Wrote " + entries + " related terms for " + numberOfTerms + " terms to " + filename + " ("
+				+ channel.size() + " bytes) in " + (System.currentTimeMillis() - start) + "ms");
+		} catch (IOException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		Files.move(temporary, Paths.get(filename), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/** Returns the sorted docids of the documents to analyse. */
+	protected int[] sampleDocuments()
+	{
+		final int numDocs = index.getCollectionStatistics().getNumberOfDocuments();
+		if (numberOfDocumentsToSample <= 0 || numberOfDocumentsToSample >= numDocs) {
+			final int[] docids = new int[numDocs];
+			for (int d = 0; d < numDocs; d++)
+				docids[d] = d;
+			return docids;
+		}
+		final Random r = new Random(seed);
+		final TIntHashSet sample = new TIntHashSet(numberOfDocumentsToSample);
+		while (sample.size() < numberOfDocumentsToSample)
+			sample.add(r.nextInt(numDocs));
+		final int[] docids = sample.toArray();
+		// sorting the docids makes the direct index reads mostly sequential
+		Arrays.sort(docids);
+		return docids;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		final IndexOnDisk index = IndexOnDisk.createIndex();
+		if (index == null) {
+			logger.error("Could not load index: " + IndexOnDisk.getLastIndexLoadError());
+			return;
+		}
+		new AxiomaticMIIndexBuilder(index,
+			Integer.parseInt(ApplicationSetup.getProperty("ax.miindex.K", ApplicationSetup.getProperty("ax.K", "1000"))),
+			Integer.parseInt(ApplicationSetup.getProperty("ax.miindex.documents", "100000")),
+			Long.parseLong(ApplicationSetup.getProperty("ax.miindex.seed", "13081982")),
+			Double.parseDouble(ApplicationSetup.getProperty("ax.miindex.maxdp", "0.1"))).build();
+		index.close();
+	}
+}
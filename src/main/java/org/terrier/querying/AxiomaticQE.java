@@ -2,13 +2,10 @@ package org.terrier.querying;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Queue;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
 
-import com.google.common.collect.MinMaxPriorityQueue;
-
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.terrier.matching.MatchingQueryTerms;
@@ -16,7 +13,6 @@ import org.terrier.matching.models.Idf;
 import org.terrier.querying.parser.SingleTermQuery;
 import org.terrier.structures.EntryStatistics;
 import org.terrier.structures.Index;
-import org.terrier.structures.postings.IterablePosting;
 import org.terrier.utility.ApplicationSetup;
 import org.terrier.utility.Rounding;
 
@@ -24,7 +20,6 @@ import gnu.trove.TIntArrayList;
 import gnu.trove.TIntDoubleHashMap;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntIntHashMap;
-import gnu.trove.TLongIntHashMap;
 
 /**
  * This implements axiomatic query expansion - c.f. Fang, H., Zhai, C.: Semantic
@@ -42,6 +37,24 @@ import gnu.trove.TLongIntHashMap;
  * <li>ax.beta - weight of new terms</li>
  * <li>ax.K - number of terms related to each original query term to keep</li>
  * <li>ax.R - number of random non-relevant documents to analyse</li>
+ * <li>ax.cooccurrence - how co-occurrences are counted, <tt>dense</tt> or <tt>bitset</tt>, see {@link CooccurrenceCounter}</li>
+ * <li>ax.cooccurrence.budget - memory budget of the co-occurrence counts of a query, in MB, defaults to 0, i.e. unbounded.
+ * The feedback documents are then counted before the random documents.</li>
+ * <li>ax.cooccurrence.overflow - what to do when the budget is exceeded: <tt>prune</tt> (default) the candidate terms
+ * occurring in the fewest documents, or <tt>truncate</tt> the documents counted next to the terms already counted.
+ * The outcome is recorded in the <tt>ax.overflow</tt> control of the request.</li>
+ * <li>ax.background.documents - if set, the random non-relevant documents of each query, i.e. (N-1)*R documents, are drawn
+ * from a shared sample of that many documents, decoded once per index, rather than decoded for each query, see {@link BackgroundSample}.
+ * The sample should hold at least (N-1)*R documents plus the feedback documents, or fewer random documents are analysed.</li>
+ * <li>prf.expansioncache.size, prf.expansioncache.dir - enable the {@link ExpansionCache}. Unless the random documents
+ * are drawn from the background sample, or <tt>ax.miindex</tt> is set, the random documents depend on the qid, so that a
+ * cached expansion is only reused for a query with the same qid.</li>
+ * <li>ax.miindex - set to true to look up the terms related to each original query term in the offline co-occurrence index
+ * built by {@link AxiomaticMIIndexBuilder}, rather than analysing feedback and random documents. Can also be set per request
+ * using the <tt>ax.miindex</tt> control.</li>
+ * <li>prf.shards - if set, the feedback and random documents are counted by the shards holding them, see {@link ShardedFeedback}.
+ * The shared background sample is then not used.</li>
+ * <li>prf.prune.mass, prf.prune.dfpenalty - drop the expansion terms carrying little of their weight, see {@link ExpansionTermPruner}</li>
  * </ul>
  * @author Craig Macdonald
  */
@@ -49,24 +62,50 @@ public class AxiomaticQE extends QueryExpansion {
 
 	protected static Logger axlogger = LoggerFactory.getLogger(AxiomaticQE.class);
 
-	static Comparator<Pair<Integer, Double>> pairComparator = (Pair<Integer, Double> p1,
-			Pair<Integer, Double> p2) -> Double.compare(p2.getValue(), p1.getValue());
-
 	/** beta - weight of new terms */
 	final double BETA = Double.parseDouble(ApplicationSetup.getProperty("ax.beta", "0.6d"));
 	
 	final int K = Integer.parseInt(ApplicationSetup.getProperty("ax.K", "1000"));
 	final int R = Integer.parseInt(ApplicationSetup.getProperty("ax.R", "10"));;
+	final long cooccurrenceBudget = (long) (Double.parseDouble(ApplicationSetup.getProperty("ax.cooccurrence.budget", "0")) * 1024 * 1024);
+	final CooccurrenceCounter.Overflow cooccurrenceOverflow = CooccurrenceCounter.Overflow.of(ApplicationSetup.getProperty("ax.cooccurrence.overflow", "prune"));
 	Index index;
+	// the shards holding the documents, if the direct index of the index should not be used
+	ShardedFeedback shards = ShardedFeedback.get();
+
+	static final byte NOT_COUNTED = 0;
+	static final byte COUNTED = 1;
+	static final byte DROPPED = 2;
+	static final byte NOT_DRAWN = 3;
+
+	// true once the background sample was found too small for the random documents of a query
+	boolean warnedSmallBackground = false;
 
 	class AxiomaticExpansionTerms extends ExpansionTerms {
 
 		TIntHashSet seenDocids = new TIntHashSet();
+		// the docids in the order they were inserted, i.e. the feedback documents, then the random documents as drawn
+		TIntArrayList insertedDocids = new TIntArrayList();
+		int numberOfFeedbackDocuments;
 		TIntHashSet originalQTerms = new TIntHashSet();
 		Idf idfI = new Idf(index.getCollectionStatistics().getNumberOfDocuments());
 
-		TLongIntHashMap pairCount = new TLongIntHashMap();
-		TIntIntHashMap singleCounts = new TIntIntHashMap();
+		CooccurrenceCounter counter;
+		// the shared sample of random documents, if any, used instead of the random documents inserted
+		BackgroundSample background;
+		// the number of random documents to analyse, i.e. to draw from the background sample, if any
+		int numberOfRandomDocuments;
+		// slot -> idf of the term in the whole collection
+		double[] idfs;
+		// not aggregated unless attached to a request
+		PrfMetrics metrics = new PrfMetrics(null);
+		ExpansionDeadline deadline = ExpansionDeadline.NONE;
+		// the terms of a sharded expansion, whose termids are used instead of those of the lexicon, or null
+		ShardedFeedback.Terms shardTerms = null;
+		// the feedback documents prefetched for the request, if any
+		FeedbackPrefetch.Buffer prefetch = null;
+		// the request being expanded, if any
+		Request request = null;
 
 		public AxiomaticExpansionTerms() {}
 
@@ -76,54 +115,82 @@ public class AxiomaticQE extends QueryExpansion {
 			for (int i = 0; i < terms.length; i++) {
 				EntryStatistics te = query.getStatistics(terms[i]);
 				if (te != null) {
-					this.originalQTerms.add(te.getTermId());
+					this.originalQTerms.add(shardTerms != null ? shardTerms.getOrAdd(terms[i]) : te.getTermId());
 				}
 			}
 		}
 
+		/**
+		 * Returns the expansion terms, or null if the deadline of the expansion did not allow any feedback
+		 * document to be analysed.
+		 */
 		@Override
 		public SingleTermQuery[] getExpandedTerms(int M) {
 			try {
-				analyseDocuments(seenDocids.toArray());
+				if (shards != null)
+					analyseShards();
+				else if (! deadline.isSet() && cooccurrenceBudget == 0)
+					analyseDocuments(seenDocids.toArray());
+				else if (! analyseDocumentsWithinDeadline())
+					return null;
 			} catch (IOException ioe) {
 				throw new RuntimeException(ioe);
 			}
 
-			TIntDoubleHashMap allTerms = new TIntDoubleHashMap();
-
-			for (int originalQueryTerm : originalQTerms.toArray()) {
-				Queue<Pair<Integer, Double>> newtermQueue = MinMaxPriorityQueue.orderedBy(pairComparator).maximumSize(K)
-						.create();
-
-				for (int candidate : singleCounts.keys()) {
-					if (candidate == originalQueryTerm)
+			final long start = System.currentTimeMillis();
+			final long scoreStart = System.nanoTime();
+			final int numberOfTerms = counter.getNumberOfTerms();
+			// slot -> sum of the scores of that term for the original query terms it is related to
+			final double[] allTerms = new double[numberOfTerms];
+			final boolean[] related = new boolean[numberOfTerms];
+			final TopKSelector newterms = new TopKSelector(K);
+
+			for (int q = 0; q < counter.getNumberOfQueryTerms(); q++) {
+				final int originalQueryTerm = counter.getQueryTermId(q);
+				newterms.clear();
+				for (int slot = 0; slot < numberOfTerms; slot++) {
+					final int candidate = counter.getTermId(slot);
+					if (candidate == originalQueryTerm || counter.getDocumentFrequency(slot) == 0)
 						continue;
 					double mi = 1;
 					if (!originalQTerms.contains(candidate))
-						mi = BETA * MI(originalQueryTerm, candidate);
-					double idf = idfI
-							.idf(index.getLexicon().getLexiconEntry(candidate).getValue().getDocumentFrequency());
-					newtermQueue.add(Pair.of(candidate, mi * idf));
+						mi = BETA * queryTermMI(q, slot);
+					newterms.add(slot, mi * idfs[slot]);
 				}
-				axlogger.info("First: " + newtermQueue.peek() + " ["
-						+ index.getLexicon().getLexiconEntry(newtermQueue.peek().getKey()).getKey() + "]");
-				for (Pair<Integer, Double> candidate : newtermQueue) {
-					allTerms.adjustOrPutValue(candidate.getKey(), candidate.getValue(), candidate.getValue());
+				final int size = newterms.sort();
+				if (size > 0)
+					axlogger.info("First: " + counter.getTermId(newterms.getId(0)) + "=" + newterms.getScore(0) + " ["
+						+ getTerm(counter.getTermId(newterms.getId(0))) + "]");
+				for (int i = 0; i < size; i++) {
+					allTerms[newterms.getId(i)] += newterms.getScore(i);
+					related[newterms.getId(i)] = true;
 				}
 			}
 
-			Queue<Pair<Integer, Double>> newtermQueue = MinMaxPriorityQueue.orderedBy(pairComparator).maximumSize(M)
-					.create();
-			allTerms.forEachEntry((int a, double b) -> {
-				newtermQueue.add(Pair.of(a, b));
-				return true;
-			});
+			final TopKSelector expansionTerms = new TopKSelector(M);
+			for (int slot = 0; slot < numberOfTerms; slot++)
+				if (related[slot])
+					expansionTerms.add(slot, allTerms[slot]);
+			final int size = expansionTerms.sort();
+			metrics.addTime("score", scoreStart);
+			final long resolveStart = System.nanoTime();
+			final SingleTermQuery[] rtr = new SingleTermQuery[size];
+			for (int i = 0; i < size; i++) {
+				rtr[i] = new SingleTermQuery(getTerm(counter.getTermId(expansionTerms.getId(i))));
+				rtr[i].setWeight(expansionTerms.getScore(i));
+			}
+			metrics.addTime("resolve", resolveStart);
+			if (shardTerms == null && axlogger.isDebugEnabled())
+				axlogger.debug(LexiconCache.of(index).toString());
+			metrics.count("expansionterms", size);
+			axlogger.info("Selected " + size + " expansion terms among " + numberOfTerms + " candidates in " 
+				+ (System.currentTimeMillis() - start) + "ms");
+			return rtr;
+		}
 
-			return newtermQueue.stream().map(p -> {
-				SingleTermQuery term = new SingleTermQuery(index.getLexicon().getLexiconEntry(p.getLeft()).getKey());
-				term.setWeight(p.getValue());
-				return term;
-			}).toArray(SingleTermQuery[]::new);
+		/** Returns the term of a termid, from the lexicon of the index, or from the terms of a sharded expansion. */
+		protected String getTerm(int termid) {
+			return shardTerms != null ? shardTerms.getTerm(termid) : LexiconCache.of(index).getTerm(termid);
 		}
 
 		@Override
@@ -139,54 +206,31 @@ public class AxiomaticQE extends QueryExpansion {
 				term2 = swap;
 			}
 
-			final double total = (double) seenDocids.size();
-			final double x1 = singleCounts.get(term1);
-			final double y1 = singleCounts.get(term2);
-			final double x0 = total - x1;
-			final double y0 = total - y1;
-
-			final double pX0 = x0 / total;
-			final double pX1 = x1 / total;
-			final double pY0 = y0 / total;
-			final double pY1 = y1 / total;
-
+			final double total = (double) counter.getNumberOfDocuments();
+			final double x1 = counter.getDocumentFrequencyOfTerm(term1);
+			final double y1 = counter.getDocumentFrequencyOfTerm(term2);
 			// doc num that x and y cooccurr
-			final double numXY11 = pairCount.get((((long) term1) << 32) | (term2 & 0xffffffffL));
-			final double numXY10 = x1 - numXY11; // doc num that x occurs but y doesn't
-			final double numXY01 = y1 - numXY11; // doc num that y occurs but x doesn't
-			final double numXY00 = total - numXY11 - numXY10 - numXY01; // doc num that neither x nor y occurr
-
-			final double pXY11 = numXY11 / total;
-			final double pXY10 = numXY10 / total;
-			final double pXY01 = numXY01 / total;
-			final double pXY00 = numXY00 / total;
-
-			double m00 = 0, m01 = 0, m10 = 0, m11 = 0;
-			if (pXY00 != 0) {
-				m00 = pXY00 * Math.log(pXY00 / (pX0 * pY0));
-			}
-
-			if (pXY01 != 0) {
-				m01 = pXY01 * Math.log(pXY01 / (pX0 * pY1));
-			}
-
-			if (pXY10 != 0) {
-				m10 = pXY10 * Math.log(pXY10 / (pX1 * pY0));
-			}
+			final double numXY11 = counter.getJointDocumentFrequencyOfTerms(term1, term2);
+			return MI(total, x1, y1, numXY11);
+		}
 
-			if (pXY11 != 0) {
-				m11 = pXY11 * Math.log(pXY11 / (pX1 * pY1));
-			}
+		/**
+		 * Computes the mutual information between an original query term and another term, using their slots
+		 * in the co-occurrence counter rather than their termids, to avoid hash lookups.
+		 */
+		protected double queryTermMI(final int queryTerm, final int slot) {
+			final double total = (double) counter.getNumberOfDocuments();
+			final double numXY11 = counter.getJointDocumentFrequency(queryTerm, slot);
+			final double queryDf = counter.getDocumentFrequency(counter.getQueryTermSlot(queryTerm));
+			final double df = counter.getDocumentFrequency(slot);
+			// order the terms by termid, as MI(int, int) does, so that the result is exactly the same
+			if (counter.getQueryTermId(queryTerm) < counter.getTermId(slot))
+				return MI(total, queryDf, df, numXY11);
+			return MI(total, df, queryDf, numXY11);
+		}
 
-			double score = m00 + m10 + m01 + m11;
-			// if (score < 0)
-			// {
-			// axlogger.info("doccount=" + total + " t1=" + x1 + " t2=" + y1
-			// + " both=" + numXY11 + " neither="+ numXY00
-			// + " t1nott2=" + numXY10 + " t2nott1="+numXY01);
-			// axlogger.info("MI [" + term1 + "," + term2 + "]=" + score);
-			// }
-			return score;
+		protected double MI(final double total, final double x1, final double y1, final double numXY11) {
+			return mutualInformation(total, x1, y1, numXY11);
 		}
 
 		protected void analyseDocuments(int[] docids) throws IOException {
@@ -194,56 +238,432 @@ public class AxiomaticQE extends QueryExpansion {
 			Arrays.sort(docids);
 			// sort the docids: in practice, often this results in quicker access, 
 			// as it reduces random seeks on the index files (docs may be clustered)
-			for (int docid : docids) {
-				IterablePosting ip = index.getDirectIndex()
-						.getPostings(index.getDocumentIndex().getDocumentEntry(docid));
-				int termid;
-				TIntArrayList seenTerms = new TIntArrayList();
-				while ((termid = ip.next()) != IterablePosting.EOL) {
-					seenTerms.add(termid);
-					singleCounts.adjustOrPutValue(termid, 1, 1);
+			final DocumentVectorCache vectors = DocumentVectorCache.of(index);
+			final FeedbackVectorStore store = getUnfilteredStore();
+			final long start = System.nanoTime();
+			final DocumentVector[] dvs = store != null ? store.getAll(docids) : getAll(docids, ExpansionDeadline.NONE);
+			metrics.addTime("decode", start);
+			analyseDocuments(docids, dvs);
+			if (axlogger.isDebugEnabled())
+				axlogger.debug(vectors.toString());
+		}
+
+		/**
+		 * Analyses the inserted documents within the deadline of the expansion, decoding the feedback documents
+		 * first, then the random documents in the order they were drawn, until the deadline is nearly expired.
+		 * Also used without a deadline when the co-occurrence counts have a memory budget, so that the feedback
+		 * documents are counted before any candidate term is dropped.
+		 *
+		 * @return false if no feedback document could be decoded in time
+		 */
+		protected boolean analyseDocumentsWithinDeadline() throws IOException {
+			final int[] docids = insertedDocids.toNativeArray();
+			axlogger.info("Analysing up to " + docids.length + " documents"
+				+ (deadline.isSet() ? " within " + (deadline.getRemainingNanos() / 1000000) + "ms" : ""));
+			final FeedbackVectorStore store = getUnfilteredStore();
+			final long start = System.nanoTime();
+			final DocumentVector[] dvs = store != null ? store.getAll(docids, deadline) : getAll(docids, deadline);
+			metrics.addTime("decode", start);
+			if (dvs.length == 0) {
+				deadline.degrade(ExpansionDeadline.UNEXPANDED);
+				return false;
+			}
+			if (dvs.length < numberOfFeedbackDocuments)
+				deadline.degrade(ExpansionDeadline.PARTIAL);
+			if (dvs.length < docids.length && docids.length > numberOfFeedbackDocuments)
+				deadline.degrade(ExpansionDeadline.REDUCED_SAMPLE);
+			analyseDocuments(Arrays.copyOf(docids, dvs.length), dvs);
+			return true;
+		}
+
+		/**
+		 * Counts the co-occurrences in the inserted documents using the partial counts of the shards holding them,
+		 * which are exactly those of a single index. The idf of each candidate is that of the whole collection.
+		 */
+		protected void analyseShards() throws IOException {
+			final int[] docids = seenDocids.toArray();
+			axlogger.info("Analysing " + docids.length + " documents on " + shards.size() + " shards");
+			final int[] queryTermIds = originalQTerms.toArray();
+			final String[] queryTerms = new String[queryTermIds.length];
+			for (int q = 0; q < queryTermIds.length; q++)
+				queryTerms[q] = shardTerms.getTerm(queryTermIds[q]);
+			long start = System.nanoTime();
+			counter = shards.getCooccurrences(docids, queryTerms, shardTerms);
+			metrics.addTime("shards", start);
+			metrics.count("documents", docids.length);
+			start = System.nanoTime();
+			final int[] slots = new int[counter.getNumberOfTerms()];
+			int size = 0;
+			for (int slot = 0; slot < slots.length; slot++)
+				if (counter.getDocumentFrequency(slot) > 0)
+					slots[size++] = slot;
+			final String[] candidates = new String[size];
+			for (int i = 0; i < size; i++)
+				candidates[i] = shardTerms.getTerm(counter.getTermId(slots[i]));
+			final int[] dfs = shards.getDocumentFrequencies(candidates);
+			final Idf collectionIdf = new Idf(shards.getNumberOfDocuments());
+			idfs = new double[counter.getNumberOfTerms()];
+			for (int i = 0; i < size; i++)
+				idfs[slots[i]] = collectionIdf.idf(dfs[i]);
+			metrics.addTime("idf", start);
+			metrics.count("candidateterms", counter.getNumberOfTerms());
+			metrics.count("pairs", counter.getNumberOfPairs());
+			axlogger.info("Done: " + counter.getNumberOfTerms() + " terms, " + counter.getNumberOfPairs() + " pairs");
+		}
+
+		/**
+		 * Returns the document vectors of the specified documents, from the documents prefetched for the request
+		 * if any, or from the {@link DocumentVectorCache} of the index.
+		 */
+		protected DocumentVector[] getAll(int[] docids, ExpansionDeadline deadline) throws IOException {
+			if (prefetch == null)
+				return DocumentVectorCache.of(index).getAll(docids, deadline);
+			metrics.count("prefetched", prefetch.count(docids));
+			return prefetch.getAll(docids, deadline);
+		}
+
+		/** Returns the feedback vector store of the index, if it has one holding all terms, as co-occurrences are counted over all terms. */
+		protected FeedbackVectorStore getUnfilteredStore() throws IOException {
+			final FeedbackVectorStore store = FeedbackVectorStore.of(index);
+			return store != null && ! store.isFiltered() ? store : null;
+		}
+
+		/** Counts the co-occurrences in the specified decoded documents, and in the background sample, if any. */
+		protected void analyseDocuments(int[] docids, DocumentVector[] dvs) {
+			long start = System.nanoTime();
+			// we only count pairs that involve an original query term
+			counter = CooccurrenceCounter.create(originalQTerms.toArray(), docids.length);
+			counter.setMemoryBudget(cooccurrenceBudget, cooccurrenceOverflow);
+			long postings = 0;
+			for (DocumentVector dv : dvs) {
+				counter.addDocument(dv.getTermIds());
+				postings += dv.getTermIds().length;
+			}
+			metrics.count("documents", docids.length);
+			metrics.count("postings", postings);
+			if (background != null)
+				analyseBackground(docids);
+			metrics.addTime("count", start);
+			reportOverflow();
+			start = System.nanoTime();
+			// resolve the idf of each candidate once, rather than once per original query term
+			final LexiconCache lexicon = LexiconCache.of(index);
+			idfs = new double[counter.getNumberOfTerms()];
+			for (int slot = 0; slot < idfs.length; slot++)
+				if (counter.getDocumentFrequency(slot) > 0)
+					idfs[slot] = idfI.idf(lexicon.getLexiconEntry(counter.getTermId(slot)).getValue().getDocumentFrequency());
+			metrics.addTime("idf", start);
+			metrics.count("candidateterms", counter.getNumberOfTerms());
+			metrics.count("pairs", counter.getNumberOfPairs());
+			axlogger.info("Done: " + counter.getNumberOfTerms() + " terms, " + counter.getNumberOfPairs() + " pairs");
+		}
+
+		/** Records the memory used by the co-occurrence counts, and what was dropped to meet the budget, if anything. */
+		protected void reportOverflow() {
+			metrics.count("cooccurrencebytes", counter.getPeakMemoryUsage());
+			if (cooccurrenceBudget == 0)
+				return;
+			final String outcome = ! counter.hasOverflowed() ? "none"
+				: counter.getOverflow() == CooccurrenceCounter.Overflow.PRUNE ? "prune,pruned=" + counter.getNumberOfPrunedTerms()
+					+ (counter.getNumberOfTruncatedPostings() > 0 ? ",truncated=" + counter.getNumberOfTruncatedPostings() : "")
+				: "truncate,truncated=" + counter.getNumberOfTruncatedPostings();
+			if (request != null)
+				request.setControl("ax.overflow", outcome);
+			if (counter.hasOverflowed()) {
+				metrics.count("prunedcandidates", counter.getNumberOfPrunedTerms());
+				metrics.count("truncatedpostings", counter.getNumberOfTruncatedPostings());
+				axlogger.info("Co-occurrence counts exceeded the budget of " + cooccurrenceBudget + " bytes, peaking at "
+					+ counter.getPeakMemoryUsage() + " bytes: " + outcome);
+			}
+		}
+
+		/**
+		 * Counts random documents drawn from the shared background sample, except those already analysed as feedback
+		 * documents. As many documents are drawn as would be drawn from the collection, so that the proportion of
+		 * feedback documents is the same, and they are drawn with a seed derived from the original query terms, so
+		 * that the same query always gets the same documents. Only the drawn documents containing an original query
+		 * term are counted individually; the others only contribute their document frequencies, aggregated from
+		 * whichever of the drawn documents or the whole sample is cheaper. If the deadline of the expansion is
+		 * nearly expired, the drawn documents containing an original query term that are not counted yet are
+		 * dropped from the sample.
+		 */
+		protected void analyseBackground(int[] feedbackDocids) {
+			// position -> NOT_COUNTED, COUNTED, DROPPED or NOT_DRAWN
+			final byte[] state = new byte[background.size()];
+			int numberCounted = 0;
+			int numberDropped = 0;
+			long postings = 0;
+			for (int docid : feedbackDocids) {
+				final int position = background.getPosition(docid);
+				if (position != -1 && state[position] == NOT_COUNTED) {
+					state[position] = COUNTED;
+					numberCounted++;
 				}
-				final int[] terms = seenTerms.toNativeArray();
-				for (int term1 : terms) {
-					for (int term2 : terms) {
-						if (term2 <= term1)
-							continue;
-						//we only count pairs that involve an original query term
-						if (this.originalQTerms.contains(term1) || this.originalQTerms.contains(term2))
-						{
-							// use a long to encode both of the termids
-							pairCount.adjustOrPutValue((((long) term1) << 32) | (term2 & 0xffffffffL), 1, 1);
-						}
+			}
+			final int numberOfFeedbackPositions = numberCounted;
+			final int numberDrawn = drawBackground(state, background.size() - numberOfFeedbackPositions);
+			final int[] sampleTerms = background.getTermIds();
+			boolean reduced = false;
+			for (int q = 0; q < counter.getNumberOfQueryTerms(); q++) {
+				for (int position : background.getDocumentsContaining(counter.getQueryTermId(q))) {
+					if (state[position] != NOT_COUNTED)
+						continue;
+					if (! reduced && deadline.isNearlyExpired()) {
+						reduced = true;
+						deadline.degrade(ExpansionDeadline.REDUCED_SAMPLE);
+					}
+					if (reduced) {
+						state[position] = DROPPED;
+						numberDropped++;
+						continue;
 					}
+					state[position] = COUNTED;
+					numberCounted++;
+					counter.addDocument(background.getTermIds(position));
+					postings += background.getTermIds(position).length;
+				}
+			}
+			final int numberRemaining = numberDrawn - (numberCounted - numberOfFeedbackPositions) - numberDropped;
+			final int[] remainingDfs;
+			if (numberRemaining < background.size() / 2) {
+				remainingDfs = new int[sampleTerms.length];
+				for (int position = 0; position < state.length; position++)
+					if (state[position] == NOT_COUNTED)
+						for (int termid : background.getTermIds(position))
+							remainingDfs[Arrays.binarySearch(sampleTerms, termid)]++;
+			} else {
+				remainingDfs = background.getDocumentFrequencies().clone();
+				for (int position = 0; position < state.length; position++)
+					if (state[position] != NOT_COUNTED)
+						for (int termid : background.getTermIds(position))
+							remainingDfs[Arrays.binarySearch(sampleTerms, termid)]--;
+			}
+			counter.addDocumentsWithoutQueryTerms(sampleTerms, remainingDfs, numberRemaining);
+			metrics.count("backgrounddocuments", numberCounted - numberOfFeedbackPositions);
+			metrics.count("backgroundpostings", postings);
+			axlogger.info("Background: " + numberDrawn + " of " + background.size() + " sampled documents drawn, " + (numberCounted - numberOfFeedbackPositions)
+				+ " of which counted individually"
+				+ (numberDropped > 0 ? ", " + numberDropped + " dropped to meet the deadline" : ""));
+		}
+
+		/**
+		 * Draws the random documents of the query from the background sample, marking the others as NOT_DRAWN.
+		 *
+		 * @param state the state of each position of the sample, COUNTED for the feedback documents
+		 * @param available the number of positions that can be drawn
+		 * @return the number of documents drawn
+		 */
+		protected int drawBackground(byte[] state, int available) {
+			if (numberOfRandomDocuments >= available) {
+				if (numberOfRandomDocuments > available && ! warnedSmallBackground) {
+					warnedSmallBackground = true;
+					axlogger.warn("The background sample of " + background.size() + " documents is too small to draw " + numberOfRandomDocuments
+						+ " random documents, i.e. (N-1)*R, from it; set ax.background.documents to at least " + (numberOfRandomDocuments + numberOfFeedbackDocuments));
 				}
-				ip.close();
+				return available;
+			}
+			final int[] positions = new int[available];
+			int size = 0;
+			for (int position = 0; position < state.length; position++)
+				if (state[position] == NOT_COUNTED)
+					positions[size++] = position;
+			final int[] queryTerms = originalQTerms.toArray();
+			Arrays.sort(queryTerms);
+			final Random r = new Random(background.getSeed() ^ Arrays.hashCode(queryTerms));
+			// a partial Fisher-Yates shuffle, leaving the drawn positions at the start
+			for (int i = 0; i < numberOfRandomDocuments; i++) {
+				final int j = i + r.nextInt(available - i);
+				final int swap = positions[i];
+				positions[i] = positions[j];
+				positions[j] = swap;
 			}
-			if (singleCounts.size() > 0)
-				assert pairCount.size() > 0;
-			axlogger.info("Done: " + singleCounts.size() + " terms, " + pairCount.size() + " pairs");
+			for (int i = numberOfRandomDocuments; i < available; i++)
+				state[positions[i]] = NOT_DRAWN;
+			return numberOfRandomDocuments;
 		}
 
 		@Override
 		public void insertDocument(FeedbackDocument doc) throws IOException {
-			seenDocids.add(doc.docid);
+			if (seenDocids.add(doc.docid))
+				insertedDocids.add(doc.docid);
+		}
+
+	}
+
+	/**
+	 * Computes the mutual information between the occurrences of two terms in a sample of documents.
+	 *
+	 * @param total the number of documents in the sample
+	 * @param x1 the number of documents containing the first term
+	 * @param y1 the number of documents containing the second term
+	 * @param numXY11 the number of documents containing both terms
+	 * @return the mutual information
+	 */
+	static double mutualInformation(final double total, final double x1, final double y1, final double numXY11) {
+		final double x0 = total - x1;
+		final double y0 = total - y1;
+
+		final double pX0 = x0 / total;
+		final double pX1 = x1 / total;
+		final double pY0 = y0 / total;
+		final double pY1 = y1 / total;
+
+		final double numXY10 = x1 - numXY11; // doc num that x occurs but y doesn't
+		final double numXY01 = y1 - numXY11; // doc num that y occurs but x doesn't
+		final double numXY00 = total - numXY11 - numXY10 - numXY01; // doc num that neither x nor y occurr
+
+		final double pXY11 = numXY11 / total;
+		final double pXY10 = numXY10 / total;
+		final double pXY01 = numXY01 / total;
+		final double pXY00 = numXY00 / total;
+
+		double m00 = 0, m01 = 0, m10 = 0, m11 = 0;
+		if (pXY00 != 0) {
+			m00 = pXY00 * Math.log(pXY00 / (pX0 * pY0));
+		}
+
+		if (pXY01 != 0) {
+			m01 = pXY01 * Math.log(pXY01 / (pX0 * pY1));
+		}
+
+		if (pXY10 != 0) {
+			m10 = pXY10 * Math.log(pXY10 / (pX1 * pY0));
+		}
+
+		if (pXY11 != 0) {
+			m11 = pXY11 * Math.log(pXY11 / (pX1 * pY1));
 		}
 
+		double score = m00 + m10 + m01 + m11;
+		// if (score < 0)
+		// {
+		// axlogger.info("doccount=" + total + " t1=" + x1 + " t2=" + y1
+		// + " both=" + numXY11 + " neither="+ numXY00
+		// + " t1nott2=" + numXY10 + " t2nott1="+numXY01);
+		// axlogger.info("MI [" + term1 + "," + term2 + "]=" + score);
+		// }
+		return score;
+	}
+
+	/**
+	 * Runs the expansion and the second matching pass, recording the duration of the latter in the
+	 * {@link PrfMetrics} of the request, which are then finished.
+	 */
+	@Override
+	public void process(Manager manager, Request q) {
+		final long start = System.nanoTime();
+		super.process(manager, q);
+		final PrfMetrics metrics = PrfMetrics.of(q, getInfo());
+		metrics.addTimeNanos("secondpass", System.nanoTime() - start - metrics.getTime("expand"));
+		if (axlogger.isDebugEnabled())
+			axlogger.debug(metrics.toString());
+		metrics.finish();
 	}
 
 	@Override
 	public boolean expandQuery(MatchingQueryTerms query, Request rq) throws IOException {
+		final PrfMetrics metrics = PrfMetrics.of(rq, getInfo());
+		final long start = System.nanoTime();
+		try {
+			return expandQuery(query, rq, metrics);
+		} finally {
+			metrics.addTime("expand", start);
+		}
+	}
 
+	private boolean expandQuery(MatchingQueryTerms query, Request rq, PrfMetrics metrics) throws IOException {
 		int numberOfTermsToReweight = Math.max(ApplicationSetup.EXPANSION_TERMS, query.size());
 		if (ApplicationSetup.EXPANSION_TERMS == 0)
 			numberOfTermsToReweight = 0;
 
+		final ExpansionCache cache = ExpansionCache.get();
+		String key = null;
+		if (cache != null && ! ExpansionCache.isBypassed(rq)) {
+			key = ExpansionCache.key(index, getInfo(), query, getCacheParameters(query, rq, numberOfTermsToReweight), rq);
+			final ExpansionCache.CachedExpansion cached = cache.lookup(key, rq);
+			if (cached != null) {
+				metrics.count("cachehits", 1);
+				final FeedbackPrefetch.Buffer prefetch = FeedbackPrefetch.of(rq, index);
+				if (prefetch != null)
+					prefetch.cancel();
+				final String[] terms = new String[cached.size()];
+				final double[] weights = new double[cached.size()];
+				for (int i = 0; i < cached.size(); i++) {
+					terms[i] = cached.getTerm(i);
+					weights[i] = cached.getWeight(i);
+				}
+				addExpansionTerms(query, rq, metrics, terms, weights);
+				return true;
+			}
+		}
+
+		final ExpansionDeadline deadline = ExpansionDeadline.of(rq, metrics, ExpansionDeadline.clockOf(rq));
+		final SingleTermQuery[] expandedTerms = getExpandedTerms(query, rq, numberOfTermsToReweight, metrics, deadline);
+		if (expandedTerms == null)
+			return false;
+		final String[] terms = new String[expandedTerms.length];
+		final double[] weights = new double[expandedTerms.length];
+		for (int i = 0; i < expandedTerms.length; i++) {
+			terms[i] = expandedTerms[i].getTerm();
+			weights[i] = expandedTerms[i].getWeight();
+		}
+		// degraded expansions depend on timing, so are not reused
+		if (key != null && ! deadline.isDegraded()) {
+			final int[] termids = new int[expandedTerms.length];
+			Arrays.fill(termids, -1);
+			cache.put(key, new ExpansionCache.CachedExpansion(terms, termids, weights));
+			if (axlogger.isDebugEnabled())
+				axlogger.debug(cache.toString());
+		}
+		addExpansionTerms(query, rq, metrics, terms, weights);
+		return true;
+	}
+
+	/**
+	 * Adds the expansion terms to the query, after dropping those carrying little of their weight if the request
+	 * is configured for it (see {@link ExpansionTermPruner}). The terms of the original query are kept.
+	 */
+	protected void addExpansionTerms(MatchingQueryTerms query, Request rq, PrfMetrics metrics, String[] terms, double[] weights) throws IOException {
+		final ExpansionTermPruner pruner = ExpansionTermPruner.of(rq, metrics);
+		boolean[] keep = null;
+		if (pruner != null && terms.length > 0) {
+			final long start = System.nanoTime();
+			final Set<String> queryTerms = new HashSet<>(Arrays.asList(query.getTerms()));
+			final boolean[] original = new boolean[terms.length];
+			for (int i = 0; i < terms.length; i++)
+				original[i] = queryTerms.contains(terms[i]);
+			keep = pruner.prune(terms, weights, original, index, shards);
+			metrics.addTime("prune", start);
+		}
+		for (int i = 0; i < terms.length; i++)
+			if (keep == null || keep[i])
+				addExpansionTerm(query, terms[i], weights[i]);
+	}
+
+	/**
+	 * Computes the expansion terms of a query, either from its feedback documents and random documents,
+	 * or from the offline co-occurrence index. The documents analysed may be reduced to meet the deadline
+	 * of the expansion.
+	 *
+	 * @return the weighted expansion terms, or null if the query cannot be expanded
+	 */
+	protected SingleTermQuery[] getExpandedTerms(MatchingQueryTerms query, Request rq, int numberOfTermsToReweight, PrfMetrics metrics,
+			ExpansionDeadline deadline) throws IOException {
+		if (useMIIndex(rq)) {
+			final AxiomaticMIIndex miIndex = AxiomaticMIIndex.of(index);
+			if (miIndex != null)
+				return getExpandedTermsFromMIIndex(query, miIndex, numberOfTermsToReweight, metrics);
+			axlogger.warn("Falling back to analysing feedback documents, as no co-occurrence index is available");
+		}
+
+		final long start = System.nanoTime();
 		if (selector == null)
 			selector = this.getFeedbackSelector(rq);
 		if (selector == null)
-			return false;
+			return null;
 		FeedbackDocument[] feedback = selector.getFeedbackDocuments(rq);
 		if (feedback == null || feedback.length == 0)
-			return false;
+			return null;
 
 		Random r = new Random(getSeed(query));
 		TIntHashSet docids = new TIntHashSet();
@@ -252,16 +672,38 @@ public class AxiomaticQE extends QueryExpansion {
 		axlogger.info("Axiomatic: K=" + K + " N=" + N + " M=" + numberOfTermsToReweight + " R=" + R + " beta=" + BETA);
 
 		ExpansionTerms expansionTerms = getExpansionTerms();
+		((AxiomaticExpansionTerms) expansionTerms).shardTerms = shards != null ? new ShardedFeedback.Terms() : null;
+		final FeedbackPrefetch.Buffer prefetch = FeedbackPrefetch.of(rq, index);
+		if (prefetch != null) {
+			// the selector may not choose the top-ranked documents, which were prefetched
+			final int[] feedbackDocids = new int[feedback.length];
+			for (int i = 0; i < feedback.length; i++)
+				feedbackDocids[i] = feedback[i].docid;
+			prefetch.retain(feedbackDocids);
+		}
+		((AxiomaticExpansionTerms) expansionTerms).prefetch = prefetch;
+		((AxiomaticExpansionTerms) expansionTerms).request = rq;
+		((AxiomaticExpansionTerms) expansionTerms).metrics = metrics;
+		((AxiomaticExpansionTerms) expansionTerms).deadline = deadline;
 		for (FeedbackDocument doc : feedback) {
 			docids.add(doc.docid);
 			N++;
 			expansionTerms.insertDocument(doc);
 		}
+		((AxiomaticExpansionTerms) expansionTerms).numberOfFeedbackDocuments = ((AxiomaticExpansionTerms) expansionTerms).insertedDocids.size();
 
 		// we insert some other random (assumed non-relevant) documents from the collection,
-		// excluding the first R documents
-		for (int i = 0; i < (N - 1) * R; ) {
-			int otherDoc = r.nextInt(collStats.getNumberOfDocuments());
+		// excluding the first R documents, or use the shared background sample if one is configured
+		final BackgroundSample background = shards == null ? BackgroundSample.of(index) : null;
+		((AxiomaticExpansionTerms) expansionTerms).numberOfRandomDocuments = (N - 1) * R;
+		if (background != null) {
+			((AxiomaticExpansionTerms) expansionTerms).background = background;
+			if (axlogger.isDebugEnabled())
+				axlogger.debug(background.toString());
+		}
+		final int numberOfDocuments = shards != null ? shards.getNumberOfDocuments() : collStats.getNumberOfDocuments();
+		for (int i = 0; background == null && i < (N - 1) * R; ) {
+			int otherDoc = r.nextInt(numberOfDocuments);
 			if ( ((AxiomaticExpansionTerms) expansionTerms).seenDocids.contains(otherDoc))
 				continue;
 			docids.add(otherDoc);
@@ -269,17 +711,104 @@ public class AxiomaticQE extends QueryExpansion {
 			i++;
 		}
 		expansionTerms.setOriginalQueryTerms(query);
-		SingleTermQuery[] expandedTerms = expansionTerms.getExpandedTerms(numberOfTermsToReweight);
-		for (int i = 0; i < expandedTerms.length; i++) {
-			SingleTermQuery expandedTerm = expandedTerms[i];
-			query.addTermPropertyWeight(expandedTerm.getTerm(), expandedTerm.getWeight());
-			if (axlogger.isDebugEnabled()) {
-				axlogger.debug(
-						"term " + expandedTerms[i].getTerm() + " appears in expanded query with normalised weight: "
-								+ Rounding.toString(query.getTermWeight(expandedTerms[i].getTerm()), 4));
+		metrics.addTime("select", start);
+		return expansionTerms.getExpandedTerms(numberOfTermsToReweight);
+	}
+
+	protected void addExpansionTerm(MatchingQueryTerms query, String term, double weight) {
+		query.addTermPropertyWeight(term, weight);
+		if (axlogger.isDebugEnabled()) {
+			axlogger.debug(
+					"term " + term + " appears in expanded query with normalised weight: "
+							+ Rounding.toString(query.getTermWeight(term), 4));
+		}
+	}
+
+	/**
+	 * Describes the parameters of an expansion, as part of its {@link ExpansionCache} key. The random documents drawn
+	 * for each query depend on the digits of its qid, unless they are drawn from the background sample or the offline
+	 * co-occurrence index is used, so the cached expansions of a query are then only found for the same qid.
+	 */
+	protected String getCacheParameters(MatchingQueryTerms query, Request rq, int numberOfTermsToReweight) {
+		final boolean miIndex = useMIIndex(rq);
+		final boolean background = shards == null && Integer.parseInt(ApplicationSetup.getProperty("ax.background.documents", "0")) > 0;
+		return "M=" + numberOfTermsToReweight + ",N=" + ApplicationSetup.EXPANSION_DOCUMENTS + ",K=" + K + ",R=" + R + ",beta=" + BETA
+			+ (miIndex || background ? "" : ",seed=" + getSeed(query))
+			+ ",background=" + ApplicationSetup.getProperty("ax.background.documents", "0")
+			+ "/" + ApplicationSetup.getProperty("ax.background.seed", "13081982") + ",miindex=" + miIndex
+			+ (cooccurrenceBudget > 0 ? ",budget=" + cooccurrenceBudget + "/" + cooccurrenceOverflow : "")
+			+ (shards != null ? ",shards=" + shards.size() : "");
+	}
+
+	/** Returns true if the related terms should be looked up in the offline co-occurrence index, rather than computed from feedback documents. */
+	protected boolean useMIIndex(Request rq) {
+		final String value = rq.hasControl("ax.miindex")
+			? rq.getControl("ax.miindex")
+			: ApplicationSetup.getProperty("ax.miindex", "false");
+		return value.equals("on") || Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * Expands the query using the related terms of the original query terms recorded in the offline
+	 * co-occurrence index. No feedback or random document is analysed, and only the entries of the original
+	 * query terms are read. As for the online mode, each original query term contributes its top K related
+	 * terms, scored by their mutual information times beta times their idf, while the other original query
+	 * terms are scored by their idf alone.
+	 */
+	protected SingleTermQuery[] getExpandedTermsFromMIIndex(MatchingQueryTerms query, AxiomaticMIIndex miIndex, int M, PrfMetrics metrics) throws IOException {
+		final long start = System.currentTimeMillis();
+		final long scoreStart = System.nanoTime();
+		long entries = 0;
+		final Idf idfI = new Idf(index.getCollectionStatistics().getNumberOfDocuments());
+		final TIntIntHashMap originalQTerms = new TIntIntHashMap();
+		for (String term : query.getTerms()) {
+			EntryStatistics te = query.getStatistics(term);
+			if (te != null)
+				originalQTerms.put(te.getTermId(), te.getDocumentFrequency());
+		}
+		axlogger.info("Axiomatic: K=" + K + " M=" + M + " beta=" + BETA + " using the co-occurrence index");
+
+		final TIntDoubleHashMap allTerms = new TIntDoubleHashMap();
+		final TopKSelector newterms = new TopKSelector(K);
+		for (int originalQueryTerm : originalQTerms.keys()) {
+			newterms.clear();
+			for (int other : originalQTerms.keys())
+				if (other != originalQueryTerm)
+					newterms.add(other, idfI.idf(originalQTerms.get(other)));
+			final long first = miIndex.getFirstEntry(originalQueryTerm);
+			final int count = miIndex.getNumberOfRelatedTerms(originalQueryTerm);
+			entries += count;
+			for (long entry = first; entry < first + count; entry++) {
+				final int candidate = miIndex.getRelatedTerm(entry);
+				if (originalQTerms.containsKey(candidate))
+					continue;
+				newterms.add(candidate, BETA * miIndex.getMutualInformation(entry) * idfI.idf(miIndex.getDocumentFrequency(entry)));
 			}
+			final int size = newterms.sort();
+			for (int i = 0; i < size; i++)
+				allTerms.adjustOrPutValue(newterms.getId(i), newterms.getScore(i), newterms.getScore(i));
 		}
-		return true;
+
+		final TopKSelector expansionTerms = new TopKSelector(M);
+		allTerms.forEachEntry((termid, score) -> {
+			expansionTerms.add(termid, score);
+			return true;
+		});
+		final int size = expansionTerms.sort();
+		metrics.addTime("score", scoreStart);
+		metrics.count("postings", entries);
+		metrics.count("candidateterms", allTerms.size());
+		final long resolveStart = System.nanoTime();
+		final LexiconCache lexicon = LexiconCache.of(index);
+		final SingleTermQuery[] rtr = new SingleTermQuery[size];
+		for (int i = 0; i < size; i++) {
+			rtr[i] = new SingleTermQuery(lexicon.getTerm(expansionTerms.getId(i)));
+			rtr[i].setWeight(expansionTerms.getScore(i));
+		}
+		metrics.addTime("resolve", resolveStart);
+		metrics.count("expansionterms", size);
+		axlogger.info("Selected " + size + " expansion terms from the co-occurrence index in " + (System.currentTimeMillis() - start) + "ms");
+		return rtr;
 	}
 
 	private int getSeed(MatchingQueryTerms query) {
@@ -289,6 +818,15 @@ public class AxiomaticQE extends QueryExpansion {
 		return Integer.parseInt(num);
 	}
 
+	/**
+	 * Sets the shards holding the documents, if the direct index of the index should not be used.
+	 *
+	 * @param shards the shards, or null to use the direct index
+	 */
+	public void setShards(ShardedFeedback shards) {
+		this.shards = shards;
+	}
+
 	@Override
 	public void configureIndex(Index index) {
 		this.index = index;
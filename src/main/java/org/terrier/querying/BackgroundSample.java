@@ -0,0 +1,193 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.structures.Index;
+import org.terrier.utility.ApplicationSetup;
+
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIntHashMap;
+import lombok.Getter;
+
+/**
+ * A fixed random sample of the documents of an index, decoded once and shared by all queries, from which
+ * {@link AxiomaticQE} can draw the random non-relevant documents of each query, instead of decoding new
+ * random documents for every query. Besides the terms of each sampled document, the number of sampled
+ * documents containing each term is pre-aggregated, along with the sampled documents containing each term,
+ * so that a query only needs to process the sampled documents that contain one of its terms.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>ax.background.documents - number of documents in the sample, defaults to 0, i.e. no shared sample is used. It should be
+ * at least the number of random documents analysed for a query, (N-1)*R, plus the feedback documents.</li>
+ * <li>ax.background.seed - seed of the random sample, defaults to 13081982. The same seed always gives the same sample for an index.</li>
+ * </ul>
+ */
+public class BackgroundSample
+{
+	protected static Logger logger = LoggerFactory.getLogger(BackgroundSample.class);
+
+	static final Map<Index, BackgroundSample> SAMPLES = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * Returns the background sample of the specified index, building it if necessary.
+	 *
+	 * @param index the index to sample
+	 * @return the shared sample for that index, or null if <tt>ax.background.documents</tt> is not set
+	 *
+	 * @throws IOException if there are problems in accessing the direct index
+	 */
+	public static BackgroundSample of(final Index index) throws IOException
+	{
+		final int size = Integer.parseInt(ApplicationSetup.getProperty("ax.background.documents", "0"));
+		if (size <= 0)
+			return null;
+		synchronized (SAMPLES) {
+			BackgroundSample sample = SAMPLES.get(index);
+			if (sample == null) {
+				sample = new BackgroundSample(index, size, Long.parseLong(ApplicationSetup.getProperty("ax.background.seed", "13081982")));
+				SAMPLES.put(index, sample);
+			}
+			return sample;
+		}
+	}
+
+	@Getter protected final long seed;
+	// sample position -> docid, in increasing docid order
+	protected final int[] docids;
+	// sample position -> distinct termids of the document
+	protected final int[][] documents;
+	// docid -> sample position + 1
+	protected final TIntIntHashMap docPositions = new TIntIntHashMap();
+	// term position -> termid, and number of sampled documents containing that term
+	protected final int[] termids;
+	protected final int[] documentFrequencies;
+	// termid -> term position + 1
+	protected final TIntIntHashMap termPositions = new TIntIntHashMap();
+	// term position -> sample positions of the documents containing the term, from postings[offsets[t]] to postings[offsets[t+1]]
+	protected final int[] offsets;
+	protected final int[] postings;
+	@Getter protected final long buildTime;
+
+	/**
+	 * Constructor, which samples and decodes the documents.
+	 *
+	 * @param index the index to sample
+	 * @param size the number of documents to sample, at most the number of documents of the index
+	 * @param seed the seed of the random sample
+	 *
+	 * @throws IOException if there are problems in accessing the direct index
+	 */
+	public BackgroundSample(final Index index, final int size, final long seed) throws IOException
+	{
+		final long start = System.currentTimeMillis();
+		this.seed = seed;
+		final int numDocs = index.getCollectionStatistics().getNumberOfDocuments();
+		final Random r = new Random(seed);
+		final TIntHashSet sample = new TIntHashSet();
+		while (sample.size() < Math.min(size, numDocs))
+			sample.add(r.nextInt(numDocs));
+		this.docids = sample.toArray();
+		// sorting the docids makes the direct index reads mostly sequential, and the sample independent of hashing
+		Arrays.sort(docids);
+
+		this.documents = new int[docids.length][];
+		final TIntIntHashMap dfs = new TIntIntHashMap();
+		long numberOfPostings = 0;
+		for (int d = 0; d < docids.length; d++) {
+			docPositions.put(docids[d], d + 1);
+			documents[d] = DocumentVector.read(index, docids[d]).getTermIds();
+			for (int termid : documents[d])
+				dfs.adjustOrPutValue(termid, 1, 1);
+			numberOfPostings += documents[d].length;
+		}
+
+		this.termids = dfs.keys();
+		Arrays.sort(termids);
+		this.documentFrequencies = new int[termids.length];
+		this.offsets = new int[termids.length + 1];
+		for (int t = 0; t < termids.length; t++) {
+			termPositions.put(termids[t], t + 1);
+			documentFrequencies[t] = dfs.get(termids[t]);
+			offsets[t + 1] = offsets[t] + documentFrequencies[t];
+		}
+		this.postings = new int[(int) numberOfPostings];
+		final int[] fill = Arrays.copyOf(offsets, termids.length);
+		for (int d = 0; d < documents.length; d++)
+			for (int termid : documents[d])
+				postings[fill[termPositions.get(termid) - 1]++] = d;
+
+		this.buildTime = System.currentTimeMillis() - start;
+		logger.info("Sampled " + docids.length + " background documents with " + termids.length + " distinct terms (seed " + seed
+			+ ") in " + buildTime + "ms, using approximately " + getMemoryUsage() + " bytes");
+	}
+
+	/** Returns the number of documents in the sample. */
+	public int size()
+	{
+		return docids.length;
+	}
+
+	/** Returns the docid of the document at the specified position of the sample. */
+	public int getDocid(final int position)
+	{
+		return docids[position];
+	}
+
+	/** Returns the position of a document in the sample, or -1 if it is not sampled. */
+	public int getPosition(final int docid)
+	{
+		return docPositions.get(docid) - 1;
+	}
+
+	/** Returns the distinct termids of the document at the specified position of the sample. The returned array must not be modified. */
+	public int[] getTermIds(final int position)
+	{
+		return documents[position];
+	}
+
+	/** Returns the distinct termids occurring in the sample, in increasing order. The returned array must not be modified. */
+	public int[] getTermIds()
+	{
+		return termids;
+	}
+
+	/** Returns the number of sampled documents containing each term, aligned with {@link #getTermIds()}. The returned array must not be modified. */
+	public int[] getDocumentFrequencies()
+	{
+		return documentFrequencies;
+	}
+
+	/** Returns the positions of the sampled documents containing the specified term. */
+	public int[] getDocumentsContaining(final int termid)
+	{
+		final int t = termPositions.get(termid) - 1;
+		if (t == -1)
+			return new int[0];
+		return Arrays.copyOfRange(postings, offsets[t], offsets[t + 1]);
+	}
+
+	/** Returns the approximate memory used by this sample, in bytes. */
+	public long getMemoryUsage()
+	{
+		long bytes = 16 + Integer.BYTES * (long) (docids.length + termids.length + documentFrequencies.length + offsets.length + postings.length);
+		for (int[] terms : documents)
+			bytes += 16 + Integer.BYTES * (long) terms.length;
+		// approximately 2 ints and a state byte per entry of the hash maps, at their default load factor of 0.5
+		bytes += 2 * 9L * (docPositions.size() + termPositions.size());
+		return bytes;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BackgroundSample(documents=" + docids.length + ", terms=" + termids.length + ", seed=" + seed
+			+ ", bytes=" + getMemoryUsage() + ")";
+	}
+}
@@ -0,0 +1,111 @@
+package org.terrier.querying;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.structures.Index;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.utility.ApplicationSetup;
+
+import lombok.Getter;
+
+/**
+ * This class identifies the terms of an index that can be used as pseudo-relevance feedback candidates,
+ * i.e. those terms that are neither too rare nor too frequent. The filter is a bitset keyed by termid,
+ * which is built with a single scan of the lexicon the first time it is needed, and then shared for the
+ * life of the index, so that feedback documents can be filtered without any lexicon lookup.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>prf.mindf - minimum document frequency of a candidate term, defaults to 2</li>
+ * <li>prf.maxdp - terms appearing in more than this fraction of documents are ignored, defaults to 0.1</li>
+ * </ul>
+ */
+public class CandidateTermFilter
+{
+	protected static Logger logger = LoggerFactory.getLogger(CandidateTermFilter.class);
+
+	static final Map<Index, CandidateTermFilter> FILTERS = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * Returns the candidate term filter for the specified index, building it if necessary.
+	 * The filter is rebuilt if the <tt>prf.mindf</tt> or <tt>prf.maxdp</tt> properties have changed.
+	 *
+	 * @param index the index whose lexicon should be scanned
+	 * @return the shared filter for that index
+	 *
+	 * @throws IOException if there are problems in accessing the lexicon
+	 */
+	public static CandidateTermFilter of(final Index index) throws IOException
+	{
+		final int minDf = Integer.parseInt(ApplicationSetup.getProperty("prf.mindf", "2"));
+		final double maxDocPercentage = Float.parseFloat(ApplicationSetup.getProperty("prf.maxdp", "0.1"));
+		synchronized (FILTERS) {
+			CandidateTermFilter filter = FILTERS.get(index);
+			if (filter == null || filter.minDf != minDf || filter.maxDocPercentage != maxDocPercentage) {
+				filter = new CandidateTermFilter(index, minDf, maxDocPercentage);
+				FILTERS.put(index, filter);
+			}
+			return filter;
+		}
+	}
+
+	protected final BitSet candidates;
+
+	@Getter protected final int minDf;
+	@Getter protected final double maxDocPercentage;
+	@Getter protected final int maxDf;
+	@Getter protected final int numberOfCandidates;
+	@Getter protected final long buildTime;
+
+	protected CandidateTermFilter(final Index index, final int minDf, final double maxDocPercentage) throws IOException
+	{
+		final long start = System.currentTimeMillis();
+		this.minDf = minDf;
+		this.maxDocPercentage = maxDocPercentage;
+		// if a term appears in more than maxDocPercentage of documents, we ignore it
+		this.maxDf = (int) (maxDocPercentage * index.getCollectionStatistics().getNumberOfDocuments());
+		this.candidates = new BitSet(index.getCollectionStatistics().getNumberOfUniqueTerms());
+
+		final Iterator<Map.Entry<String, LexiconEntry>> iter = index.getLexicon().iterator();
+		while (iter.hasNext()) {
+			final LexiconEntry le = iter.next().getValue();
+			if (le.getDocumentFrequency() >= minDf && le.getDocumentFrequency() < maxDf)
+				this.candidates.set(le.getTermId());
+		}
+		if (iter instanceof Closeable)
+			((Closeable) iter).close();
+
+		this.numberOfCandidates = this.candidates.cardinality();
+		this.buildTime = System.currentTimeMillis() - start;
+		logger.info("Built PRF candidate term filter (mindf=" + minDf + ", maxdf=" + maxDf + "): "
+			+ numberOfCandidates + " candidate terms in " + buildTime + "ms, using " + getMemoryUsage() + " bytes");
+	}
+
+	/**
+	 * Returns true if the specified term can be used as a feedback candidate.
+	 *
+	 * @param termid the id of the term
+	 * @return true if the term's document frequency is within the allowed range
+	 */
+	public boolean accept(final int termid)
+	{
+		return candidates.get(termid);
+	}
+
+	/**
+	 * Returns the approximate memory used by this filter.
+	 *
+	 * @return the size in bytes of the underlying bitset
+	 */
+	public long getMemoryUsage()
+	{
+		return candidates.size() / Byte.SIZE;
+	}
+}
@@ -0,0 +1,652 @@
+package org.terrier.querying;
+
+import java.util.Arrays;
+
+import org.terrier.utility.ApplicationSetup;
+
+/**
+ * This class counts the document frequencies of terms, and their joint document frequencies with a
+ * set of query terms, over a sample of documents, as needed to compute the mutual information between
+ * query terms and candidate expansion terms. Each distinct term in the sample is assigned a dense slot,
+ * so that counts can be held in primitive arrays, and terms are mapped to their slots by an open-addressing
+ * table of slots. Subclasses determine how the joint document frequencies are stored.
+ * <p>
+ * A counter can be given a memory budget (see {@link #setMemoryBudget(long, Overflow)}), as the number of distinct
+ * terms of a sample of long documents can reach millions. When the estimated size of the counts exceeds the budget,
+ * the counter either drops the candidate terms occurring in the fewest documents, or stops counting new terms,
+ * depending on its {@link Overflow} policy.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>ax.cooccurrence - the implementation used by {@link #create(int[], int)}: <tt>dense</tt> (default) for
+ * {@link DenseCooccurrenceCounter} or <tt>bitset</tt> for {@link BitsetCooccurrenceCounter}</li>
+ * </ul>
+ */
+public abstract class CooccurrenceCounter
+{
+	/**
+	 * Creates the counter implementation selected by the <tt>ax.cooccurrence</tt> property.
+	 *
+	 * @param queryTerms the termids of the original query terms
+	 * @param numberOfDocuments the expected number of documents in the sample
+	 * @return a new counter
+	 */
+	public static CooccurrenceCounter create(final int[] queryTerms, final int numberOfDocuments)
+	{
+		final String engine = ApplicationSetup.getProperty("ax.cooccurrence", "dense");
+		switch (engine) {
+			case "dense":
+				return new DenseCooccurrenceCounter(queryTerms);
+			case "bitset":
+				return new BitsetCooccurrenceCounter(queryTerms, numberOfDocuments);
+			default:
+				throw new IllegalArgumentException("Unknown ax.cooccurrence " + engine + ", expected dense or bitset");
+		}
+	}
+
+	/**
+	 * What a counter does when the estimated size of its counts exceeds its memory budget.
+	 */
+	public enum Overflow
+	{
+		/**
+		 * drop the candidate terms occurring in the fewest documents, with their counts, until half of the budget is used;
+		 * if the budget cannot be met even so, new terms then stop being counted, as by {@link #TRUNCATE}
+		 */
+		PRUNE,
+		/** stop counting new terms, truncating the documents counted next to the terms already counted */
+		TRUNCATE;
+
+		/** Returns the policy of the specified name, e.g. <tt>prune</tt>. */
+		public static Overflow of(final String name)
+		{
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	protected final int[] queryTerms;
+	protected final int[] queryTermSlots;
+
+	protected int[] termids = new int[1024];
+	protected int[] documentFrequencies = new int[termids.length];
+	// slot -> 1 + the position of the last document in which the term occurred
+	protected int[] lastDocuments = new int[termids.length];
+	// hash of termid -> slot, probed linearly, -1 denoting an empty entry; at most half full
+	protected int[] table = newTable(2 * termids.length);
+	protected int numberOfTerms = 0;
+	protected int numberOfDocuments = 0;
+	protected long numberOfPairs = 0;
+
+	// the slots of the terms of the document being added, a scratch buffer not counted in the memory usage
+	protected int[] documentSlots = new int[1024];
+
+	// the memory budget, in bytes, or 0 if the counts are not bounded
+	protected long memoryBudget = 0;
+	protected Overflow overflow = Overflow.PRUNE;
+	// true once the budget is exceeded under the TRUNCATE policy
+	protected boolean truncating = false;
+	protected boolean overflowed = false;
+	protected long peakMemoryUsage = 0;
+	protected int numberOfPrunedTerms = 0;
+	protected long numberOfTruncatedPostings = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param queryTerms the termids of the original query terms
+	 */
+	protected CooccurrenceCounter(final int[] queryTerms)
+	{
+		this.queryTerms = queryTerms;
+		this.queryTermSlots = new int[queryTerms.length];
+		for (int q = 0; q < queryTerms.length; q++)
+			queryTermSlots[q] = getOrCreateSlot(queryTerms[q]);
+	}
+
+	/**
+	 * Counts the terms of a document.
+	 *
+	 * @param terms the distinct termids of the document
+	 */
+	public void addDocument(final int[] terms)
+	{
+		if (documentSlots.length < terms.length)
+			documentSlots = new int[Math.max(terms.length, 2 * documentSlots.length)];
+		final int document = numberOfDocuments++;
+		int length = 0;
+		for (int i = 0; i < terms.length; i++) {
+			final int slot = truncating ? getSlot(terms[i]) : getOrCreateSlot(terms[i]);
+			if (slot == -1) {
+				numberOfTruncatedPostings++;
+				continue;
+			}
+			documentSlots[length++] = slot;
+			documentFrequencies[slot]++;
+			lastDocuments[slot] = document + 1;
+		}
+		addDocumentSlots(document, documentSlots, length);
+		checkMemoryBudget();
+	}
+
+	/**
+	 * Counts documents that contain none of the query terms, given only the number of them containing
+	 * each term, as such documents contribute to the document frequencies but not to the joint document
+	 * frequencies. These documents are best added last, as they take positions in the sample.
+	 *
+	 * @param terms the termids occurring in the documents
+	 * @param frequencies the number of documents containing each term, aligned with terms
+	 * @param count the number of documents
+	 */
+	public void addDocumentsWithoutQueryTerms(final int[] terms, final int[] frequencies, final int count)
+	{
+		for (int i = 0; i < terms.length; i++) {
+			if (frequencies[i] == 0)
+				continue;
+			final int slot = truncating ? getSlot(terms[i]) : getOrCreateSlot(terms[i]);
+			if (slot == -1) {
+				numberOfTruncatedPostings += frequencies[i];
+				continue;
+			}
+			documentFrequencies[slot] += frequencies[i];
+		}
+		numberOfDocuments += count;
+		checkMemoryBudget();
+	}
+
+	/**
+	 * Records the joint occurrences of the terms of a document.
+	 *
+	 * @param document the position of the document in the sample
+	 * @param docSlots the slots of the distinct terms of the document
+	 * @param length the number of distinct terms of the document, i.e. of valid entries in docSlots
+	 */
+	protected abstract void addDocumentSlots(int document, int[] docSlots, int length);
+
+	/**
+	 * Returns the number of documents in which both a query term and another term occur.
+	 *
+	 * @param queryTerm the position of the query term, as passed to the constructor
+	 * @param slot the slot of the other term
+	 * @return the joint document frequency
+	 */
+	public abstract int getJointDocumentFrequency(int queryTerm, int slot);
+
+	/**
+	 * Returns the number of documents in which both terms occur. At least one of the two terms
+	 * must be a query term.
+	 *
+	 * @param termid1 the id of the first term
+	 * @param termid2 the id of the second term
+	 * @return the joint document frequency
+	 */
+	public int getJointDocumentFrequencyOfTerms(final int termid1, final int termid2)
+	{
+		int queryTerm = getQueryTerm(termid1);
+		int other = termid2;
+		if (queryTerm == -1) {
+			queryTerm = getQueryTerm(termid2);
+			other = termid1;
+		}
+		if (queryTerm == -1)
+			throw new IllegalArgumentException("Neither termid " + termid1 + " nor termid " + termid2 + " is a query term");
+		final int slot = getSlot(other);
+		return slot == -1 ? 0 : getJointDocumentFrequency(queryTerm, slot);
+	}
+
+	/** Returns the position of a query term, as passed to the constructor, or -1 if termid is not a query term. */
+	public int getQueryTerm(final int termid)
+	{
+		for (int q = 0; q < queryTerms.length; q++)
+			if (queryTerms[q] == termid)
+				return q;
+		return -1;
+	}
+
+	/** Returns the number of query terms. */
+	public int getNumberOfQueryTerms()
+	{
+		return queryTerms.length;
+	}
+
+	/** Returns the termid of a query term, given its position as passed to the constructor. */
+	public int getQueryTermId(final int queryTerm)
+	{
+		return queryTerms[queryTerm];
+	}
+
+	/** Returns the slot of a query term, given its position as passed to the constructor. */
+	public int getQueryTermSlot(final int queryTerm)
+	{
+		return queryTermSlots[queryTerm];
+	}
+
+	/** Returns true if the term in the specified slot occurs in the document being added. */
+	protected boolean occursIn(final int slot, final int document)
+	{
+		return lastDocuments[slot] == document + 1;
+	}
+
+	/** Returns the slot of a term, or -1 if it has not been seen. */
+	public int getSlot(final int termid)
+	{
+		return table[probe(termid)];
+	}
+
+	/** Returns the termid of the term in the specified slot. */
+	public int getTermId(final int slot)
+	{
+		return termids[slot];
+	}
+
+	/** Returns the number of documents of the sample containing the term in the specified slot. */
+	public int getDocumentFrequency(final int slot)
+	{
+		return documentFrequencies[slot];
+	}
+
+	/** Returns the number of documents of the sample containing the specified term. */
+	public int getDocumentFrequencyOfTerm(final int termid)
+	{
+		final int slot = getSlot(termid);
+		return slot == -1 ? 0 : documentFrequencies[slot];
+	}
+
+	/** Returns the number of slots, i.e. the number of distinct terms in the sample and query. */
+	public int getNumberOfTerms()
+	{
+		return numberOfTerms;
+	}
+
+	/** Returns the number of documents counted. */
+	public int getNumberOfDocuments()
+	{
+		return numberOfDocuments;
+	}
+
+	/** Returns the number of (query term, term) co-occurrences counted. */
+	public long getNumberOfPairs()
+	{
+		return numberOfPairs;
+	}
+
+	/** Returns true if the memory budget was exceeded while counting. */
+	public boolean hasOverflowed()
+	{
+		return overflowed;
+	}
+
+	/** Returns the policy applied when the memory budget is exceeded. */
+	public Overflow getOverflow()
+	{
+		return overflow;
+	}
+
+	/** Returns the largest estimated size of the counts, in bytes. */
+	public long getPeakMemoryUsage()
+	{
+		return peakMemoryUsage;
+	}
+
+	/** Returns the number of candidate terms dropped to meet the memory budget. */
+	public int getNumberOfPrunedTerms()
+	{
+		return numberOfPrunedTerms;
+	}
+
+	/** Returns the number of occurrences of terms in documents not counted to meet the memory budget. */
+	public long getNumberOfTruncatedPostings()
+	{
+		return numberOfTruncatedPostings;
+	}
+
+	/**
+	 * Bounds the estimated size of the counts. The query terms are always counted.
+	 *
+	 * @param bytes the memory budget, in bytes, or 0 if the counts are not bounded
+	 * @param overflow what to do when the budget is exceeded
+	 */
+	public void setMemoryBudget(final long bytes, final Overflow overflow)
+	{
+		this.memoryBudget = bytes;
+		this.overflow = overflow;
+	}
+
+	/**
+	 * Returns an estimate of the size of the counts, in bytes. The buffer holding the terms of the document being added
+	 * is not included, as its size depends on the longest document rather than on the counts, and pruning cannot shrink it.
+	 */
+	public long getMemoryUsage()
+	{
+		return 4L * (termids.length + documentFrequencies.length + lastDocuments.length + table.length)
+			+ getJointMemoryUsage();
+	}
+
+	/** Returns an estimate of the size of the joint document frequencies, in bytes. */
+	protected abstract long getJointMemoryUsage();
+
+	/** Applies the overflow policy if the memory budget is exceeded. Called once a document is counted. */
+	protected void checkMemoryBudget()
+	{
+		long usage = getMemoryUsage();
+		peakMemoryUsage = Math.max(peakMemoryUsage, usage);
+		if (memoryBudget <= 0 || usage <= memoryBudget || truncating)
+			return;
+		overflowed = true;
+		if (overflow == Overflow.TRUNCATE) {
+			truncating = true;
+			return;
+		}
+		// pruning down to half of the budget, so that it is not repeated for every document
+		for (int maxDf = 1; usage > memoryBudget / 2 && pruneTerms(maxDf); maxDf++)
+			usage = getMemoryUsage();
+		// the last pruning, which left no candidate term to drop, is not accounted for by the loop
+		usage = getMemoryUsage();
+		// no candidate term is left to drop, e.g. the slots cannot shrink below their minimum capacity, so pruning
+		// again after each document would free nothing: stop counting new terms instead
+		if (usage > memoryBudget)
+			truncating = true;
+	}
+
+	/**
+	 * Drops the candidate terms occurring in at most maxDf documents, along with their counts, and shrinks the
+	 * slots to those retained. The query terms are kept.
+	 *
+	 * @param maxDf the largest document frequency of the terms dropped
+	 * @return true if candidate terms remain that could be dropped next
+	 */
+	protected boolean pruneTerms(final int maxDf)
+	{
+		final int[] retained = new int[numberOfTerms];
+		int count = 0;
+		boolean remaining = false;
+		for (int slot = 0; slot < numberOfTerms; slot++) {
+			final boolean queryTerm = isQueryTermSlot(slot);
+			if (queryTerm || documentFrequencies[slot] > maxDf) {
+				retained[count++] = slot;
+				remaining |= ! queryTerm;
+			}
+		}
+		if (count == numberOfTerms)
+			return remaining;
+		numberOfPrunedTerms += numberOfTerms - count;
+		final int capacity = Math.max(1024, Integer.highestOneBit(Math.max(1, count - 1)) << 1);
+		retainSlots(retained, count, capacity);
+		final int[] newTermids = new int[capacity];
+		final int[] newDocumentFrequencies = new int[capacity];
+		final int[] newLastDocuments = new int[capacity];
+		for (int slot = 0; slot < count; slot++) {
+			newTermids[slot] = termids[retained[slot]];
+			newDocumentFrequencies[slot] = documentFrequencies[retained[slot]];
+			newLastDocuments[slot] = lastDocuments[retained[slot]];
+		}
+		for (int q = 0; q < queryTermSlots.length; q++)
+			queryTermSlots[q] = Arrays.binarySearch(retained, 0, count, queryTermSlots[q]);
+		termids = newTermids;
+		documentFrequencies = newDocumentFrequencies;
+		lastDocuments = newLastDocuments;
+		numberOfTerms = count;
+		rebuildTable();
+		return remaining;
+	}
+
+	protected boolean isQueryTermSlot(final int slot)
+	{
+		for (int querySlot : queryTermSlots)
+			if (querySlot == slot)
+				return true;
+		return false;
+	}
+
+	protected int getOrCreateSlot(final int termid)
+	{
+		int i = probe(termid);
+		if (table[i] != -1)
+			return table[i];
+		final int slot = numberOfTerms;
+		if (slot == termids.length) {
+			termids = Arrays.copyOf(termids, 2 * slot);
+			documentFrequencies = Arrays.copyOf(documentFrequencies, 2 * slot);
+			lastDocuments = Arrays.copyOf(lastDocuments, 2 * slot);
+			growSlots(2 * slot);
+			rebuildTable();
+			i = probe(termid);
+		}
+		termids[slot] = termid;
+		table[i] = slot;
+		numberOfTerms++;
+		return slot;
+	}
+
+	/** Returns the position of a term in the table, or of the empty entry where it would be inserted. */
+	protected int probe(final int termid)
+	{
+		final int mask = table.length - 1;
+		int h = termid * 0x9E3779B9;
+		int i = (h ^ (h >>> 16)) & mask;
+		while (table[i] != -1 && termids[table[i]] != termid)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	/** Reinserts all slots into a table twice as large as the capacity of the slots. */
+	protected void rebuildTable()
+	{
+		table = newTable(2 * termids.length);
+		for (int slot = 0; slot < numberOfTerms; slot++)
+			table[probe(termids[slot])] = slot;
+	}
+
+	static int[] newTable(final int size)
+	{
+		final int[] rtr = new int[size];
+		Arrays.fill(rtr, -1);
+		return rtr;
+	}
+
+	/**
+	 * Called when the number of slots exceeds the current capacity.
+	 *
+	 * @param capacity the new number of slots to support
+	 */
+	protected abstract void growSlots(int capacity);
+
+	/**
+	 * Called when slots are dropped, to move the joint counts of the slots retained to their new positions.
+	 *
+	 * @param retained the previous slot of each retained slot, in increasing order
+	 * @param count the number of slots retained
+	 * @param capacity the new number of slots to support
+	 */
+	protected abstract void retainSlots(int[] retained, int count, int capacity);
+
+	/**
+	 * This implementation records, for each query term, a dense array of joint document frequencies
+	 * indexed by slot. Only the (query term, document term) pairs of the query terms present in a document
+	 * are counted, rather than all pairs of terms in the document.
+	 */
+	public static class DenseCooccurrenceCounter extends CooccurrenceCounter
+	{
+		protected int[][] jointDocumentFrequencies;
+
+		public DenseCooccurrenceCounter(final int[] queryTerms)
+		{
+			super(queryTerms);
+			this.jointDocumentFrequencies = new int[queryTerms.length][termids.length];
+		}
+
+		@Override
+		protected void addDocumentSlots(final int document, final int[] docSlots, final int length)
+		{
+			for (int q = 0; q < queryTerms.length; q++) {
+				final int querySlot = queryTermSlots[q];
+				if (! occursIn(querySlot, document))
+					continue;
+				final int[] row = jointDocumentFrequencies[q];
+				for (int i = 0; i < length; i++)
+					row[docSlots[i]]++;
+				// a query term does not co-occur with itself
+				row[querySlot]--;
+				numberOfPairs += length - 1;
+			}
+		}
+
+		@Override
+		public int getJointDocumentFrequency(final int queryTerm, final int slot)
+		{
+			return jointDocumentFrequencies[queryTerm][slot];
+		}
+
+		@Override
+		protected void growSlots(final int capacity)
+		{
+			if (jointDocumentFrequencies == null)
+				return;
+			for (int q = 0; q < jointDocumentFrequencies.length; q++)
+				jointDocumentFrequencies[q] = Arrays.copyOf(jointDocumentFrequencies[q], capacity);
+		}
+
+		@Override
+		protected void retainSlots(final int[] retained, final int count, final int capacity)
+		{
+			for (int q = 0; q < jointDocumentFrequencies.length; q++) {
+				final int[] row = new int[capacity];
+				for (int slot = 0; slot < count; slot++)
+					row[slot] = jointDocumentFrequencies[q][retained[slot]];
+				jointDocumentFrequencies[q] = row;
+			}
+		}
+
+		@Override
+		protected long getJointMemoryUsage()
+		{
+			return jointDocumentFrequencies == null ? 0 : 4L * queryTerms.length * termids.length;
+		}
+	}
+
+	/**
+	 * This implementation holds the counts merged from the partial counts of several samples of documents, e.g.
+	 * from the shards of a collection (see {@link ShardedFeedback}), rather than counting documents itself. The
+	 * joint document frequencies are stored as by {@link DenseCooccurrenceCounter}.
+	 */
+	public static class MergedCooccurrenceCounter extends DenseCooccurrenceCounter
+	{
+		public MergedCooccurrenceCounter(final int[] queryTerms)
+		{
+			super(queryTerms);
+		}
+
+		/**
+		 * Adds the partial counts of a term.
+		 *
+		 * @param termid the id of the term
+		 * @param documentFrequency the number of documents of the partial sample containing the term
+		 * @param jointFrequencies the number of documents of the partial sample containing both each query term and the term
+		 */
+		public void addCounts(final int termid, final int documentFrequency, final int[] jointFrequencies)
+		{
+			final int slot = getOrCreateSlot(termid);
+			documentFrequencies[slot] += documentFrequency;
+			for (int q = 0; q < queryTerms.length; q++)
+				jointDocumentFrequencies[q][slot] += jointFrequencies[q];
+		}
+
+		/**
+		 * Adds the number of documents of a partial sample, once the counts of its terms are added.
+		 *
+		 * @param count the number of documents
+		 * @param pairs the number of (query term, term) co-occurrences counted in these documents
+		 */
+		public void addDocuments(final int count, final long pairs)
+		{
+			numberOfDocuments += count;
+			numberOfPairs += pairs;
+		}
+	}
+
+	/**
+	 * This implementation records, for each term, a bitset of the documents of the sample in which it
+	 * occurs. Joint document frequencies are obtained by counting the bits set in the intersection of
+	 * the bitsets of a query term and another term, which is efficient as the sample is small.
+	 */
+	public static class BitsetCooccurrenceCounter extends CooccurrenceCounter
+	{
+		// slot -> bitset of the documents containing that term, as words consecutive longs
+		protected long[] bits;
+		protected int words;
+
+		/**
+		 * Constructor
+		 *
+		 * @param queryTerms the termids of the original query terms
+		 * @param numberOfDocuments the expected number of documents in the sample. More can be added,
+		 * at the cost of resizing the bitsets.
+		 */
+		public BitsetCooccurrenceCounter(final int[] queryTerms, final int numberOfDocuments)
+		{
+			super(queryTerms);
+			this.words = Math.max(1, (numberOfDocuments + Long.SIZE - 1) / Long.SIZE);
+			this.bits = new long[termids.length * words];
+		}
+
+		@Override
+		protected void addDocumentSlots(final int document, final int[] docSlots, final int length)
+		{
+			// documents added without query terms can advance the position by more than doubling the bitsets covers
+			if (document >= words * Long.SIZE)
+				growWords(Math.max(2 * words, document / Long.SIZE + 1));
+			final int word = document / Long.SIZE;
+			final long mask = 1L << (document % Long.SIZE);
+			for (int i = 0; i < length; i++)
+				bits[docSlots[i] * words + word] |= mask;
+			for (int q = 0; q < queryTerms.length; q++)
+				if (occursIn(queryTermSlots[q], document))
+					numberOfPairs += length - 1;
+		}
+
+		@Override
+		public int getJointDocumentFrequency(final int queryTerm, final int slot)
+		{
+			final int querySlot = queryTermSlots[queryTerm];
+			// a query term does not co-occur with itself
+			if (slot == querySlot)
+				return 0;
+			final int offset1 = querySlot * words;
+			final int offset2 = slot * words;
+			int count = 0;
+			for (int w = 0; w < words; w++)
+				count += Long.bitCount(bits[offset1 + w] & bits[offset2 + w]);
+			return count;
+		}
+
+		@Override
+		protected void growSlots(final int capacity)
+		{
+			if (bits == null)
+				return;
+			bits = Arrays.copyOf(bits, capacity * words);
+		}
+
+		@Override
+		protected void retainSlots(final int[] retained, final int count, final int capacity)
+		{
+			final long[] newBits = new long[capacity * words];
+			for (int slot = 0; slot < count; slot++)
+				System.arraycopy(bits, retained[slot] * words, newBits, slot * words, words);
+			bits = newBits;
+		}
+
+		@Override
+		protected long getJointMemoryUsage()
+		{
+			return bits == null ? 0 : 8L * bits.length;
+		}
+
+		protected void growWords(final int newWords)
+		{
+			final long[] newBits = new long[termids.length * newWords];
+			for (int slot = 0; slot < numberOfTerms; slot++)
+				System.arraycopy(bits, slot * words, newBits, slot * newWords, words);
+			bits = newBits;
+			words = newWords;
+		}
+	}
+}
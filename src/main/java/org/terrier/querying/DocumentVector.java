@@ -0,0 +1,90 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.terrier.structures.DocumentIndexEntry;
+import org.terrier.structures.Index;
+import org.terrier.structures.postings.IterablePosting;
+
+import lombok.Getter;
+
+/**
+ * This class represents the decoded direct index postings of a document, as parallel arrays of termids
+ * and term frequencies, in the order that they appear in the direct index. Instances are shared,
+ * e.g. through the {@link DocumentVectorCache}, hence the arrays must not be modified.
+ */
+public class DocumentVector
+{
+	@Getter protected final int docid;
+	@Getter protected final int length;
+	protected final int[] termids;
+	protected final int[] frequencies;
+
+	public DocumentVector(final int docid, final int length, final int[] termids, final int[] frequencies)
+	{
+		this.docid = docid;
+		this.length = length;
+		this.termids = termids;
+		this.frequencies = frequencies;
+	}
+
+	/**
+	 * Decodes the direct index postings of a document.
+	 *
+	 * @param index the index to read the direct index from
+	 * @param docid the id of the document to read
+	 * @return the decoded document vector
+	 *
+	 * @throws IOException if there are problems in accessing the direct index
+	 */
+	public static DocumentVector read(final Index index, final int docid) throws IOException
+	{
+		final DocumentIndexEntry die = index.getDocumentIndex().getDocumentEntry(docid);
+		int[] termids = new int[Math.max(die.getNumberOfEntries(), 1)];
+		int[] frequencies = new int[termids.length];
+		int size = 0;
+		int length = 0;
+		final IterablePosting dp = index.getDirectIndex().getPostings(die);
+		while (dp.next() != IterablePosting.EOL) {
+			length = dp.getDocumentLength(); //this supports the terrier-lucene better.
+			if (size == termids.length) {
+				termids = Arrays.copyOf(termids, size * 2);
+				frequencies = Arrays.copyOf(frequencies, size * 2);
+			}
+			termids[size] = dp.getId();
+			frequencies[size] = dp.getFrequency();
+			size++;
+		}
+		dp.close();
+		if (size < termids.length) {
+			termids = Arrays.copyOf(termids, size);
+			frequencies = Arrays.copyOf(frequencies, size);
+		}
+		return new DocumentVector(docid, length, termids, frequencies);
+	}
+
+	/** Returns the number of unique terms in the document. */
+	public int size()
+	{
+		return termids.length;
+	}
+
+	/** Returns the termids of the document. The returned array must not be modified. */
+	public int[] getTermIds()
+	{
+		return termids;
+	}
+
+	/** Returns the term frequencies of the document, aligned with {@link #getTermIds()}. The returned array must not be modified. */
+	public int[] getFrequencies()
+	{
+		return frequencies;
+	}
+
+	/** Returns the approximate memory used by this document vector, in bytes. */
+	public int getMemoryUsage()
+	{
+		return 48 + 2 * (16 + Integer.BYTES * termids.length);
+	}
+}
@@ -0,0 +1,205 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.structures.Index;
+import org.terrier.utility.ApplicationSetup;
+
+import lombok.Getter;
+
+/**
+ * A thread-safe cache of decoded {@link DocumentVector}s, shared across queries for the life of an index.
+ * Popular documents often re-appear among the feedback documents of different queries (and among the
+ * random documents sampled by {@link AxiomaticQE}), so this avoids decoding the direct index again for them.
+ * The cache is bounded by the approximate memory used by the cached document vectors, evicting the least
+ * recently used ones.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>prf.vectorcache.bytes - memory budget of the cache in bytes, defaults to 64MB. 0 disables the cache.</li>
+ * <li>prf.decode.threads - number of threads used to decode the documents requested through {@link #getAll(int[])}
+ * concurrently, defaults to 0, i.e. documents are decoded sequentially by the calling thread. The direct index
+ * must support concurrent reads.</li>
+ * </ul>
+ */
+public class DocumentVectorCache
+{
+	protected static Logger logger = LoggerFactory.getLogger(DocumentVectorCache.class);
+
+	static final Map<Index, DocumentVectorCache> CACHES = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * Returns the document vector cache for the specified index, creating it if necessary.
+	 *
+	 * @param index the index whose direct index is to be cached
+	 * @return the shared cache for that index
+	 */
+	public static DocumentVectorCache of(final Index index)
+	{
+		synchronized (CACHES) {
+			DocumentVectorCache cache = CACHES.get(index);
+			if (cache == null) {
+				cache = new DocumentVectorCache(index, Long.parseLong(ApplicationSetup.getProperty("prf.vectorcache.bytes", String.valueOf(64L * 1024L * 1024L))));
+				CACHES.put(index, cache);
+			}
+			return cache;
+		}
+	}
+
+	static final SharedPool DECODING_POOL = new SharedPool("prf.decode.threads", 0, "prf-decode", "Decoding feedback documents");
+
+	/** Returns the shared pool used to decode documents concurrently, or null if documents should be decoded sequentially. */
+	static ExecutorService getDecodingPool()
+	{
+		return DECODING_POOL.get();
+	}
+
+	/** Discards the shared decoding pool, so that it is created again with the current <tt>prf.decode.threads</tt>. */
+	static void resetDecodingPool()
+	{
+		DECODING_POOL.reset();
+	}
+
+	protected final Index index;
+	@Getter protected final long maxBytes;
+	protected final Cache<Integer, DocumentVector> cache;
+
+	public DocumentVectorCache(final Index index, final long maxBytes)
+	{
+		this.index = index;
+		this.maxBytes = maxBytes;
+		this.cache = maxBytes > 0
+			? CacheBuilder.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher((Integer docid, DocumentVector dv) -> dv.getMemoryUsage())
+				.recordStats()
+				.build()
+			: null;
+		logger.debug("Document vector cache with a budget of " + maxBytes + " bytes");
+	}
+
+	/**
+	 * Returns the document vector of the specified document, decoding it from the direct index if not cached.
+	 *
+	 * @param docid the id of the document
+	 * @return the document vector
+	 *
+	 * @throws IOException if there are problems in accessing the direct index
+	 */
+	public DocumentVector get(final int docid) throws IOException
+	{
+		if (cache == null)
+			return DocumentVector.read(index, docid);
+		try {
+			return cache.get(docid, () -> DocumentVector.read(index, docid));
+		} catch (ExecutionException ee) {
+			throw SharedPool.unwrap(ee);
+		}
+	}
+
+	/**
+	 * Returns the document vectors of the specified documents, in the same order. If <tt>prf.decode.threads</tt>
+	 * is set, the documents that are not cached are decoded concurrently, otherwise this is equivalent to calling
+	 * {@link #get(int)} for each document in turn.
+	 *
+	 * @param docids the ids of the documents
+	 * @return the document vectors, aligned with docids
+	 *
+	 * @throws IOException if there are problems in accessing the direct index
+	 */
+	public DocumentVector[] getAll(final int[] docids) throws IOException
+	{
+		final DocumentVector[] rtr = new DocumentVector[docids.length];
+		final ExecutorService pool = getDecodingPool();
+		if (pool == null || docids.length < 2) {
+			for (int i = 0; i < docids.length; i++)
+				rtr[i] = get(docids[i]);
+			return rtr;
+		}
+
+		@SuppressWarnings("unchecked")
+		final Future<DocumentVector>[] decoding = new Future[docids.length];
+		for (int i = 0; i < docids.length; i++) {
+			final int docid = docids[i];
+			rtr[i] = cache == null ? null : cache.getIfPresent(docid);
+			if (rtr[i] == null)
+				decoding[i] = pool.submit(() -> DocumentVector.read(index, docid));
+		}
+		try {
+			for (int i = 0; i < docids.length; i++) {
+				if (decoding[i] == null)
+					continue;
+				rtr[i] = SharedPool.await(decoding[i]);
+				if (cache != null)
+					cache.put(docids[i], rtr[i]);
+			}
+		} finally {
+			for (Future<DocumentVector> f : decoding)
+				if (f != null)
+					f.cancel(false);
+		}
+		return rtr;
+	}
+
+	/**
+	 * Returns the document vectors of the specified documents, in the same order, stopping early if the
+	 * deadline is nearly expired. Documents are decoded sequentially, so that the earlier documents are
+	 * always preferred, and no decoding is left running past the deadline.
+	 *
+	 * @param docids the ids of the documents, by decreasing priority
+	 * @param deadline the deadline of the expansion
+	 * @return the document vectors of a prefix of docids, possibly empty
+	 *
+	 * @throws IOException if there are problems in accessing the direct index
+	 */
+	public DocumentVector[] getAll(final int[] docids, final ExpansionDeadline deadline) throws IOException
+	{
+		if (! deadline.isSet())
+			return getAll(docids);
+		final DocumentVector[] rtr = new DocumentVector[docids.length];
+		int i = 0;
+		for (; i < docids.length && ! deadline.isNearlyExpired(); i++)
+			rtr[i] = get(docids[i]);
+		return i == docids.length ? rtr : Arrays.copyOf(rtr, i);
+	}
+
+	/** Returns the number of lookups served from the cache. */
+	public long getHits()
+	{
+		return cache == null ? 0 : cache.stats().hitCount();
+	}
+
+	/** Returns the number of lookups that required decoding the direct index. */
+	public long getMisses()
+	{
+		return cache == null ? 0 : cache.stats().missCount();
+	}
+
+	/** Returns the number of document vectors evicted to respect the memory budget. */
+	public long getEvictions()
+	{
+		return cache == null ? 0 : cache.stats().evictionCount();
+	}
+
+	@Override
+	public String toString()
+	{
+		if (cache == null)
+			return "DocumentVectorCache(disabled)";
+		final CacheStats stats = cache.stats();
+		return "DocumentVectorCache(budget=" + maxBytes + " bytes, size=" + cache.size() + ", hits=" + stats.hitCount()
+			+ ", misses=" + stats.missCount() + ", evictions=" + stats.evictionCount() + ")";
+	}
+}
@@ -0,0 +1,250 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.matching.MatchingQueryTerms;
+import org.terrier.matching.MatchingQueryTerms.MatchingTerm;
+import org.terrier.matching.QueryResultSet;
+import org.terrier.matching.ResultSet;
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.matching.models.WeightingModelFactory;
+import org.terrier.structures.Index;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.utility.ApplicationSetup;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+/**
+ * This class implements a rerank-only second pass for query expansion: rather than matching the expanded
+ * query against the whole inverted index, the expanded query is used to score only the top documents of
+ * the first-pass result set, using their direct index postings (which, for the feedback documents, are
+ * already in the {@link DocumentVectorCache}).
+ * <p>
+ * The latency saved by a rerank is the estimated duration of the second pass it replaces, less the duration of the
+ * rerank. The duration of a second pass is estimated from the number of postings of the expanded query terms, at the
+ * average cost per posting of the full second passes already run on the same index, i.e. by the requests that are not
+ * reranked. A reranked request with the <tt>rm.rerank.calibrate</tt> control on also runs the full second pass, whose
+ * results are discarded, to measure its cost: such a request is slower than one that is not reranked, so only a few
+ * requests should be calibrated, e.g. when no other request runs a full second pass.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>rm.rerank.depth - number of first-pass documents to rerank, defaults to 1000</li>
+ * </ul>
+ * <p><b>Controls:</b>
+ * <ul>
+ * <li>rm.rerank - set to on to rerank the first-pass results instead of running a second retrieval</li>
+ * <li>rm.rerank.depth - overrides the property for a request</li>
+ * <li>rm.rerank.calibrate - set to on to also run, and measure, the full second pass of a reranked request</li>
+ * <li>wmodel - the weighting model used to score the expanded query, defaults to the default weighting model of the manager,
+ * as for the second pass</li>
+ * <li>c - the parameter of the weighting model, if any</li>
+ * <li>rm.rerank.time - set to the duration of the rerank, in ms</li>
+ * <li>rm.rerank.saved - set to the estimated latency saved, in ms, unless no full second pass has been measured on the index</li>
+ * </ul>
+ */
+public class ExpandedQueryReranker
+{
+	protected static Logger logger = LoggerFactory.getLogger(ExpandedQueryReranker.class);
+
+	/** The total duration and number of postings of the full second passes measured on an index. */
+	static class SecondPassCost
+	{
+		long passes;
+		long nanos;
+		long postings;
+
+		synchronized void record(final long nanos, final long postings)
+		{
+			this.passes++;
+			this.nanos += nanos;
+			this.postings += postings;
+		}
+
+		/** Returns the estimated duration of a second pass over some postings, or -1 if no second pass was measured. */
+		synchronized long estimate(final long postings)
+		{
+			if (passes == 0)
+				return -1;
+			return this.postings == 0 ? nanos / passes : (long) ((double) nanos / this.postings * postings);
+		}
+	}
+
+	static final Map<Index, SecondPassCost> COSTS = Collections.synchronizedMap(new WeakHashMap<>());
+
+	static SecondPassCost costOf(final Index index)
+	{
+		return COSTS.computeIfAbsent(index, i -> new SecondPassCost());
+	}
+
+	/**
+	 * Returns true if the specified request asks for a rerank-only second pass.
+	 *
+	 * @param rq the search request
+	 * @return true if the rm.rerank control is on
+	 */
+	public static boolean isEnabled(final Request rq)
+	{
+		if (! rq.hasControl("rm.rerank"))
+			return false;
+		final String value = rq.getControl("rm.rerank");
+		return value.equals("on") || Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * Returns true if the full second pass of a reranked request should also be run, to measure its cost.
+	 *
+	 * @param rq the search request
+	 * @return true if the rm.rerank.calibrate control is on
+	 */
+	public static boolean isCalibrating(final Request rq)
+	{
+		if (! rq.hasControl("rm.rerank.calibrate"))
+			return false;
+		final String value = rq.getControl("rm.rerank.calibrate");
+		return value.equals("on") || Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * Records the duration of the full second pass of a request, whose matching query terms have been expanded,
+	 * to estimate the latency saved by the reranks of later requests.
+	 *
+	 * @param rq the search request
+	 * @param nanos the duration of its second pass, in nanoseconds
+	 */
+	public static void recordSecondPass(final Request rq, final long nanos)
+	{
+		final LexiconCache lexicon = LexiconCache.of(rq.getIndex());
+		long postings = 0;
+		for (MatchingTerm mt : rq.getMatchingQueryTerms()) {
+			final LexiconEntry le = lexicon.getLexiconEntry(mt.getKey().toString());
+			if (le != null)
+				postings += le.getDocumentFrequency();
+		}
+		costOf(rq.getIndex()).record(nanos, postings);
+	}
+
+	/**
+	 * Returns the name of the weighting model of a request: its <tt>wmodel</tt> control, which the manager
+	 * sets from its default controls if the request did not, or otherwise the <tt>trec.model</tt> property.
+	 *
+	 * @param rq the search request
+	 * @return the name of the weighting model
+	 */
+	static String getWeightingModel(final Request rq)
+	{
+		return rq.hasControl("wmodel")
+			? rq.getControl("wmodel")
+			: ApplicationSetup.getProperty("trec.model", "DPH");
+	}
+
+	/**
+	 * Scores the expanded query of a request over the top documents of its first-pass result set, and
+	 * sets the reranked documents as the result set of the request.
+	 *
+	 * @param rq the search request, whose matching query terms have already been expanded
+	 * @param firstPass the result set of the first-pass retrieval
+	 *
+	 * @throws IOException if there are problems in accessing the index
+	 */
+	public static void rerank(final Request rq, final ResultSet firstPass) throws IOException
+	{
+		final long start = System.nanoTime();
+		final Index index = rq.getIndex();
+		final int depth = Integer.parseInt(rq.hasControl("rm.rerank.depth")
+			? rq.getControl("rm.rerank.depth")
+			: ApplicationSetup.getProperty("rm.rerank.depth", "1000"));
+		final String wmodel = getWeightingModel(rq);
+
+		// prepare one weighting model per expanded query term
+		final MatchingQueryTerms mqt = rq.getMatchingQueryTerms();
+		final Int2IntOpenHashMap termid2position = new Int2IntOpenHashMap(mqt.size());
+		termid2position.defaultReturnValue(-1);
+		final WeightingModel[] models = new WeightingModel[mqt.size()];
+		long postings = 0;
+		final LexiconCache lexicon = LexiconCache.of(index);
+		for (MatchingTerm mt : mqt) {
+			final LexiconEntry le = lexicon.getLexiconEntry(mt.getKey().toString());
+			if (le == null || termid2position.containsKey(le.getTermId()))
+				continue;
+			final WeightingModel model = WeightingModelFactory.newInstance(wmodel);
+			if (rq.hasControl("c"))
+				model.setParameter(Double.parseDouble(rq.getControl("c")));
+			model.setCollectionStatistics(index.getCollectionStatistics());
+			model.setEntryStatistics(le);
+			model.setKeyFrequency(mt.getValue().getWeight());
+			model.prepare();
+			final int position = termid2position.size();
+			models[position] = model;
+			termid2position.put(le.getTermId(), position);
+			postings += le.getDocumentFrequency();
+		}
+
+		// score the expanded query over the first-pass documents
+		final int numDocs = Math.min(depth, firstPass.getResultSize());
+		final DocumentVector[] dvs = DocumentVectorCache.of(index).getAll(Arrays.copyOf(firstPass.getDocids(), numDocs));
+		final int[] docids = new int[numDocs];
+		final double[] scores = new double[numDocs];
+		final short[] occurrences = new short[numDocs];
+		int matched = 0;
+		for (DocumentVector dv : dvs) {
+			final int[] termids = dv.getTermIds();
+			final int[] frequencies = dv.getFrequencies();
+			double score = 0;
+			// as for the second pass, the bits of the first 16 query terms matched by the document
+			short occurrence = 0;
+			boolean matches = false;
+			for (int i = 0; i < termids.length; i++) {
+				final int position = termid2position.get(termids[i]);
+				if (position == -1)
+					continue;
+				score += models[position].score(frequencies[i], dv.getLength());
+				if (position < 16)
+					occurrence |= (short) (1 << position);
+				matches = true;
+			}
+			if (! matches)
+				continue;
+			docids[matched] = dv.getDocid();
+			scores[matched] = score;
+			occurrences[matched] = occurrence;
+			matched++;
+		}
+
+		// sort by descending score, breaking ties by docid
+		final Integer[] order = new Integer[matched];
+		for (int i = 0; i < matched; i++)
+			order[i] = i;
+		Arrays.sort(order, (i1, i2) -> {
+			int cmp = Double.compare(scores[i2], scores[i1]);
+			return cmp != 0 ? cmp : Integer.compare(docids[i1], docids[i2]);
+		});
+		final int[] sortedDocids = new int[matched];
+		final double[] sortedScores = new double[matched];
+		final short[] sortedOccurrences = new short[matched];
+		for (int i = 0; i < matched; i++) {
+			sortedDocids[i] = docids[order[i]];
+			sortedScores[i] = scores[order[i]];
+			sortedOccurrences[i] = occurrences[order[i]];
+		}
+		rq.setResultSet(new QueryResultSet(sortedDocids, sortedScores, sortedOccurrences));
+
+		final long time = System.nanoTime() - start;
+		final long secondPass = costOf(index).estimate(postings);
+		rq.setControl("rm.rerank.time", String.format("%.3f", time / 1e6d));
+		if (secondPass == -1) {
+			logger.info("Reranked " + numDocs + " first-pass documents with " + termid2position.size() + " expanded query terms in "
+				+ String.format("%.3f", time / 1e6d) + "ms");
+			return;
+		}
+		rq.setControl("rm.rerank.saved", String.format("%.3f", (secondPass - time) / 1e6d));
+		logger.info("Reranked " + numDocs + " first-pass documents with " + termid2position.size() + " expanded query terms in "
+			+ String.format("%.3f", time / 1e6d) + "ms, saving approximately " + String.format("%.3f", (secondPass - time) / 1e6d)
+			+ "ms of a second pass over " + postings + " postings");
+	}
+}
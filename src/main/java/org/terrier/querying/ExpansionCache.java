@@ -0,0 +1,402 @@
+package org.terrier.querying;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.matching.MatchingQueryTerms;
+import org.terrier.matching.MatchingQueryTerms.MatchingTerm;
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.utility.ApplicationSetup;
+
+/**
+ * A process-wide cache of query expansions, so that the expansion of a frequent query is only computed once.
+ * Expansions are keyed by the expansion model, the normalised query terms and their weights, the parameters of
+ * the model, the weighting model of the first pass (the <tt>wmodel</tt> and <tt>c</tt> controls), and a
+ * fingerprint of the index. The first-pass ranking is assumed to be determined by these. The cache has an
+ * in-memory tier, evicting the least recently used expansions, and an optional on-disk tier, with one file per
+ * expansion, which survives restarts. The on-disk tier is unbounded unless <tt>prf.expansioncache.dir.size</tt>
+ * is set, in which case the least recently used files are deleted, otherwise its folder must be cleaned manually.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>prf.expansioncache.size - maximum number of expansions in memory, defaults to 0</li>
+ * <li>prf.expansioncache.dir - folder of the on-disk tier, if any. The cache is disabled if neither tier is configured.</li>
+ * <li>prf.expansioncache.dir.size - maximum number of expansions on disk, defaults to 0 for no limit</li>
+ * </ul>
+ * <p><b>Controls:</b>
+ * <ul>
+ * <li>prf.expansioncache.bypass - set to on to neither use nor update the cache for a request</li>
+ * <li>prf.expansioncache - set by the cache to <tt>hit</tt>, <tt>diskhit</tt> or <tt>miss</tt> for each request that used it</li>
+ * </ul>
+ */
+public class ExpansionCache
+{
+	protected static Logger logger = LoggerFactory.getLogger(ExpansionCache.class);
+
+	/**
+	 * This class represents a cached expansion, as parallel arrays of terms, termids (or -1 if unknown) and weights.
+	 */
+	public static class CachedExpansion
+	{
+		protected final String[] terms;
+		protected final int[] termids;
+		protected final double[] weights;
+
+		public CachedExpansion(final String[] terms, final int[] termids, final double[] weights)
+		{
+			this.terms = terms;
+			this.termids = termids;
+			this.weights = weights;
+		}
+
+		/** Returns the number of expansion terms. */
+		public int size()
+		{
+			return terms.length;
+		}
+
+		public String getTerm(final int i)
+		{
+			return terms[i];
+		}
+
+		public int getTermId(final int i)
+		{
+			return termids[i];
+		}
+
+		public double getWeight(final int i)
+		{
+			return weights[i];
+		}
+	}
+
+	static ExpansionCache instance = null;
+	static boolean initialised = false;
+
+	/**
+	 * Returns the shared expansion cache.
+	 *
+	 * @return the cache, or null if it is not configured
+	 */
+	public static synchronized ExpansionCache get()
+	{
+		if (! initialised) {
+			final long size = Long.parseLong(ApplicationSetup.getProperty("prf.expansioncache.size", "0"));
+			final String dir = ApplicationSetup.getProperty("prf.expansioncache.dir", "");
+			final long diskSize = Long.parseLong(ApplicationSetup.getProperty("prf.expansioncache.dir.size", "0"));
+			if (size > 0 || dir.length() > 0)
+				instance = new ExpansionCache(size, dir.length() > 0 ? Paths.get(dir) : null, diskSize);
+			initialised = true;
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns true if the specified request asks not to use the cache.
+	 *
+	 * @param rq the search request
+	 * @return true if the prf.expansioncache.bypass control is on
+	 */
+	public static boolean isBypassed(final Request rq)
+	{
+		if (! rq.hasControl("prf.expansioncache.bypass"))
+			return false;
+		final String value = rq.getControl("prf.expansioncache.bypass");
+		return value.equals("on") || Boolean.parseBoolean(value);
+	}
+
+	// identifies the in-memory indices of this process, which have no location
+	static final String PROCESS = UUID.randomUUID().toString();
+	static final AtomicLong NEXT_INDEX = new AtomicLong();
+	static final Map<Index, Long> INDICES = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * Returns a fingerprint of an index, made of its location, if on disk, and its collection statistics.
+	 * An index not on disk is identified by its class and an id unique to this process instead, so that
+	 * the expansions of distinct in-memory indices, or of those of an earlier run, are never shared.
+	 *
+	 * @param index the index
+	 * @return the fingerprint
+	 */
+	public static String fingerprint(final Index index)
+	{
+		final CollectionStatistics cs = index.getCollectionStatistics();
+		final String location = index instanceof IndexOnDisk
+			? ((IndexOnDisk) index).getPath() + "/" + ((IndexOnDisk) index).getPrefix()
+			: index.getClass().getName() + "#" + PROCESS + "/" + INDICES.computeIfAbsent(index, i -> NEXT_INDEX.incrementAndGet());
+		return location + ":" + cs.getNumberOfDocuments() + ":" + cs.getNumberOfTokens() + ":" + cs.getNumberOfUniqueTerms()
+			+ ":" + cs.getNumberOfPointers();
+	}
+
+	/**
+	 * Returns the cache key of an expansion.
+	 *
+	 * @param index the index used for the expansion
+	 * @param model the name of the expansion model
+	 * @param mqt the original query
+	 * @param parameters the parameters of the expansion model, e.g. "fbDocs=10,fbTerms=20"
+	 * @param rq the search request, whose first-pass weighting model controls are part of the key
+	 * @return the key
+	 */
+	public static String key(final Index index, final String model, final MatchingQueryTerms mqt, final String parameters, final Request rq)
+	{
+		final List<String> terms = new ArrayList<>();
+		for (MatchingTerm mt : mqt)
+			terms.add(mt.getKey().toString() + "^" + mt.getValue().getWeight());
+		terms.sort(null);
+		return model + "|" + String.join(" ", terms) + "|" + parameters
+			+ "|wmodel=" + (rq.hasControl("wmodel") ? rq.getControl("wmodel") : "")
+			+ ",c=" + (rq.hasControl("c") ? rq.getControl("c") : "")
+			+ "|" + fingerprint(index);
+	}
+
+	protected final Cache<String, CachedExpansion> memory;
+	protected final Path dir;
+	protected final long diskSize;
+	// the number of expansions on disk, approximate if several processes share the folder
+	protected final AtomicLong diskFiles = new AtomicLong();
+	protected final AtomicLong hits = new AtomicLong();
+	protected final AtomicLong diskHits = new AtomicLong();
+	protected final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Constructor, with no limit on the number of expansions on disk.
+	 *
+	 * @param size the maximum number of expansions kept in memory, 0 for no in-memory tier
+	 * @param dir the folder of the on-disk tier, or null for no on-disk tier
+	 */
+	public ExpansionCache(final long size, final Path dir)
+	{
+		this(size, dir, 0);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param size the maximum number of expansions kept in memory, 0 for no in-memory tier
+	 * @param dir the folder of the on-disk tier, or null for no on-disk tier
+	 * @param diskSize the maximum number of expansions kept on disk, 0 for no limit
+	 */
+	public ExpansionCache(final long size, final Path dir, final long diskSize)
+	{
+		this.memory = size > 0 ? CacheBuilder.newBuilder().maximumSize(size).build() : null;
+		this.dir = dir;
+		this.diskSize = diskSize;
+		if (dir != null) {
+			try {
+				Files.createDirectories(dir);
+				diskFiles.set(listFiles().size());
+			} catch (IOException ioe) {
+				throw new IllegalArgumentException("Cannot create expansion cache folder " + dir, ioe);
+			}
+		}
+		logger.info("Expansion cache of up to " + size + " expansions in memory" + (dir != null ? " and "
+			+ (diskSize > 0 ? "up to " + diskSize : "unlimited") + " on disk in " + dir : ""));
+	}
+
+	/**
+	 * Looks up an expansion, first in memory then on disk, and records the outcome as the
+	 * <tt>prf.expansioncache</tt> control of the request.
+	 *
+	 * @param key the key of the expansion
+	 * @param rq the search request
+	 * @return the cached expansion, or null if not cached
+	 */
+	public CachedExpansion lookup(final String key, final Request rq)
+	{
+		CachedExpansion rtr = memory != null ? memory.getIfPresent(key) : null;
+		if (rtr != null) {
+			hits.incrementAndGet();
+			rq.setControl("prf.expansioncache", "hit");
+			return rtr;
+		}
+		rtr = readFromDisk(key);
+		if (rtr != null) {
+			diskHits.incrementAndGet();
+			if (memory != null)
+				memory.put(key, rtr);
+			rq.setControl("prf.expansioncache", "diskhit");
+			return rtr;
+		}
+		misses.incrementAndGet();
+		rq.setControl("prf.expansioncache", "miss");
+		return null;
+	}
+
+	/**
+	 * Records an expansion in both tiers.
+	 *
+	 * @param key the key of the expansion
+	 * @param expansion the expansion
+	 */
+	public void put(final String key, final CachedExpansion expansion)
+	{
+		if (memory != null)
+			memory.put(key, expansion);
+		if (dir != null)
+			writeToDisk(key, expansion);
+	}
+
+	protected Path getFile(final String key)
+	{
+		try {
+			final StringBuilder name = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8)))
+				name.append(String.format("%02x", b));
+			return dir.resolve(name.append(".exp").toString());
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	protected CachedExpansion readFromDisk(final String key)
+	{
+		if (dir == null)
+			return null;
+		final Path file = getFile(key);
+		if (! Files.exists(file))
+			return null;
+		try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			// the key is stored to detect collisions of its hash
+			if (! key.equals(br.readLine()))
+				return null;
+			final int size = Integer.parseInt(br.readLine());
+			// the least recently used files are deleted first
+			if (diskSize > 0)
+				Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			final String[] terms = new String[size];
+			final int[] termids = new int[size];
+			final double[] weights = new double[size];
+			for (int i = 0; i < size; i++) {
+				final String[] parts = br.readLine().split("\t", 3);
+				termids[i] = Integer.parseInt(parts[0]);
+				weights[i] = Double.parseDouble(parts[1]);
+				terms[i] = parts[2];
+			}
+			return new CachedExpansion(terms, termids, weights);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Ignoring unreadable cached expansion " + file, e);
+			return null;
+		}
+	}
+
+	protected void writeToDisk(final String key, final CachedExpansion expansion)
+	{
+		final Path file = getFile(key);
+		try {
+			final Path tmp = Files.createTempFile(dir, "expansion", ".tmp");
+			try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))) {
+				pw.println(key);
+				pw.println(expansion.size());
+				for (int i = 0; i < expansion.size(); i++)
+					pw.println(expansion.getTermId(i) + "\t" + expansion.getWeight(i) + "\t" + expansion.getTerm(i));
+			}
+			final boolean added = ! Files.exists(file);
+			// concurrent writers of the same expansion write the same content, so the last one wins
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			if (added && diskSize > 0 && diskFiles.incrementAndGet() > diskSize)
+				evictFromDisk();
+		} catch (IOException ioe) {
+			logger.warn("Could not write cached expansion " + file, ioe);
+		}
+	}
+
+	/** Returns the files of the expansions on disk. */
+	protected List<Path> listFiles() throws IOException
+	{
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.filter(f -> f.getFileName().toString().endsWith(".exp")).collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Deletes the least recently used expansions on disk, down to 90% of the maximum number of expansions,
+	 * so that the folder is not listed again for each next expansion written.
+	 */
+	protected synchronized void evictFromDisk() throws IOException
+	{
+		final List<Path> files = listFiles();
+		final long target = diskSize - diskSize / 10;
+		if (files.size() <= target) {
+			diskFiles.set(files.size());
+			return;
+		}
+		final Map<Path, FileTime> times = new HashMap<>();
+		for (Path f : files) {
+			try {
+				times.put(f, Files.getLastModifiedTime(f));
+			} catch (NoSuchFileException nsfe) {
+				// deleted concurrently, e.g. by another process sharing the folder
+				times.put(f, FileTime.fromMillis(0));
+			}
+		}
+		files.sort(Comparator.comparing(times::get));
+		int deleted = 0;
+		for (int i = 0; i < files.size() - target; i++)
+			if (Files.deleteIfExists(files.get(i)))
+				deleted++;
+		diskFiles.set(files.size() - deleted);
+		logger.debug("Deleted " + deleted + " least recently used expansions from " + dir);
+	}
+
+	/** Returns the number of lookups served from memory. */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/** Returns the number of lookups served from disk. */
+	public long getDiskHits()
+	{
+		return diskHits.get();
+	}
+
+	/** Returns the number of lookups for expansions that were not cached. */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/** Returns the proportion of lookups served from either tier. */
+	public double getHitRate()
+	{
+		final long served = hits.get() + diskHits.get();
+		final long total = served + misses.get();
+		return total == 0 ? 0 : (double) served / total;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ExpansionCache(size=" + (memory != null ? memory.size() : 0) + ", hits=" + hits.get() + ", diskhits=" + diskHits.get()
+			+ ", misses=" + misses.get() + ", hitrate=" + String.format("%.3f", getHitRate()) + ")";
+	}
+}
@@ -0,0 +1,162 @@
+package org.terrier.querying;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.utility.ApplicationSetup;
+
+/**
+ * This class represents the time budget of the expansion of a request. The budget starts when the
+ * expansion starts, and does not include the second matching pass. When only the reserved part of
+ * the budget remains, the expansion models stop decoding documents and degrade gracefully:
+ * <ul>
+ * <li><tt>partial</tt> - only the feedback documents decoded so far are used</li>
+ * <li><tt>reducedsample</tt> - AxiomaticQE uses fewer random (or background sample) documents</li>
+ * <li><tt>unexpanded</tt> - no feedback document could be decoded in time, and the original query is kept</li>
+ * </ul>
+ * The degradations are recorded as the comma-separated <tt>prf.degraded</tt> control of the request,
+ * and as counters of its {@link PrfMetrics}. Degraded expansions are not added to the {@link ExpansionCache}.
+ * The time is read from the clock of the request, i.e. its <tt>prf.clock</tt> context object (see {@link #clockOf(Request)}),
+ * or {@link System#nanoTime()} by default, which tests may replace to expire deadlines deterministically.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>prf.deadline - default time budget of an expansion in milliseconds, defaults to 0, i.e. no budget</li>
+ * <li>prf.deadline.reserve - fraction of the budget kept for the stages that follow the decoding of documents, defaults to 0.2</li>
+ * </ul>
+ * <p><b>Controls:</b>
+ * <ul>
+ * <li>prf.deadline - the time budget of the expansion of this request in milliseconds, overriding the property</li>
+ * <li>prf.degraded - set to the degradations that occurred, if any</li>
+ * </ul>
+ */
+public class ExpansionDeadline
+{
+	protected static Logger logger = LoggerFactory.getLogger(ExpansionDeadline.class);
+
+	public static final String PARTIAL = "partial";
+	public static final String REDUCED_SAMPLE = "reducedsample";
+	public static final String UNEXPANDED = "unexpanded";
+
+	/** A deadline that never expires, and is never degraded, which is shared by all requests without a time budget. */
+	public static final ExpansionDeadline NONE = new ExpansionDeadline(null, null, Long.MAX_VALUE, 0, System::nanoTime);
+
+	/** The key of the context object of a request holding the clock of its deadline, a {@link LongSupplier} of nanoseconds. */
+	public static final String CLOCK_KEY = "prf.clock";
+
+	/**
+	 * Returns the clock of the deadline of a request: its <tt>prf.clock</tt> context object if set, otherwise {@link System#nanoTime()}.
+	 *
+	 * @param rq the search request
+	 * @return the clock, in nanoseconds
+	 */
+	public static LongSupplier clockOf(final Request rq)
+	{
+		final LongSupplier clock = (LongSupplier) rq.getContextObject(CLOCK_KEY);
+		return clock != null ? clock : System::nanoTime;
+	}
+
+	/**
+	 * Starts the deadline of the expansion of a request, using its prf.deadline control or property.
+	 *
+	 * @param rq the search request
+	 * @param metrics the metrics of the expansion, where degradations are counted
+	 * @param clock the clock of the deadline, in nanoseconds
+	 * @return the deadline, or {@link #NONE} if the request has no time budget
+	 */
+	public static ExpansionDeadline of(final Request rq, final PrfMetrics metrics, final LongSupplier clock)
+	{
+		final double budget = getBudget(rq);
+		if (budget <= 0)
+			return NONE;
+		final long budgetNanos = (long) (budget * 1e6d);
+		final double reserve = Double.parseDouble(ApplicationSetup.getProperty("prf.deadline.reserve", "0.2"));
+		return new ExpansionDeadline(rq, metrics, budgetNanos, (long) (budgetNanos * reserve), clock);
+	}
+
+	/** Returns true if the expansion of a request has a time budget, set by its prf.deadline control or property. */
+	public static boolean hasBudget(final Request rq)
+	{
+		return getBudget(rq) > 0;
+	}
+
+	/** Returns the time budget of the expansion of a request in milliseconds, 0 or less if it has none. */
+	static double getBudget(final Request rq)
+	{
+		return Double.parseDouble(rq.hasControl("prf.deadline")
+			? rq.getControl("prf.deadline")
+			: ApplicationSetup.getProperty("prf.deadline", "0"));
+	}
+
+	protected final Request rq;
+	protected final PrfMetrics metrics;
+	protected final long deadline;
+	protected final long reserveNanos;
+	protected final LongSupplier clock;
+	protected final Set<String> degradations = new LinkedHashSet<>();
+
+	protected ExpansionDeadline(final Request rq, final PrfMetrics metrics, final long budgetNanos, final long reserveNanos,
+		final LongSupplier clock)
+	{
+		this.rq = rq;
+		this.metrics = metrics;
+		this.clock = clock;
+		this.deadline = budgetNanos == Long.MAX_VALUE ? Long.MAX_VALUE : clock.getAsLong() + budgetNanos;
+		this.reserveNanos = reserveNanos;
+	}
+
+	/** Returns true if this expansion has a time budget. */
+	public boolean isSet()
+	{
+		return deadline != Long.MAX_VALUE;
+	}
+
+	/** Returns the remaining time budget in nanoseconds, which is negative once the deadline has passed. */
+	public long getRemainingNanos()
+	{
+		return isSet() ? deadline - clock.getAsLong() : Long.MAX_VALUE;
+	}
+
+	/** Returns true if no more than the reserved part of the time budget remains, i.e. no more documents should be decoded. */
+	public boolean isNearlyExpired()
+	{
+		return isSet() && getRemainingNanos() < reserveNanos;
+	}
+
+	/** Returns the time left to decode documents in nanoseconds, i.e. until only the reserved part of the time budget remains. */
+	public long getRemainingDecodingNanos()
+	{
+		return isSet() ? getRemainingNanos() - reserveNanos : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Records a degradation of the expansion. An expansion without a time budget, e.g. one of {@link #NONE},
+	 * is never degraded, so this does nothing.
+	 *
+	 * @param degradation one of {@link #PARTIAL}, {@link #REDUCED_SAMPLE} or {@link #UNEXPANDED}
+	 */
+	public void degrade(final String degradation)
+	{
+		if (! isSet() || ! degradations.add(degradation))
+			return;
+		if (rq != null)
+			rq.setControl("prf.degraded", String.join(",", degradations));
+		if (metrics != null)
+			metrics.count("degraded." + degradation, 1);
+		logger.info("Expansion" + (rq != null ? " of query " + rq.getQueryID() : "") + " degraded to meet its deadline: " + degradation);
+	}
+
+	/** Returns true if the expansion was degraded. */
+	public boolean isDegraded()
+	{
+		return ! degradations.isEmpty();
+	}
+
+	/** Returns true if the expansion was degraded in the specified way. */
+	public boolean hasDegraded(final String degradation)
+	{
+		return degradations.contains(degradation);
+	}
+}
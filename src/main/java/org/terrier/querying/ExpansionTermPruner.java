@@ -0,0 +1,142 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.structures.Index;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.utility.ApplicationSetup;
+
+import lombok.Getter;
+
+/**
+ * This class prunes the expansion terms of a query that carry little of its weight, as the cost of the second
+ * matching pass grows with the number of query terms and the length of their posting lists. The terms are ranked by
+ * their weight, optionally penalised by the fraction of documents in which they occur, i.e. by the length of their
+ * posting list, as <tt>weight * (1 - df/N)^penalty</tt>. The smallest prefix of that ranking whose weights sum to the
+ * configured fraction of the total weight is kept. The terms of the original query are always kept, and ranked first.
+ * The weights of the kept terms are not changed.
+ * <p>
+ * For each query, the fraction of the weight retained, the number of terms kept and the number of postings of the
+ * pruned terms, i.e. the postings the second pass does not need to read, are recorded as the <tt>prf.pruned</tt>
+ * control of the request, and as the <tt>prunedterms</tt> and <tt>postingssaved</tt> counters of its {@link PrfMetrics}.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>prf.prune.mass - fraction of the total weight of the expansion terms to keep, defaults to 1, i.e. no pruning</li>
+ * <li>prf.prune.dfpenalty - exponent of the penalty of terms with long posting lists, defaults to 0, i.e. no penalty</li>
+ * <li>prf.prune.minterms - minimum number of terms to keep, defaults to 1</li>
+ * </ul>
+ * <p><b>Controls:</b>
+ * <ul>
+ * <li>prf.prune.mass, prf.prune.dfpenalty - override the properties for a request</li>
+ * <li>prf.pruned - set to the outcome of the pruning</li>
+ * </ul>
+ */
+public class ExpansionTermPruner
+{
+	protected static Logger logger = LoggerFactory.getLogger(ExpansionTermPruner.class);
+
+	/**
+	 * Returns the pruner of the expansion terms of a request.
+	 *
+	 * @param rq the search request
+	 * @param metrics the metrics of the expansion, where the outcome is counted
+	 * @return the pruner, or null if the expansion terms of the request are not to be pruned
+	 */
+	public static ExpansionTermPruner of(final Request rq, final PrfMetrics metrics)
+	{
+		final double mass = Double.parseDouble(rq.hasControl("prf.prune.mass")
+			? rq.getControl("prf.prune.mass")
+			: ApplicationSetup.getProperty("prf.prune.mass", "1"));
+		if (mass >= 1)
+			return null;
+		final double dfPenalty = Double.parseDouble(rq.hasControl("prf.prune.dfpenalty")
+			? rq.getControl("prf.prune.dfpenalty")
+			: ApplicationSetup.getProperty("prf.prune.dfpenalty", "0"));
+		final int minTerms = Integer.parseInt(ApplicationSetup.getProperty("prf.prune.minterms", "1"));
+		return new ExpansionTermPruner(rq, metrics, mass, dfPenalty, minTerms);
+	}
+
+	protected final Request rq;
+	protected final PrfMetrics metrics;
+	@Getter protected final double mass;
+	@Getter protected final double dfPenalty;
+	@Getter protected final int minTerms;
+
+	public ExpansionTermPruner(final Request rq, final PrfMetrics metrics, final double mass, final double dfPenalty, final int minTerms)
+	{
+		this.rq = rq;
+		this.metrics = metrics;
+		this.mass = mass;
+		this.dfPenalty = dfPenalty;
+		this.minTerms = minTerms;
+	}
+
+	/**
+	 * Selects the expansion terms to keep.
+	 *
+	 * @param terms the expansion terms
+	 * @param weights the weight of each term, aligned with terms
+	 * @param original whether each term is in the original query, aligned with terms
+	 * @param index the index where the document frequencies of the terms are looked up
+	 * @param shards the shards where the document frequencies of the terms are looked up instead, or null
+	 * @return whether each term is kept, aligned with terms
+	 *
+	 * @throws IOException if there are problems in accessing the shards
+	 */
+	public boolean[] prune(final String[] terms, final double[] weights, final boolean[] original, final Index index,
+		final ShardedFeedback shards) throws IOException
+	{
+		final int[] dfs;
+		final double numberOfDocuments;
+		if (shards != null) {
+			dfs = shards.getDocumentFrequencies(terms);
+			numberOfDocuments = shards.getNumberOfDocuments();
+		} else {
+			final LexiconCache lexicon = LexiconCache.of(index);
+			dfs = new int[terms.length];
+			for (int i = 0; i < terms.length; i++) {
+				final LexiconEntry le = lexicon.getLexiconEntry(terms[i]);
+				dfs[i] = le == null ? 0 : le.getDocumentFrequency();
+			}
+			numberOfDocuments = index.getCollectionStatistics().getNumberOfDocuments();
+		}
+
+		double total = 0;
+		final double[] scores = new double[terms.length];
+		for (int i = 0; i < terms.length; i++) {
+			total += weights[i];
+			scores[i] = dfPenalty == 0 ? weights[i] : weights[i] * Math.pow(1 - dfs[i] / numberOfDocuments, dfPenalty);
+		}
+		// the original query terms first, then by decreasing penalised weight, keeping the order of ties
+		final Integer[] order = new Integer[terms.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (i, j) -> original[i] != original[j] ? (original[i] ? -1 : 1) : Double.compare(scores[j], scores[i]));
+
+		final boolean[] keep = new boolean[terms.length];
+		double retained = 0;
+		int kept = 0;
+		for (int i : order) {
+			if (! original[i] && kept >= minTerms && retained >= mass * total)
+				break;
+			keep[i] = true;
+			retained += weights[i];
+			kept++;
+		}
+		long postingsSaved = 0;
+		for (int i = 0; i < terms.length; i++)
+			if (! keep[i])
+				postingsSaved += dfs[i];
+
+		final double retainedMass = total > 0 ? retained / total : 1;
+		rq.setControl("prf.pruned", String.format("mass=%.4f,terms=%d/%d,postingssaved=%d", retainedMass, kept, terms.length, postingsSaved));
+		metrics.count("prunedterms", terms.length - kept);
+		metrics.count("postingssaved", postingsSaved);
+		logger.info("Kept " + kept + " of " + terms.length + " expansion terms of query " + rq.getQueryID() + ", retaining "
+			+ String.format("%.4f", retainedMass) + " of their weight and saving " + postingsSaved + " postings");
+		return keep;
+	}
+}
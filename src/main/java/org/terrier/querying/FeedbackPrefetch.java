@@ -0,0 +1,228 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.matching.ResultSet;
+import org.terrier.structures.Index;
+import org.terrier.utility.ApplicationSetup;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import lombok.Getter;
+
+/**
+ * This process starts decoding the top-ranked documents of a request in the background as soon as its first-pass
+ * result set is known, rather than when the expansion model asks for them. It should directly follow the first-pass
+ * matching in <tt>querying.processes</tt>, e.g. <tt>localmatching:LocalManager$ApplyLocalMatching,prefetch:FeedbackPrefetch,rm3:RM3</tt>,
+ * and be enabled by the <tt>prefetch</tt> control. The document vectors are decoded through the {@link DocumentVectorCache}
+ * of the index into a {@link Buffer}, attached to the request, from which RM1, RM3 and AxiomaticQE take their feedback
+ * documents in rank order, waiting for those not decoded yet. A {@link FeedbackVectorStore} that the model can use is
+ * still preferred, as reading it is cheaper than waiting.
+ * <p>As the process only starts once the first-pass matching has returned, decoding does not overlap with the matching
+ * itself, only with what the request does before the model needs the documents, e.g. an expansion cache lookup or the
+ * candidate term filter. With a single model directly following it, the gain is mostly that the documents are decoded
+ * on <tt>prf.prefetch.threads</tt> threads, while the model would otherwise decode them one after another.
+ * <p>The number of documents prefetched is read from the request, as the model is only known once it runs; the model
+ * then tells the buffer which documents it needs through {@link Buffer#retain(int[])}, so that the others, e.g. those
+ * beyond its feedback documents, or all of them if its feedback documents are not the top-ranked ones, are not decoded.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>prf.prefetch.documents - number of top-ranked documents to prefetch, which can be overridden for a request by
+ * the control of the same name, defaults to <tt>expansion.documents</tt>, i.e. the number of feedback documents of
+ * RM1, RM3 and AxiomaticQE unless they are given another one</li>
+ * <li>prf.prefetch.threads - number of threads decoding prefetched documents, shared by all requests, defaults to 2</li>
+ * </ul>
+ */
+public class FeedbackPrefetch implements Process
+{
+	protected static Logger logger = LoggerFactory.getLogger(FeedbackPrefetch.class);
+
+	public static final String CONTEXT_KEY = "prf.prefetch";
+
+	/**
+	 * The feedback documents prefetched for a request, in the course of being decoded.
+	 */
+	public static class Buffer
+	{
+		@Getter protected final Index index;
+		// docid -> document vector being decoded
+		protected final Int2ObjectMap<Future<DocumentVector>> vectors;
+
+		/**
+		 * Starts decoding documents.
+		 *
+		 * @param index the index of the documents
+		 * @param docids the ids of the documents, by decreasing priority
+		 * @param pool the threads decoding the documents
+		 */
+		public Buffer(final Index index, final int[] docids, final ExecutorService pool)
+		{
+			this.index = index;
+			this.vectors = new Int2ObjectOpenHashMap<>(docids.length);
+			final DocumentVectorCache cache = DocumentVectorCache.of(index);
+			for (int docid : docids)
+				if (! vectors.containsKey(docid))
+					vectors.put(docid, pool.submit(() -> cache.get(docid)));
+		}
+
+		/** Returns the number of documents prefetched. */
+		public int size()
+		{
+			return vectors.size();
+		}
+
+		/** Returns true if the specified document is prefetched. */
+		public boolean contains(final int docid)
+		{
+			return vectors.containsKey(docid);
+		}
+
+		/** Returns how many of the specified documents are prefetched. */
+		public int count(final int[] docids)
+		{
+			int prefetched = 0;
+			for (int docid : docids)
+				if (vectors.containsKey(docid))
+					prefetched++;
+			return prefetched;
+		}
+
+		/**
+		 * Returns the document vectors of the specified documents, in the same order, waiting for the prefetched
+		 * ones to be decoded. The others are decoded together through {@link DocumentVectorCache#getAll(int[], ExpansionDeadline)},
+		 * i.e. concurrently if <tt>prf.decode.threads</tt> is set, while the prefetched ones are still being decoded.
+		 * If the deadline becomes nearly expired, the document vectors obtained so far are returned.
+		 *
+		 * @param docids the ids of the documents, by decreasing priority
+		 * @param deadline the deadline of the expansion
+		 * @return the document vectors of a prefix of docids, all of them unless the deadline is nearly expired
+		 *
+		 * @throws IOException if there are problems in accessing the direct index
+		 */
+		public DocumentVector[] getAll(final int[] docids, final ExpansionDeadline deadline) throws IOException
+		{
+			final int[] misses = new int[docids.length - count(docids)];
+			int m = 0;
+			for (int docid : docids)
+				if (! vectors.containsKey(docid))
+					misses[m++] = docid;
+			final DocumentVector[] decoded = misses.length == 0
+				? new DocumentVector[0]
+				: DocumentVectorCache.of(index).getAll(misses, deadline);
+
+			final DocumentVector[] rtr = new DocumentVector[docids.length];
+			int i = 0;
+			m = 0;
+			try {
+				for (; i < docids.length; i++) {
+					final Future<DocumentVector> decoding = vectors.get(docids[i]);
+					if (decoding == null) {
+						// the misses decoded before the deadline are a prefix of them
+						if (m == decoded.length)
+							break;
+						rtr[i] = decoded[m++];
+					} else if (! deadline.isSet() || decoding.isDone()) {
+						rtr[i] = SharedPool.await(decoding);
+					} else {
+						rtr[i] = SharedPool.await(decoding, Math.max(0, deadline.getRemainingDecodingNanos()));
+					}
+				}
+			} catch (TimeoutException te) {
+				// the remaining documents are left to decode in the background, e.g. for the cache
+			}
+			return i == docids.length ? rtr : Arrays.copyOf(rtr, i);
+		}
+
+		/**
+		 * Stops decoding the prefetched documents that the expansion does not need, and forgets them.
+		 *
+		 * @param docids the ids of the documents needed by the expansion
+		 * @return how many of the specified documents are prefetched
+		 */
+		public int retain(final int[] docids)
+		{
+			final IntOpenHashSet needed = new IntOpenHashSet(docids);
+			final ObjectIterator<Int2ObjectMap.Entry<Future<DocumentVector>>> it = vectors.int2ObjectEntrySet().iterator();
+			while (it.hasNext()) {
+				final Int2ObjectMap.Entry<Future<DocumentVector>> entry = it.next();
+				if (! needed.contains(entry.getIntKey())) {
+					entry.getValue().cancel(false);
+					it.remove();
+				}
+			}
+			return vectors.size();
+		}
+
+		/** Stops decoding the documents not decoded yet, e.g. if the expansion did not need them. */
+		public void cancel()
+		{
+			for (Future<DocumentVector> decoding : vectors.values())
+				decoding.cancel(false);
+		}
+	}
+
+	static final SharedPool PREFETCH_POOL = new SharedPool("prf.prefetch.threads", 2, "prf-prefetch", "Prefetching feedback documents");
+
+	/** Returns the shared pool of the threads decoding prefetched documents. */
+	static ExecutorService getPrefetchPool()
+	{
+		return PREFETCH_POOL.get();
+	}
+
+	/** Returns the number of documents to prefetch for the specified request. */
+	static int getFeedbackDocuments(final Request rq)
+	{
+		final String documents = rq.hasControl("prf.prefetch.documents")
+			? rq.getControl("prf.prefetch.documents")
+			: ApplicationSetup.getProperty("prf.prefetch.documents", "");
+		return documents.length() > 0 ? Integer.parseInt(documents) : ApplicationSetup.EXPANSION_DOCUMENTS;
+	}
+
+	/**
+	 * Starts prefetching documents for a request, attaching the buffer to the request.
+	 *
+	 * @param rq the search request
+	 * @param index the index of the documents
+	 * @param docids the ids of the documents, by decreasing priority
+	 * @return the buffer of the documents
+	 */
+	public static Buffer start(final Request rq, final Index index, final int[] docids)
+	{
+		final Buffer buffer = new Buffer(index, docids, getPrefetchPool());
+		rq.setContextObject(CONTEXT_KEY, buffer);
+		return buffer;
+	}
+
+	/**
+	 * Returns the documents prefetched for a request.
+	 *
+	 * @param rq the search request
+	 * @param index the index from which the documents are needed
+	 * @return the buffer of the documents, or null if no document was prefetched from that index
+	 */
+	public static Buffer of(final Request rq, final Index index)
+	{
+		final Buffer buffer = (Buffer) rq.getContextObject(CONTEXT_KEY);
+		return buffer != null && buffer.getIndex() == index ? buffer : null;
+	}
+
+	/** Starts prefetching the top-ranked documents of the first-pass result set of the request. */
+	@Override
+	public void process(final Manager manager, final Request rq)
+	{
+		final ResultSet rs = rq.getResultSet();
+		if (rs == null || rs.getResultSize() == 0 || rq.getIndex() == null)
+			return;
+		final int numDocs = Math.min(rs.getResultSize(), getFeedbackDocuments(rq));
+		start(rq, rq.getIndex(), Arrays.copyOf(rs.getDocids(), numDocs));
+		logger.debug("Prefetching " + numDocs + " feedback documents of query " + rq.getQueryID());
+	}
+}
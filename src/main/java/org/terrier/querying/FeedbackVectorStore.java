@@ -0,0 +1,231 @@
+package org.terrier.querying;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.utility.ApplicationSetup;
+
+import lombok.Getter;
+
+/**
+ * This class provides read access to a compact store of the document vectors used for pseudo-relevance feedback,
+ * as built by {@link FeedbackVectorStoreBuilder}. Unlike the direct index, the store has no fields or blocks, needs
+ * no document index lookup, and holds the termids and frequencies of each document as plain int arrays at a fixed
+ * offset, so that a document is read with a bulk copy from the memory-mapped file rather than decoded. The terms
+ * may have been filtered by document frequency when building the store, as {@link CandidateTermFilter} does.
+ * The file is named <tt>prefix.fbvec</tt>, next to the other files of the index. Its layout is:
+ * <ul>
+ * <li>a header of 6 ints: magic number, version, number of documents, minimum and maximum document frequency
+ * of the terms kept (0 and Integer.MAX_VALUE if unfiltered), and the size in bytes of the largest document</li>
+ * <li>numberOfDocuments ints: the length of each document</li>
+ * <li>numberOfDocuments + 1 longs: the index of the first entry of each document</li>
+ * <li>for each document, its n termids, followed by their n frequencies</li>
+ * </ul>
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>prf.vectorstore - set to false to ignore the store of an index, defaults to true</li>
+ * </ul>
+ */
+public class FeedbackVectorStore
+{
+	protected static Logger logger = LoggerFactory.getLogger(FeedbackVectorStore.class);
+
+	static final int MAGIC = 0x46425653;
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 6 * Integer.BYTES;
+	static final int ENTRY_BYTES = 2 * Integer.BYTES;
+	static final String EXTENSION = ".fbvec";
+	// the file is mapped in segments, each overlapping the next by the largest document, so that no document straddles two segments
+	static final long SEGMENT_BYTES = 1L << 30;
+
+	static final Map<Index, FeedbackVectorStore> STORES = Collections.synchronizedMap(new WeakHashMap<>());
+	// index -> last modification time of a store file that was rejected, so that it is not opened again until rebuilt
+	static final Map<Index, Long> REJECTED = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * Returns the filename of the feedback vector store of an index.
+	 *
+	 * @param index the index
+	 * @return the path of the store file
+	 */
+	public static String getFilename(final IndexOnDisk index)
+	{
+		return index.getPath() + File.separator + index.getPrefix() + EXTENSION;
+	}
+
+	/**
+	 * Returns the feedback vector store of the specified index, opening it if necessary. An index without a
+	 * store is checked again on each call, so that a store built while the index is in use is picked up.
+	 *
+	 * @param index the index
+	 * @return the store, or null if the index is not on disk, has no store, or prf.vectorstore is false
+	 *
+	 * @throws IOException if there are problems in reading the store
+	 */
+	public static FeedbackVectorStore of(final Index index) throws IOException
+	{
+		if (! Boolean.parseBoolean(ApplicationSetup.getProperty("prf.vectorstore", "true")))
+			return null;
+		synchronized (STORES) {
+			FeedbackVectorStore store = STORES.get(index);
+			if (store != null || ! (index instanceof IndexOnDisk))
+				return store;
+			final File file = new File(getFilename((IndexOnDisk) index));
+			if (! file.exists() || Long.valueOf(file.lastModified()).equals(REJECTED.get(index)))
+				return null;
+			store = new FeedbackVectorStore(file.getPath());
+			if (store.getNumberOfDocuments() != index.getCollectionStatistics().getNumberOfDocuments()) {
+				logger.warn("Ignoring feedback vector store " + file + ", as it has "
+					+ store.getNumberOfDocuments() + " documents rather than " + index.getCollectionStatistics().getNumberOfDocuments());
+				REJECTED.put(index, file.lastModified());
+				return null;
+			}
+			STORES.put(index, store);
+			return store;
+		}
+	}
+
+	protected final MappedByteBuffer[] segments;
+	@Getter protected final int numberOfDocuments;
+	@Getter protected final int minDf;
+	@Getter protected final int maxDf;
+	protected final long lengthsOffset;
+	protected final long offsetsOffset;
+	protected final long entriesOffset;
+
+	public FeedbackVectorStore(final String filename) throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(filename, "r"); FileChannel channel = raf.getChannel()) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (header.hasRemaining() && channel.read(header) != -1);
+			header.flip();
+			if (header.remaining() < HEADER_BYTES || header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != VERSION)
+				throw new IOException(filename + " is not a feedback vector store of version " + VERSION);
+			this.numberOfDocuments = header.getInt(2 * Integer.BYTES);
+			this.minDf = header.getInt(3 * Integer.BYTES);
+			this.maxDf = header.getInt(4 * Integer.BYTES);
+			final long overlap = Math.max(header.getInt(5 * Integer.BYTES), Long.BYTES);
+			if (overlap > Integer.MAX_VALUE - SEGMENT_BYTES)
+				throw new IOException("A document of " + filename + " is too large to be mapped");
+
+			final long size = channel.size();
+			this.segments = new MappedByteBuffer[(int) Math.max(1, (size + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+			for (int s = 0; s < segments.length; s++) {
+				final long start = s * SEGMENT_BYTES;
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, SEGMENT_BYTES + overlap));
+			}
+		}
+		this.lengthsOffset = HEADER_BYTES;
+		this.offsetsOffset = lengthsOffset + (long) Integer.BYTES * numberOfDocuments;
+		this.entriesOffset = offsetsOffset + (long) Long.BYTES * (numberOfDocuments + 1);
+		logger.info("Opened feedback vector store " + filename + " of " + numberOfDocuments + " documents"
+			+ (isFiltered() ? " with terms of document frequency in [" + minDf + ", " + maxDf + ")" : ""));
+	}
+
+	/** Returns true if some terms were left out of the document vectors when building the store. */
+	public boolean isFiltered()
+	{
+		return minDf > 1 || maxDf != Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Returns true if the store holds all the terms accepted by a candidate term filter, i.e. if the
+	 * store was built with a filter that is no stricter. Its document vectors then give the same
+	 * feedback documents as the direct index once filtered.
+	 *
+	 * @param filter the candidate term filter
+	 * @return true if the store can be used with that filter
+	 */
+	public boolean covers(final CandidateTermFilter filter)
+	{
+		return minDf <= filter.getMinDf() && maxDf >= filter.getMaxDf();
+	}
+
+	/**
+	 * Returns the document vector of a document.
+	 *
+	 * @param docid the id of the document
+	 * @return the document vector
+	 */
+	public DocumentVector get(final int docid)
+	{
+		final long first = getLong(offsetsOffset + (long) Long.BYTES * docid);
+		final int size = (int) (getLong(offsetsOffset + (long) Long.BYTES * (docid + 1)) - first);
+		final long position = entriesOffset + first * ENTRY_BYTES;
+		final ByteBuffer segment = segments[(int) (position / SEGMENT_BYTES)].duplicate();
+		segment.position((int) (position % SEGMENT_BYTES));
+		final IntBuffer entries = segment.asIntBuffer();
+		final int[] termids = new int[size];
+		final int[] frequencies = new int[size];
+		entries.get(termids);
+		entries.get(frequencies);
+		return new DocumentVector(docid, getInt(lengthsOffset + (long) Integer.BYTES * docid), termids, frequencies);
+	}
+
+	/**
+	 * Returns the document vectors of the specified documents, in the same order.
+	 *
+	 * @param docids the ids of the documents
+	 * @return the document vectors, aligned with docids
+	 */
+	public DocumentVector[] getAll(final int[] docids)
+	{
+		final DocumentVector[] rtr = new DocumentVector[docids.length];
+		for (int i = 0; i < docids.length; i++)
+			rtr[i] = get(docids[i]);
+		return rtr;
+	}
+
+	/**
+	 * Returns the document vectors of the specified documents, in the same order, stopping early if the
+	 * deadline is nearly expired, as {@link DocumentVectorCache#getAll(int[], ExpansionDeadline)} does.
+	 *
+	 * @param docids the ids of the documents, by decreasing priority
+	 * @param deadline the deadline of the expansion
+	 * @return the document vectors of a prefix of docids, possibly empty
+	 */
+	public DocumentVector[] getAll(final int[] docids, final ExpansionDeadline deadline)
+	{
+		if (! deadline.isSet())
+			return getAll(docids);
+		final DocumentVector[] rtr = new DocumentVector[docids.length];
+		int i = 0;
+		for (; i < docids.length && ! deadline.isNearlyExpired(); i++)
+			rtr[i] = get(docids[i]);
+		return i == docids.length ? rtr : Arrays.copyOf(rtr, i);
+	}
+
+	protected int getInt(final long position)
+	{
+		return segments[(int) (position / SEGMENT_BYTES)].getInt((int) (position % SEGMENT_BYTES));
+	}
+
+	protected long getLong(final long position)
+	{
+		return segments[(int) (position / SEGMENT_BYTES)].getLong((int) (position % SEGMENT_BYTES));
+	}
+
+	/** Writes the header of a feedback vector store. */
+	static void writeHeader(final ByteBuffer header, final int numberOfDocuments, final int minDf, final int maxDf, final int maxDocumentBytes)
+	{
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(numberOfDocuments);
+		header.putInt(minDf);
+		header.putInt(maxDf);
+		header.putInt(maxDocumentBytes);
+	}
+}
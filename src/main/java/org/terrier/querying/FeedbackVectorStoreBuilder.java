@@ -0,0 +1,142 @@
+package org.terrier.querying;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.utility.ApplicationSetup;
+
+/**
+ * This class builds the {@link FeedbackVectorStore} of an index, reading the direct index once. By default, only
+ * the candidate expansion terms of RM1 and RM3 are kept, as selected by the <tt>prf.mindf</tt> and <tt>prf.maxdp</tt>
+ * properties, which makes the store much smaller than the direct index. AxiomaticQE counts the co-occurrences of all
+ * terms, so it only uses a store built without filtering.
+ * <p>
+ * Usage: <tt>bin/terrier org.terrier.querying.FeedbackVectorStoreBuilder</tt>, using the index denoted by the
+ * <tt>terrier.index.path</tt> and <tt>terrier.index.prefix</tt> properties.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>prf.vectorstore.filter - set to false to keep all terms, e.g. for AxiomaticQE, defaults to true</li>
+ * <li>prf.mindf, prf.maxdp - the document frequency range of the terms kept, see {@link CandidateTermFilter}</li>
+ * </ul>
+ */
+public class FeedbackVectorStoreBuilder
+{
+	protected static Logger logger = LoggerFactory.getLogger(FeedbackVectorStoreBuilder.class);
+
+	protected final IndexOnDisk index;
+	protected final CandidateTermFilter filter;
+
+	/**
+	 * Constructor
+	 *
+	 * @param index the index to build the store of
+	 * @param filter the filter of the terms to keep, or null to keep all terms
+	 */
+	public FeedbackVectorStoreBuilder(final IndexOnDisk index, final CandidateTermFilter filter)
+	{
+		this.index = index;
+		this.filter = filter;
+	}
+
+	/**
+	 * Builds the store, writing it to {@link FeedbackVectorStore#getFilename(IndexOnDisk)}. The store is written to a
+	 * temporary file, then moved into place, so that a request opening the store while it is built never reads a
+	 * partially written file.
+	 *
+	 * @throws IOException if there are problems in reading the index or writing the store
+	 */
+	public void build() throws IOException
+	{
+		final long start = System.currentTimeMillis();
+		final int numberOfDocuments = index.getCollectionStatistics().getNumberOfDocuments();
+		final int[] lengths = new int[numberOfDocuments];
+		final long[] offsets = new long[numberOfDocuments + 1];
+		final String filename = FeedbackVectorStore.getFilename(index);
+		final Path temporary = Paths.get(filename + ".tmp");
+		final long headerBytes = FeedbackVectorStore.HEADER_BYTES + (long) Integer.BYTES * numberOfDocuments
+			+ (long) Long.BYTES * (numberOfDocuments + 1);
+		long postings = 0;
+		int maxDocumentBytes = 0;
+		try (RandomAccessFile raf = new RandomAccessFile(temporary.toFile(), "rw"); FileChannel channel = raf.getChannel()) {
+			channel.truncate(0);
+			channel.position(headerBytes);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1024 * 1024));
+			long entries = 0;
+			int[] termids = new int[0];
+			int[] frequencies = new int[0];
+			for (int docid = 0; docid < numberOfDocuments; docid++) {
+				offsets[docid] = entries;
+				final DocumentVector dv = DocumentVector.read(index, docid);
+				lengths[docid] = dv.getLength();
+				postings += dv.size();
+				if (termids.length < dv.size()) {
+					termids = new int[dv.size()];
+					frequencies = new int[dv.size()];
+				}
+				int size = 0;
+				for (int i = 0; i < dv.size(); i++) {
+					if (filter != null && ! filter.accept(dv.getTermIds()[i]))
+						continue;
+					termids[size] = dv.getTermIds()[i];
+					frequencies[size] = dv.getFrequencies()[i];
+					size++;
+				}
+				for (int i = 0; i < size; i++)
+					out.writeInt(termids[i]);
+				for (int i = 0; i < size; i++)
+					out.writeInt(frequencies[i]);
+				entries += size;
+				maxDocumentBytes = Math.max(maxDocumentBytes, size * FeedbackVectorStore.ENTRY_BYTES);
+			}
+			offsets[numberOfDocuments] = entries;
+			out.flush();
+
+			final ByteBuffer header = ByteBuffer.allocate(FeedbackVectorStore.HEADER_BYTES);
+			FeedbackVectorStore.writeHeader(header, numberOfDocuments,
+				filter != null ? filter.getMinDf() : 0,
+				filter != null ? filter.getMaxDf() : Integer.MAX_VALUE,
+				maxDocumentBytes);
+			header.flip();
+			channel.position(0);
+			while (header.hasRemaining())
+				channel.write(header);
+			out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1024 * 1024));
+			for (int length : lengths)
+				out.writeInt(length);
+			for (long offset : offsets)
+				out.writeLong(offset);
+			out.flush();
+			channel.force(true);
+			logger.info("Wrote " + entries + " of " + postings + " postings of " + numberOfDocuments + " documents to " + filename
+				+ " (" + channel.size() + " bytes) in " + (System.currentTimeMillis() - start) + "ms");
+		} catch (IOException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		Files.move(temporary, Paths.get(filename), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		final IndexOnDisk index = IndexOnDisk.createIndex();
+		if (index == null) {
+			logger.error("Could not load index: " + IndexOnDisk.getLastIndexLoadError());
+			return;
+		}
+		final boolean filter = Boolean.parseBoolean(ApplicationSetup.getProperty("prf.vectorstore.filter", "true"));
+		new FeedbackVectorStoreBuilder(index, filter ? CandidateTermFilter.of(index) : null).build();
+		index.close();
+	}
+}
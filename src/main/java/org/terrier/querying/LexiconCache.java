@@ -0,0 +1,201 @@
+package org.terrier.querying;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.structures.Index;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.utility.ApplicationSetup;
+
+/**
+ * A thread-safe cache of lexicon entries, shared across queries for the life of an index, which resolves termids
+ * to terms and statistics, and terms to termids and statistics. Expansion models resolve the termids of their
+ * expansion terms, and the terms of the original queries, through this cache rather than the lexicon, which is
+ * random I/O for an index on disk. The cache is bounded by its number of entries, evicting the least recently used ones.
+ * As expansion terms are mostly the candidate terms occurring in many documents, the cache can be warmed with the
+ * candidate terms (see {@link CandidateTermFilter}) with the highest document frequencies, using a single scan of the lexicon.
+ * The lexicon entries returned are shared by all users of the cache, and must not be modified.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>prf.lexiconcache.size - maximum number of lexicon entries in the cache, defaults to 100000. 0 disables the cache.</li>
+ * <li>prf.lexiconcache.warm - number of candidate terms loaded when the cache is created, defaults to 0</li>
+ * </ul>
+ */
+public class LexiconCache
+{
+	protected static Logger logger = LoggerFactory.getLogger(LexiconCache.class);
+
+	static final Map<Index, LexiconCache> CACHES = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * Returns the lexicon cache for the specified index, creating and warming it if necessary.
+	 *
+	 * @param index the index whose lexicon is to be cached
+	 * @return the shared cache for that index
+	 */
+	public static LexiconCache of(final Index index)
+	{
+		final LexiconCache cache;
+		synchronized (CACHES) {
+			final LexiconCache existing = CACHES.get(index);
+			if (existing != null)
+				return existing;
+			cache = new LexiconCache(index, Long.parseLong(ApplicationSetup.getProperty("prf.lexiconcache.size", "100000")));
+			CACHES.put(index, cache);
+		}
+		// warmed outside of the lock, so that the caches of other indices are not blocked by the scan of the lexicon;
+		// meanwhile, the other users of this cache find it cold
+		try {
+			cache.warm(Integer.parseInt(ApplicationSetup.getProperty("prf.lexiconcache.warm", "0")));
+		} catch (IOException ioe) {
+			logger.warn("Could not warm lexicon cache", ioe);
+		}
+		return cache;
+	}
+
+	protected final Index index;
+	protected final Cache<Integer, Map.Entry<String, LexiconEntry>> byTermId;
+	protected final Cache<String, Map.Entry<String, LexiconEntry>> byTerm;
+	protected final AtomicLong hits = new AtomicLong();
+	protected final AtomicLong misses = new AtomicLong();
+
+	public LexiconCache(final Index index, final long maxSize)
+	{
+		this.index = index;
+		this.byTermId = maxSize > 0 ? CacheBuilder.newBuilder().maximumSize(maxSize).build() : null;
+		this.byTerm = maxSize > 0 ? CacheBuilder.newBuilder().maximumSize(maxSize).build() : null;
+		logger.debug("Lexicon cache of up to " + maxSize + " entries");
+	}
+
+	/**
+	 * Loads the candidate terms with the highest document frequencies into the cache.
+	 *
+	 * @param numberOfTerms the number of terms to load
+	 *
+	 * @throws IOException if there are problems in accessing the lexicon
+	 */
+	public void warm(final int numberOfTerms) throws IOException
+	{
+		if (byTermId == null || numberOfTerms <= 0)
+			return;
+		final long start = System.currentTimeMillis();
+		final CandidateTermFilter filter = CandidateTermFilter.of(index);
+		final TopKSelector frequent = new TopKSelector(numberOfTerms);
+		final Iterator<Map.Entry<String, LexiconEntry>> iter = index.getLexicon().iterator();
+		while (iter.hasNext()) {
+			final LexiconEntry le = iter.next().getValue();
+			if (filter.accept(le.getTermId()))
+				frequent.add(le.getTermId(), le.getDocumentFrequency());
+		}
+		if (iter instanceof Closeable)
+			((Closeable) iter).close();
+		final int size = frequent.sort();
+		for (int i = 0; i < size; i++)
+			put(index.getLexicon().getLexiconEntry(frequent.getId(i)));
+		logger.info("Warmed lexicon cache with " + size + " terms in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	protected void put(final Map.Entry<String, LexiconEntry> entry)
+	{
+		// the Map.Entry returned by a lexicon may be mutable, so the pair is copied; the LexiconEntry itself is not
+		// copied, as lexicon lookups, unlike lexicon iterators, return a new LexiconEntry, and it is never modified
+		final Map.Entry<String, LexiconEntry> copy = new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+		byTermId.put(copy.getValue().getTermId(), copy);
+		byTerm.put(copy.getKey(), copy);
+	}
+
+	/**
+	 * Returns the term and statistics of a termid.
+	 *
+	 * @param termid the id of the term
+	 * @return the lexicon entry, or null if the termid is not in the lexicon
+	 */
+	public Map.Entry<String, LexiconEntry> getLexiconEntry(final int termid)
+	{
+		if (byTermId == null)
+			return index.getLexicon().getLexiconEntry(termid);
+		Map.Entry<String, LexiconEntry> rtr = byTermId.getIfPresent(termid);
+		if (rtr != null) {
+			hits.incrementAndGet();
+			return rtr;
+		}
+		misses.incrementAndGet();
+		rtr = index.getLexicon().getLexiconEntry(termid);
+		if (rtr != null)
+			put(rtr);
+		return rtr;
+	}
+
+	/**
+	 * Returns the term of a termid.
+	 *
+	 * @param termid the id of the term
+	 * @return the term, or null if the termid is not in the lexicon
+	 */
+	public String getTerm(final int termid)
+	{
+		final Map.Entry<String, LexiconEntry> entry = getLexiconEntry(termid);
+		return entry != null ? entry.getKey() : null;
+	}
+
+	/**
+	 * Returns the statistics, including the termid, of a term.
+	 *
+	 * @param term the term
+	 * @return the statistics of the term, or null if the term is not in the lexicon
+	 */
+	public LexiconEntry getLexiconEntry(final String term)
+	{
+		if (byTerm == null)
+			return index.getLexicon().getLexiconEntry(term);
+		final Map.Entry<String, LexiconEntry> entry = byTerm.getIfPresent(term);
+		if (entry != null) {
+			hits.incrementAndGet();
+			return entry.getValue();
+		}
+		misses.incrementAndGet();
+		final LexiconEntry le = index.getLexicon().getLexiconEntry(term);
+		if (le != null)
+			put(new AbstractMap.SimpleImmutableEntry<>(term, le));
+		return le;
+	}
+
+	/** Returns the number of lookups served from the cache. */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/** Returns the number of lookups that required accessing the lexicon. */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/** Returns the proportion of lookups served from the cache. */
+	public double getHitRate()
+	{
+		final long total = hits.get() + misses.get();
+		return total == 0 ? 0 : (double) hits.get() / total;
+	}
+
+	@Override
+	public String toString()
+	{
+		if (byTermId == null)
+			return "LexiconCache(disabled)";
+		return "LexiconCache(size=" + byTermId.size() + ", hits=" + hits.get() + ", misses=" + misses.get()
+			+ ", hitrate=" + String.format("%.3f", getHitRate()) + ")";
+	}
+}
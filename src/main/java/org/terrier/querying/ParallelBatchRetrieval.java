@@ -0,0 +1,221 @@
+package org.terrier.querying;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.utility.ApplicationSetup;
+
+import lombok.Getter;
+
+/**
+ * This class retrieves a file of topics with several queries in flight at once, as the expansion of a query spends
+ * most of its time reading the direct index, leaving the other cores idle when queries are run one at a time. The
+ * topics are read as a stream and submitted to a work-stealing pool of workers. Each worker runs the full retrieval
+ * pipeline of <tt>querying.processes</tt>, including the expansion models enabled by the controls, through its own
+ * {@link Manager}, so that the process instances of RM1, RM3 and AxiomaticQE are never shared between threads, while
+ * the index and the shared caches (e.g. {@link DocumentVectorCache}, {@link LexiconCache}, {@link ExpansionCache}) are.
+ * The results are written in the order of the topics file, through a reorder buffer which bounds the number of queries
+ * in flight or waiting to be written: when it is full, the reading of topics waits for the oldest query. The throughput
+ * and the percentiles of the latency of the queries are logged at the end.
+ * <p>
+ * Usage: <tt>bin/terrier org.terrier.querying.ParallelBatchRetrieval</tt>, e.g. with
+ * <tt>-Dprf.batch.controls=rm3:on</tt> in place of <tt>bin/terrier br -c rm3:on</tt>.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>prf.batch.topics - file of queries, one per line, with the query id followed by the query text, as read by Terrier's
+ * <tt>SingleLineTRECQuery</tt>. Required: unlike <tt>bin/terrier br</tt>, <tt>trec.topics</tt> is not used, as it is usually
+ * a TREC topic file, which this class does not parse.</li>
+ * <li>prf.batch.output - file where the run is written, defaults to <tt>prf.res</tt> in the <tt>trec.results</tt> folder</li>
+ * <li>prf.batch.threads - number of workers, defaults to the number of processors</li>
+ * <li>prf.batch.window - capacity of the reorder buffer, defaults to 4 times the number of workers</li>
+ * <li>prf.batch.controls - comma-separated <tt>name:value</tt> controls set on each request, e.g. <tt>rm3:on</tt></li>
+ * <li>prf.batch.tag - tag of the run, defaults to <tt>terrier-prf</tt></li>
+ * </ul>
+ */
+public class ParallelBatchRetrieval
+{
+	protected static Logger logger = LoggerFactory.getLogger(ParallelBatchRetrieval.class);
+
+	/**
+	 * The throughput and latencies of a batch of queries.
+	 */
+	public static class Summary
+	{
+		@Getter protected final int numberOfQueries;
+		@Getter protected final long elapsedNanos;
+		// latencies of the queries, in nanoseconds
+		@Getter protected final PrfMetrics.Histogram latencies;
+
+		public Summary(final int numberOfQueries, final long elapsedNanos, final PrfMetrics.Histogram latencies)
+		{
+			this.numberOfQueries = numberOfQueries;
+			this.elapsedNanos = elapsedNanos;
+			this.latencies = latencies;
+		}
+
+		/** Returns the number of queries retrieved per second. */
+		public double getThroughput()
+		{
+			return elapsedNanos == 0 ? 0 : numberOfQueries * 1e9d / elapsedNanos;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%d queries in %.1fs (%.2f queries/s), latency ms: mean=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f",
+				numberOfQueries, elapsedNanos / 1e9d, getThroughput(), latencies.getMean() / 1e6d, latencies.getPercentile(0.5) / 1e6d,
+				latencies.getPercentile(0.9) / 1e6d, latencies.getPercentile(0.99) / 1e6d, latencies.getMax() / 1e6d);
+		}
+	}
+
+	protected final Index index;
+	protected final int threads;
+	protected final int window;
+	protected final Map<String, String> controls;
+	protected final String tag;
+	// the manager of each worker, with its own instances of the processes
+	protected final ThreadLocal<Manager> managers;
+
+	/**
+	 * Constructor
+	 *
+	 * @param index the index to retrieve from
+	 * @param threads the number of workers
+	 * @param window the maximum number of queries in flight or waiting to be written
+	 * @param controls the controls set on each request
+	 * @param tag the tag of the run
+	 */
+	public ParallelBatchRetrieval(final Index index, final int threads, final int window, final Map<String, String> controls, final String tag)
+	{
+		this.index = index;
+		this.threads = threads;
+		this.window = Math.max(1, window);
+		this.controls = controls;
+		this.tag = tag;
+		this.managers = ThreadLocal.withInitial(() -> ManagerFactory._from_(index.getIndexRef()));
+	}
+
+	/**
+	 * Retrieves the queries of a stream of topics, writing their results in the order of the topics.
+	 *
+	 * @param topics the queries, one per line, with the query id followed by the query text
+	 * @param out where the results are written, in TREC format
+	 * @return the throughput and latencies of the queries
+	 *
+	 * @throws IOException if the topics cannot be read, e.g. they are a TREC topic file, or a query cannot be retrieved
+	 */
+	public Summary run(final BufferedReader topics, final PrintWriter out) throws IOException
+	{
+		final PrfMetrics.Histogram latencies = new PrfMetrics.Histogram();
+		final ExecutorService pool = Executors.newWorkStealingPool(threads);
+		// the results of the queries in flight, in the order of the topics
+		final ArrayDeque<Future<String>> pending = new ArrayDeque<>(window);
+		final long start = System.nanoTime();
+		int numberOfQueries = 0;
+		try {
+			String line;
+			while ((line = topics.readLine()) != null) {
+				final String[] parts = line.trim().split("\\s+", 2);
+				if (parts.length < 2)
+					continue;
+				// the tags of a TREC topic file would otherwise be retrieved as queries, e.g. <num> Number: 401
+				if (parts[0].startsWith("<"))
+					throw new IOException("Topics must have one query per line, with the query id followed by the query text, "
+						+ "but found " + line.trim() + ": TREC topic files are not supported");
+				if (pending.size() >= window)
+					out.print(SharedPool.await(pending.poll()));
+				pending.add(pool.submit(() -> retrieve(parts[0], parts[1], latencies)));
+				numberOfQueries++;
+				while (! pending.isEmpty() && pending.peek().isDone())
+					out.print(SharedPool.await(pending.poll()));
+			}
+			while (! pending.isEmpty())
+				out.print(SharedPool.await(pending.poll()));
+		} finally {
+			pool.shutdownNow();
+		}
+		out.flush();
+		return new Summary(numberOfQueries, System.nanoTime() - start, latencies);
+	}
+
+	/**
+	 * Retrieves a query using the manager of the current worker.
+	 *
+	 * @param qid the id of the query
+	 * @param query the text of the query
+	 * @param latencies where the latency of the query is recorded
+	 * @return the results of the query, in TREC format
+	 *
+	 * @throws IOException if the results cannot be written
+	 */
+	protected String retrieve(final String qid, final String query, final PrfMetrics.Histogram latencies) throws IOException
+	{
+		final long start = System.nanoTime();
+		final Manager manager = managers.get();
+		final SearchRequest srq = manager.newSearchRequest(qid, query);
+		for (Map.Entry<String, String> control : controls.entrySet())
+			srq.setControl(control.getKey(), control.getValue());
+		manager.runSearchRequest(srq);
+		final StringWriter s = new StringWriter();
+		try (PrintWriter w = new PrintWriter(s)) {
+			RMSweep.writeRun(w, index, qid, ((Request) srq).getResultSet(), tag);
+		}
+		latencies.record(System.nanoTime() - start);
+		return s.toString();
+	}
+
+	static Map<String, String> parseControls(final String controls)
+	{
+		final Map<String, String> rtr = new LinkedHashMap<>();
+		for (String control : controls.split("\\s*,\\s*")) {
+			final String[] kv = control.split(":", 2);
+			if (kv.length == 2)
+				rtr.put(kv[0], kv[1]);
+		}
+		return rtr;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		final String topicsFile = ApplicationSetup.getProperty("prf.batch.topics", "");
+		if (topicsFile.isEmpty()) {
+			logger.error("No topics to retrieve, set prf.batch.topics to a file with one query per line, the query id followed by the query text");
+			return;
+		}
+		final IndexOnDisk index = IndexOnDisk.createIndex();
+		if (index == null) {
+			logger.error("Could not load index: " + IndexOnDisk.getLastIndexLoadError());
+			return;
+		}
+		final int threads = Integer.parseInt(ApplicationSetup.getProperty("prf.batch.threads",
+			String.valueOf(Runtime.getRuntime().availableProcessors())));
+		final ParallelBatchRetrieval batch = new ParallelBatchRetrieval(index, threads,
+			Integer.parseInt(ApplicationSetup.getProperty("prf.batch.window", String.valueOf(4 * threads))),
+			parseControls(ApplicationSetup.getProperty("prf.batch.controls", "")),
+			ApplicationSetup.getProperty("prf.batch.tag", "terrier-prf"));
+		final String output = ApplicationSetup.getProperty("prf.batch.output",
+			Paths.get(ApplicationSetup.getProperty("trec.results", "."), "prf.res").toString());
+
+		try (BufferedReader topics = Files.newBufferedReader(Paths.get(topicsFile), StandardCharsets.UTF_8);
+			PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8))) {
+			final Summary summary = batch.run(topics, out);
+			logger.info("Retrieved " + summary + " using " + threads + " threads, writing to " + output);
+		}
+		index.close();
+	}
+}
@@ -0,0 +1,289 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.utility.ApplicationSetup;
+
+import lombok.Getter;
+
+/**
+ * This class records the duration of each stage of the expansion of a request, e.g. the decoding of the
+ * feedback documents, the scoring of the candidate terms or the second matching pass, along with counters
+ * such as the number of documents decoded, postings read, candidate terms or pairs of terms counted. The
+ * metrics of a request are attached to it as the <tt>prf.metrics</tt> context object. Once the expansion model
+ * has processed the request, its metrics are finished: the total of each stage and counter over the request is
+ * aggregated into process-wide histograms, named after the expansion model, which can be dumped at the end of a
+ * batch run. Each histogram thus has one value per request.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>prf.metrics.dump - if set, the histograms are written when the JVM exits, to the logger if set to <tt>log</tt>,
+ * or otherwise to the file of that name</li>
+ * </ul>
+ */
+public class PrfMetrics
+{
+	protected static Logger logger = LoggerFactory.getLogger(PrfMetrics.class);
+
+	/** The name of the context object of a request holding its metrics. */
+	public static final String CONTEXT_KEY = "prf.metrics";
+
+	static final Map<String, Histogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+
+	static {
+		final String dump = ApplicationSetup.getProperty("prf.metrics.dump", "");
+		if (dump.length() > 0) {
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					if (dump.equals("log")) {
+						final StringBuilder s = new StringBuilder();
+						dump(s);
+						logger.info("PRF metrics:\n" + s);
+					} else {
+						try (Writer w = Files.newBufferedWriter(Paths.get(dump), StandardCharsets.UTF_8)) {
+							dump(w);
+						}
+					}
+				} catch (IOException ioe) {
+					logger.warn("Could not dump PRF metrics to " + dump, ioe);
+				}
+			}, "prf-metrics-dump"));
+		}
+	}
+
+	/**
+	 * Returns the metrics of a request, attaching new metrics to it if necessary.
+	 *
+	 * @param rq the search request
+	 * @param model the name of the expansion model, which prefixes the names of the process-wide histograms
+	 * @return the metrics of the request
+	 */
+	public static PrfMetrics of(final Request rq, final String model)
+	{
+		PrfMetrics metrics = (PrfMetrics) rq.getContextObject(CONTEXT_KEY);
+		if (metrics == null || ! model.equals(metrics.getModel())) {
+			if (metrics != null)
+				metrics.finish();
+			metrics = new PrfMetrics(model);
+			rq.setContextObject(CONTEXT_KEY, metrics);
+		}
+		return metrics;
+	}
+
+	@Getter protected final String model;
+	protected final Map<String, Long> times = new LinkedHashMap<>();
+	protected final Map<String, Long> counters = new LinkedHashMap<>();
+	protected boolean finished = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param model the name of the expansion model, or null if these metrics should not be aggregated
+	 */
+	public PrfMetrics(final String model)
+	{
+		this.model = model;
+	}
+
+	/**
+	 * Records the duration of a stage.
+	 *
+	 * @param stage the name of the stage
+	 * @param startNanos the value of {@link System#nanoTime()} when the stage started
+	 */
+	public void addTime(final String stage, final long startNanos)
+	{
+		addTimeNanos(stage, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Records the duration of a stage.
+	 *
+	 * @param stage the name of the stage
+	 * @param nanos the duration, in nanoseconds
+	 */
+	public void addTimeNanos(final String stage, final long nanos)
+	{
+		times.merge(stage, nanos, Long::sum);
+	}
+
+	/**
+	 * Records a counter.
+	 *
+	 * @param counter the name of the counter
+	 * @param value the value to add to the counter
+	 */
+	public void count(final String counter, final long value)
+	{
+		counters.merge(counter, value, Long::sum);
+	}
+
+	/**
+	 * Records the duration of each stage and the value of each counter, summed over the request, in the
+	 * process-wide histograms, unless these metrics are not aggregated. Only the first call has any effect.
+	 */
+	public void finish()
+	{
+		if (model == null || finished)
+			return;
+		finished = true;
+		for (Map.Entry<String, Long> e : times.entrySet())
+			histogram(model + ".time." + e.getKey()).record(e.getValue());
+		for (Map.Entry<String, Long> e : counters.entrySet())
+			histogram(model + "." + e.getKey()).record(e.getValue());
+	}
+
+	/** Returns the duration of a stage in nanoseconds, or 0 if it was not recorded. */
+	public long getTime(final String stage)
+	{
+		return times.getOrDefault(stage, 0L);
+	}
+
+	/** Returns the value of a counter, or 0 if it was not recorded. */
+	public long getCount(final String counter)
+	{
+		return counters.getOrDefault(counter, 0L);
+	}
+
+	/** Returns the durations of the stages in nanoseconds, in the order that they were first recorded. */
+	public Map<String, Long> getTimes()
+	{
+		return Collections.unmodifiableMap(times);
+	}
+
+	/** Returns the counters, in the order that they were first recorded. */
+	public Map<String, Long> getCounters()
+	{
+		return Collections.unmodifiableMap(counters);
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder s = new StringBuilder().append(model).append('[');
+		for (Map.Entry<String, Long> e : times.entrySet())
+			s.append(e.getKey()).append('=').append(String.format("%.3f", e.getValue() / 1e6d)).append("ms ");
+		for (Map.Entry<String, Long> e : counters.entrySet())
+			s.append(e.getKey()).append('=').append(e.getValue()).append(' ');
+		return s.toString().trim() + "]";
+	}
+
+	static Histogram histogram(final String name)
+	{
+		return HISTOGRAMS.computeIfAbsent(name, k -> new Histogram());
+	}
+
+	/**
+	 * Writes a summary of the process-wide histograms, one line per histogram, with the count, mean,
+	 * median, 90th and 99th percentiles and maximum. Durations are in milliseconds.
+	 *
+	 * @param out where to write the summary
+	 *
+	 * @throws IOException if the summary cannot be written
+	 */
+	public static void dump(final Appendable out) throws IOException
+	{
+		out.append(String.format("%-40s %10s %12s %12s %12s %12s %12s%n", "metric", "count", "mean", "p50", "p90", "p99", "max"));
+		for (Map.Entry<String, Histogram> e : HISTOGRAMS.entrySet()) {
+			final Histogram h = e.getValue();
+			// durations are recorded in nanoseconds
+			final double scale = e.getKey().contains(".time.") ? 1e6d : 1d;
+			out.append(String.format("%-40s %10d %12.3f %12.3f %12.3f %12.3f %12.3f%n", e.getKey(), h.getCount(),
+				h.getMean() / scale, h.getPercentile(0.5) / scale, h.getPercentile(0.9) / scale, h.getPercentile(0.99) / scale,
+				h.getMax() / scale));
+		}
+	}
+
+	/** Removes all process-wide histograms. */
+	public static void reset()
+	{
+		HISTOGRAMS.clear();
+	}
+
+	/**
+	 * A concurrent histogram of non-negative values, with logarithmic buckets: each power of two is
+	 * divided into 8 buckets, so that percentiles are accurate to within about 12%.
+	 */
+	public static class Histogram
+	{
+		static final int SUB_BUCKETS = 8;
+
+		protected final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+		protected final AtomicLong count = new AtomicLong();
+		protected final AtomicLong sum = new AtomicLong();
+		protected final AtomicLong max = new AtomicLong();
+
+		/** Records a value. Negative values are recorded as 0. */
+		public void record(long value)
+		{
+			value = Math.max(value, 0);
+			buckets.incrementAndGet(bucket(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			max.accumulateAndGet(value, Math::max);
+		}
+
+		static int bucket(final long value)
+		{
+			if (value < SUB_BUCKETS)
+				return (int) value;
+			final int exponent = 63 - Long.numberOfLeadingZeros(value);
+			// the 3 bits following the leading one select the sub-bucket
+			final int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+			return (exponent - 2) * SUB_BUCKETS + sub;
+		}
+
+		/** Returns the largest value falling in a bucket. */
+		static long upperBound(final int bucket)
+		{
+			if (bucket < SUB_BUCKETS)
+				return bucket;
+			final int exponent = bucket / SUB_BUCKETS + 2;
+			final long sub = bucket % SUB_BUCKETS;
+			return ((SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+		}
+
+		public long getCount()
+		{
+			return count.get();
+		}
+
+		public long getMax()
+		{
+			return max.get();
+		}
+
+		public double getMean()
+		{
+			final long n = count.get();
+			return n == 0 ? 0 : (double) sum.get() / n;
+		}
+
+		/** Returns an upper bound of the specified percentile, e.g. 0.99, of the recorded values. */
+		public long getPercentile(final double percentile)
+		{
+			final long n = count.get();
+			if (n == 0)
+				return 0;
+			final long rank = (long) Math.ceil(percentile * n);
+			long seen = 0;
+			for (int b = 0; b < buckets.length(); b++) {
+				seen += buckets.get(b);
+				if (seen >= rank)
+					return Math.min(upperBound(b), max.get());
+			}
+			return max.get();
+		}
+	}
+}
@@ -1,28 +1,33 @@
 package org.terrier.querying;
 
-import static java.util.stream.Collectors.toMap;
-
 import java.io.IOException;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.terrier.matching.BaseMatching;
 import org.terrier.matching.MatchingQueryTerms;
+import org.terrier.matching.MatchingQueryTerms.MatchingTerm;
 import org.terrier.matching.ResultSet;
 import org.terrier.matching.matchops.SingleTermOp;
 import org.terrier.querying.parser.Query.QTPBuilder;
 import org.terrier.structures.Index;
 import org.terrier.structures.LexiconEntry;
-import org.terrier.structures.postings.IterablePosting;
 import org.terrier.utility.ApplicationSetup;
 
 import it.unimi.dsi.fastutil.ints.Int2FloatMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatMaps;
 import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntMaps;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
@@ -68,13 +73,8 @@ public class RM1 implements MQTRewritingProcess
 	 * 
 	 * @author Nicola Tonellotto
 	 */
-	public class FeedbackDocument 
+	public static class FeedbackDocument 
 	{
-		protected final int MIN_DF = Integer.parseInt(ApplicationSetup.getProperty("prf.mindf", "2"));
-		
-		// if a term appears in more than 10% of documents, we ignore it
-		protected final double MAX_DOC_PERCENTAGE = Float.parseFloat(ApplicationSetup.getProperty("prf.maxdp", "0.1"));
-		
 		// termid -> term frequency in document map
 		protected Int2IntMap terms;
 		
@@ -83,27 +83,34 @@ public class RM1 implements MQTRewritingProcess
 		protected @Getter double qlScore;
 		
 		public FeedbackDocument(final int docid, final double originalScore, final Index index) throws IOException
+		{
+			this(docid, originalScore, index, CandidateTermFilter.of(index));
+		}
+		
+		public FeedbackDocument(final int docid, final double originalScore, final Index index, final CandidateTermFilter filter) throws IOException
+		{
+			this(DocumentVectorCache.of(index).get(docid), originalScore, filter);
+		}
+		
+		public FeedbackDocument(final DocumentVector dv, final double originalScore, final CandidateTermFilter filter)
 		{
 			this.originalScore = originalScore;
+			this.length = dv.getLength();
 			
 			this.terms = new Int2IntOpenHashMap();
 			
-			final int MAX_DOC_FREQ = (int) (MAX_DOC_PERCENTAGE * index.getCollectionStatistics().getNumberOfDocuments());	
-			final IterablePosting dp = index.getDirectIndex().getPostings(index.getDocumentIndex().getDocumentEntry(docid));
-			while (dp.next() != IterablePosting.EOL) {
-				this.length = dp.getDocumentLength(); //this supports the terrier-lucene better.
-				LexiconEntry le = index.getLexicon().getLexiconEntry(dp.getId()).getValue();
-				if (le.getDocumentFrequency() >= MIN_DF && le.getDocumentFrequency() < MAX_DOC_FREQ)
-					this.terms.put(dp.getId(), dp.getFrequency());
+			final int[] termids = dv.getTermIds();
+			final int[] frequencies = dv.getFrequencies();
+			for (int i = 0; i < termids.length; i++) {
+				if (filter.accept(termids[i]))
+					this.terms.put(termids[i], frequencies[i]);
 			}
 			if (this.length > 0 && this.terms.size() == 0) {
-				logger.warn("Did not identify any usable candidate expansion terms from docid " + docid + " among " + this.length + " possibilities");
+				logger.warn("Did not identify any usable candidate expansion terms from docid " + dv.getDocid() + " among " + this.length + " possibilities");
 			}
-			dp.close();
 			
 			//this.length = index.getDocumentIndex().getDocumentLength(docid);
 			assert this.length > 0;
-
 		}
 		
 		public IntSet getTermIds()
@@ -117,59 +124,160 @@ public class RM1 implements MQTRewritingProcess
 		}	
 	}
 
+	/**
+	 * This class holds the state of the expansion of a single request, so that the same
+	 * instance can expand several requests concurrently.
+	 */
+	protected static class ExpansionContext
+	{
+		protected final Index index;
+		protected final int fbTerms;
+		protected final int fbDocs;
+		
+		protected final IntSet topLexicon;
+		protected final List<FeedbackDocument> topDocs;
+		protected Int2FloatMap feedbackTermScores;
+		// not aggregated unless attached to a request
+		protected PrfMetrics metrics = new PrfMetrics(null);
+		protected ExpansionDeadline deadline = ExpansionDeadline.NONE;
+		// docid -> document vector, if the feedback documents were decoded for a batch of requests
+		protected Int2ObjectMap<DocumentVector> sharedVectors = null;
+		// the feedback documents prefetched for the request, if any
+		protected FeedbackPrefetch.Buffer prefetch = null;
+		// the key of the expansion in the ExpansionCache and the expansion found there, if looked up ahead of the expansion
+		protected String cacheKey = null;
+		protected ExpansionCache.CachedExpansion cached = null;
+		// the shards holding the feedback documents, and the terms of the expansion, as the shards have their own lexicons
+		protected ShardedFeedback shards = null;
+		protected ShardedFeedback.Terms terms = null;
+		// termid -> unnormalised RM1 weight, as merged from the shards
+		protected Int2FloatOpenHashMap mergedWeights = null;
+		protected int numberOfMergedDocuments = 0;
+		
+		public ExpansionContext(final Index index, final int fbTerms, final int fbDocs)
+		{
+			this.index   = index;
+			this.fbTerms = fbTerms;
+			this.fbDocs  = fbDocs;
+			
+			this.topLexicon         = new IntOpenHashSet();
+			this.topDocs            = new ObjectArrayList<>();
+			this.feedbackTermScores = new Int2FloatOpenHashMap();
+		}
+		
+		/**
+		 * Sets the shards from which the feedback statistics of this expansion are obtained.
+		 * 
+		 * @param shards the shards, or null to use the direct index
+		 */
+		protected void setShards(final ShardedFeedback shards)
+		{
+			this.shards = shards;
+			this.terms = shards != null ? new ShardedFeedback.Terms() : null;
+		}
+		
+		/**
+		 * Returns the termid of a term, in the lexicon of the index, or among the terms of the expansion if sharded.
+		 * 
+		 * @param term the term
+		 * 
+		 * @return the termid, or -1 if the term does not occur in the collection
+		 */
+		protected int getTermId(final String term)
+		{
+			if (shards == null) {
+				final LexiconEntry le = LexiconCache.of(index).getLexiconEntry(term);
+				return le == null ? -1 : le.getTermId();
+			}
+			if (terms.getTermId(term) == -1) {
+				try {
+					if (shards.getDocumentFrequencies(new String[]{term})[0] == 0)
+						return -1;
+				} catch (IOException ioe) {
+					throw new RuntimeException(ioe);
+				}
+			}
+			return terms.getOrAdd(term);
+		}
+	}
+
 	protected final int fbTerms;
 	protected final int fbDocs;
 	protected Index index = null;
 	
-	protected IntSet topLexicon;
-	protected List<FeedbackDocument> topDocs;
-	protected Int2FloatMap feedbackTermScores;
-	
 	@Setter protected double lambda = 1.0;
+	/** the shards holding the feedback documents, if the direct index of the request should not be used */
+	@Setter protected ShardedFeedback shards = ShardedFeedback.get();
 	
 	/**
 	 * Constructor
 	 * 
 	 * @param fbTerms how many feedback terms to return
 	 * @param fbDocs how many feedback documents to use (should be less than or equal to the top documents)
-	 * @param index the index to used to access the direct index postings
+	 * @param index the index to used to access the direct index postings, if not specified by the request
 	 */
 	public RM1(final int fbTerms, final int fbDocs, final Index index)
 	{
 		this.fbTerms = fbTerms;
 		this.fbDocs  = fbDocs;
 		this.index = index;
-		
-		this.topLexicon         = new IntOpenHashSet();
-		this.topDocs            = new ObjectArrayList<>();
-		this.feedbackTermScores = new Int2FloatOpenHashMap();
 	}
 
 	public RM1()
 	{
-		this.topLexicon         = new IntOpenHashSet();
-		this.topDocs            = new ObjectArrayList<>();
-		this.feedbackTermScores = new Int2FloatOpenHashMap();
 		this.fbTerms = ApplicationSetup.EXPANSION_TERMS;
 		this.fbDocs = ApplicationSetup.EXPANSION_DOCUMENTS;
 	}
 
 	public void process(Manager manager, Request q) {
+		final PrfMetrics metrics = PrfMetrics.of(q, getClass().getSimpleName());
 		try{
-			this.expandQuery(q.getMatchingQueryTerms(), q);
+			final ResultSet firstPass = q.getResultSet();
+			// if the query was not expanded, the first-pass results are kept
+			if (! this.expandQuery(q.getMatchingQueryTerms(), q))
+				return;
 
-			//THIS ASSUMES THAT QueryExpansion directly follows Matching
-			((LocalManager)manager).runNamedProcess(q.getControl("previousprocess"), q);
+			final long start = System.nanoTime();
+			final boolean rerank = ExpandedQueryReranker.isEnabled(q);
+			if (! rerank || ExpandedQueryReranker.isCalibrating(q)) {
+				//THIS ASSUMES THAT QueryExpansion directly follows Matching
+				((LocalManager)manager).runNamedProcess(q.getControl("previousprocess"), q);
+				ExpandedQueryReranker.recordSecondPass(q, System.nanoTime() - start);
+				metrics.addTime(rerank ? "calibration" : "secondpass", start);
+			}
+			if (rerank) {
+				final long rerankStart = System.nanoTime();
+				ExpandedQueryReranker.rerank(q, firstPass);
+				metrics.addTime("rerank", rerankStart);
+				return;
+			}
+			if (logger.isDebugEnabled())
+				logger.debug(metrics.toString());
 		}catch (IOException ioe) {
 			throw new RuntimeException(ioe);
+		} finally {
+			metrics.finish();
 		}
 	}
 
 	/** MQTRewriting implementation. */
 	public boolean expandQuery(MatchingQueryTerms mqt, Request rq) throws IOException
 	{
-		this.index = rq.getIndex();
-		List<ExpansionTerm> expansions = this.expand(rq);
+		List<ExpansionTerm> expansions = this.expand(newContext(rq, mqt), rq, mqt);
+		if (expansions == null)
+			return false;
+		rewriteQuery(mqt, expansions);
+		return true;
+	}
+	
+	/**
+	 * This method replaces the terms of a query by its expansion terms.
+	 * 
+	 * @param mqt the query to rewrite
+	 * @param expansions the expansion terms
+	 */
+	protected void rewriteQuery(final MatchingQueryTerms mqt, final List<ExpansionTerm> expansions)
+	{
 		mqt.clear();
 		StringBuilder sQuery = new StringBuilder();
 		for (ExpansionTerm et : expansions)
@@ -182,7 +290,133 @@ public class RM1 implements MQTRewritingProcess
 		}
 		logger.info("Reformulated query: " + sQuery.toString());
 		//logger.info("Reformulated query: " + mqt.toString());
-		return true;
+	}
+	
+	/**
+	 * This method expands the queries of several search requests, e.g. the topics of a batch run, after their
+	 * first-pass matching, sharing the decoding of their feedback documents as {@link #expandAll(List)} does.
+	 * The second pass of each request remains to be run.
+	 * 
+	 * @param requests the search requests, with their first-pass result sets
+	 * 
+	 * @return for each request, true if its query was expanded
+	 * 
+	 * @throws IOException if there are problems in accessing the direct index
+	 */
+	public boolean[] expandQueries(final List<Request> requests) throws IOException
+	{
+		final List<List<ExpansionTerm>> expansions = expandAll(requests);
+		final boolean[] rtr = new boolean[requests.size()];
+		for (int i = 0; i < rtr.length; i++) {
+			if (expansions.get(i) == null)
+				continue;
+			rewriteQuery(requests.get(i).getMatchingQueryTerms(), expansions.get(i));
+			rtr[i] = true;
+		}
+		return rtr;
+	}
+	
+	/**
+	 * This method computes the expansions of several search requests, e.g. the topics of a batch run, after their
+	 * first-pass matching. Related queries often share feedback documents, so the union of the feedback documents
+	 * of all requests is decoded once, in docid order for sequential access to the direct index, and each expansion
+	 * is then computed from the shared document vectors. The expansions are exactly those of {@link #expand(Request)}.
+	 * <p>
+	 * The {@link ExpansionCache} is looked up first, so that only the feedback documents of the requests whose
+	 * expansion is not cached are decoded. The requests with a time budget (see {@link ExpansionDeadline}) are
+	 * not part of the shared decoding: their feedback documents are decoded when each is expanded, within its own deadline.
+	 * 
+	 * @param requests the search requests, with their first-pass result sets
+	 * 
+	 * @return the expansion terms of each request, aligned with requests
+	 * 
+	 * @throws IOException if there are problems in accessing the direct index
+	 */
+	public List<List<ExpansionTerm>> expandAll(final List<Request> requests) throws IOException
+	{
+		if (shards != null) {
+			// the shards decode their own feedback documents
+			final List<List<ExpansionTerm>> rtr = new ObjectArrayList<>(requests.size());
+			for (Request rq : requests)
+				rtr.add(expand(rq));
+			return rtr;
+		}
+		final long start = System.nanoTime();
+		final ExpansionCache cache = ExpansionCache.get();
+		final ExpansionContext[] contexts = new ExpansionContext[requests.size()];
+		// whether the feedback documents of each request are decoded with those of the other requests
+		final boolean[] batched = new boolean[contexts.length];
+		// index -> union of the feedback docids of the requests using that index
+		final Map<Index, IntOpenHashSet> feedbackDocids = new HashMap<>();
+		int numberOfFeedbackDocuments = 0;
+		int numberCached = 0;
+		int numberWithDeadline = 0;
+		for (int i = 0; i < contexts.length; i++) {
+			final Request rq = requests.get(i);
+			contexts[i] = newContext(rq, rq.getMatchingQueryTerms());
+			if (cache != null && ! ExpansionCache.isBypassed(rq)) {
+				contexts[i].cacheKey = ExpansionCache.key(contexts[i].index, getClass().getSimpleName(), rq.getMatchingQueryTerms(),
+					getCacheParameters(contexts[i]), rq);
+				contexts[i].cached = cache.lookup(contexts[i].cacheKey, rq);
+				if (contexts[i].cached != null) {
+					numberCached++;
+					continue;
+				}
+			}
+			if (ExpansionDeadline.hasBudget(rq)) {
+				numberWithDeadline++;
+				continue;
+			}
+			batched[i] = true;
+			final ResultSet rs = rq.getResultSet();
+			final int numDocs = rs.getResultSize() < contexts[i].fbDocs ? rs.getResultSize() : contexts[i].fbDocs;
+			final IntOpenHashSet docids = feedbackDocids.computeIfAbsent(contexts[i].index, k -> new IntOpenHashSet());
+			for (int j = 0; j < numDocs; j++)
+				docids.add(rs.getDocids()[j]);
+			numberOfFeedbackDocuments += numDocs;
+		}
+		
+		final Map<Index, Int2ObjectMap<DocumentVector>> vectors = new HashMap<>();
+		int numberDecoded = 0;
+		for (Map.Entry<Index, IntOpenHashSet> e : feedbackDocids.entrySet()) {
+			final int[] docids = e.getValue().toIntArray();
+			Arrays.sort(docids);
+			final DocumentVector[] dvs = DocumentVectorCache.of(e.getKey()).getAll(docids);
+			final Int2ObjectMap<DocumentVector> shared = new Int2ObjectOpenHashMap<>(docids.length);
+			for (int j = 0; j < docids.length; j++)
+				shared.put(docids[j], dvs[j]);
+			vectors.put(e.getKey(), shared);
+			numberDecoded += docids.length;
+		}
+		final long decodeTime = System.nanoTime() - start;
+		PrfMetrics.histogram(getClass().getSimpleName() + ".time.batchdecode").record(decodeTime);
+		logger.info("Decoded " + numberDecoded + " distinct feedback documents, out of " + numberOfFeedbackDocuments + ", for "
+			+ (contexts.length - numberCached - numberWithDeadline) + " requests in " + (decodeTime / 1000000) + "ms, skipping "
+			+ numberCached + " cached expansions and " + numberWithDeadline + " requests with a deadline");
+		
+		final List<List<ExpansionTerm>> rtr = new ObjectArrayList<>(contexts.length);
+		for (int i = 0; i < contexts.length; i++) {
+			final Request rq = requests.get(i);
+			if (batched[i])
+				contexts[i].sharedVectors = vectors.get(contexts[i].index);
+			rtr.add(expand(contexts[i], rq, rq.getMatchingQueryTerms()));
+		}
+		return rtr;
+	}
+	
+	/**
+	 * This method creates the state for the expansion of a given search request.
+	 * 
+	 * @param rq the search request to be expanded
+	 * @param mqt the original query of the request
+	 * 
+	 * @return a new expansion context
+	 */
+	protected ExpansionContext newContext(final Request rq, final MatchingQueryTerms mqt)
+	{
+		final ExpansionContext ctx = new ExpansionContext(rq.getIndex() != null ? rq.getIndex() : index, fbTerms, fbDocs);
+		ctx.setShards(shards);
+		return ctx;
 	}
 	
 	/**
@@ -190,88 +424,355 @@ public class RM1 implements MQTRewritingProcess
 	 * 
 	 * @param srq the processed search request from Terrier containing the top documents' docids and scores
 	 * 
-	 * @return a list of expansion terms
+	 * @return a list of expansion terms, or null if the deadline of the request did not allow any expansion
 	 * 
 	 * @throws IOException if there are problems in accessing the direct index
 	 */
 	public List<ExpansionTerm> expand(final Request srq) throws IOException
 	{
-		this.topLexicon.clear();
-		this.topDocs.clear();
-		this.feedbackTermScores.clear();
-
-		retrieveTopDocuments(srq.getResultSet());	
-		computeFeedbackTermScores();
+		return expand(newContext(srq, srq.getMatchingQueryTerms()), srq, srq.getMatchingQueryTerms());
+	}
+	
+	/**
+	 * This method computes a list of expansion terms for a search request, using the {@link ExpansionCache}
+	 * if it is configured and not bypassed by the request. The {@link PrfMetrics} of the expansion are attached to the request.
+	 * 
+	 * @param ctx the state of this expansion
+	 * @param rq the search request containing the top documents' docids and scores
+	 * @param mqt the original query of the request
+	 * 
+	 * @return a list of expansion terms, or null if the deadline of the request did not allow any expansion
+	 * 
+	 * @throws IOException if there are problems in accessing the direct index
+	 */
+	protected List<ExpansionTerm> expand(final ExpansionContext ctx, final Request rq, final MatchingQueryTerms mqt) throws IOException
+	{
+		ctx.metrics = PrfMetrics.of(rq, getClass().getSimpleName());
+		ctx.deadline = ExpansionDeadline.of(rq, ctx.metrics, ExpansionDeadline.clockOf(rq));
+		ctx.prefetch = FeedbackPrefetch.of(rq, ctx.index);
+		final long start = System.nanoTime();
+		try {
+			final List<ExpansionTerm> rtr = expandCached(ctx, rq, mqt);
+			return rtr != null ? pruneTerms(ctx, rq, mqt, rtr) : null;
+		} finally {
+			ctx.metrics.addTime("expand", start);
+		}
+	}
+	
+	/**
+	 * This method drops the expansion terms carrying little of the weight of the expanded query, if the request
+	 * is configured for it (see {@link ExpansionTermPruner}). The terms of the original query are kept.
+	 * 
+	 * @param ctx the state of this expansion
+	 * @param rq the search request
+	 * @param mqt the original query of the request
+	 * @param expansions the expansion terms
+	 * 
+	 * @return the expansion terms kept
+	 * 
+	 * @throws IOException if there are problems in accessing the shards
+	 */
+	protected List<ExpansionTerm> pruneTerms(final ExpansionContext ctx, final Request rq, final MatchingQueryTerms mqt,
+		final List<ExpansionTerm> expansions) throws IOException
+	{
+		final ExpansionTermPruner pruner = ExpansionTermPruner.of(rq, ctx.metrics);
+		if (pruner == null || expansions.isEmpty())
+			return expansions;
+		final long start = System.nanoTime();
+		final Set<String> queryTerms = new HashSet<>();
+		for (MatchingTerm mt : mqt)
+			queryTerms.add(mt.getKey().toString());
+		final String[] terms = new String[expansions.size()];
+		final double[] weights = new double[expansions.size()];
+		final boolean[] original = new boolean[expansions.size()];
+		for (int i = 0; i < expansions.size(); i++) {
+			terms[i] = expansions.get(i).getText();
+			weights[i] = expansions.get(i).getWeight();
+			original[i] = queryTerms.contains(terms[i]);
+		}
+		final boolean[] keep = pruner.prune(terms, weights, original, ctx.index, ctx.shards);
+		final List<ExpansionTerm> rtr = new ObjectArrayList<>(expansions.size());
+		for (int i = 0; i < expansions.size(); i++)
+			if (keep[i])
+				rtr.add(expansions.get(i));
+		ctx.metrics.addTime("prune", start);
+		return rtr;
+	}
+	
+	private List<ExpansionTerm> expandCached(final ExpansionContext ctx, final Request rq, final MatchingQueryTerms mqt) throws IOException
+	{
+		final ExpansionCache cache = ExpansionCache.get();
+		if (cache == null || ExpansionCache.isBypassed(rq))
+			return expand(ctx, rq.getResultSet());
 		
-		clipTerms();
-		normalizeFeedbackTermScores();
+		// the expansions of a batch are looked up before their feedback documents are decoded
+		final String key = ctx.cacheKey != null ? ctx.cacheKey
+			: ExpansionCache.key(ctx.index, getClass().getSimpleName(), mqt, getCacheParameters(ctx), rq);
+		final ExpansionCache.CachedExpansion cached = ctx.cacheKey != null ? ctx.cached : cache.lookup(key, rq);
+		if (cached != null) {
+			ctx.metrics.count("cachehits", 1);
+			if (ctx.prefetch != null)
+				ctx.prefetch.cancel();
+			List<ExpansionTerm> rtr = new ObjectArrayList<>(cached.size());
+			for (int i = 0; i < cached.size(); i++)
+				rtr.add(new ExpansionTerm(cached.getTermId(i), cached.getTerm(i), cached.getWeight(i)));
+			return rtr;
+		}
 		
+		List<ExpansionTerm> rtr = expand(ctx, rq.getResultSet());
+		// degraded expansions depend on timing, so are not reused
+		if (rtr == null || ctx.deadline.isDegraded())
+			return rtr;
+		final String[] terms = new String[rtr.size()];
+		final int[] termids = new int[rtr.size()];
+		final double[] weights = new double[rtr.size()];
+		for (int i = 0; i < rtr.size(); i++) {
+			terms[i] = rtr.get(i).getText();
+			termids[i] = rtr.get(i).getTermid();
+			weights[i] = rtr.get(i).getWeight();
+		}
+		cache.put(key, new ExpansionCache.CachedExpansion(terms, termids, weights));
+		if (logger.isDebugEnabled())
+			logger.debug(cache.toString());
+		return rtr;
+	}
+	
+	/**
+	 * This method describes the parameters of an expansion, as part of its {@link ExpansionCache} key.
+	 * 
+	 * @param ctx the state of this expansion
+	 * 
+	 * @return the parameters, as a string
+	 */
+	protected String getCacheParameters(final ExpansionContext ctx)
+	{
+		final CandidateTermFilter filter = CandidateTermFilter.of(ctx.index);
+		return "fbDocs=" + ctx.fbDocs + ",fbTerms=" + ctx.fbTerms + ",mindf=" + filter.getMinDf() + ",maxdp=" + filter.getMaxDocPercentage()
+			+ (ctx.shards != null ? ",shards=" + ctx.shards.size() : "");
+	}
+	
+	/**
+	 * This method computes a list of expansion terms from the top documents of a result set
+	 * 
+	 * @param ctx the state of this expansion
+	 * @param rs the result set containing the top documents' docids and scores
+	 * 
+	 * @return a list of expansion terms, or null if the deadline did not allow any feedback document to be decoded
+	 * 
+	 * @throws IOException if there are problems in accessing the direct index
+	 */
+	protected List<ExpansionTerm> expand(final ExpansionContext ctx, final ResultSet rs) throws IOException
+	{
+		retrieveTopDocuments(ctx, rs);
+		if (ctx.deadline.hasDegraded(ExpansionDeadline.UNEXPANDED))
+			return null;
+		computeFeedbackTermScores(ctx);
+		
+		clipTerms(ctx);
+		normalizeFeedbackTermScores(ctx);
+		
+		return getExpansionTerms(ctx);
+	}
+	
+	/**
+	 * This method resolves the final feedback term scores into a list of expansion terms
+	 * 
+	 * @param ctx the state of this expansion
+	 * 
+	 * @return a list of expansion terms
+	 */
+	protected List<ExpansionTerm> getExpansionTerms(final ExpansionContext ctx)
+	{
+		final long start = System.nanoTime();
 		List<ExpansionTerm> rtr = new ObjectArrayList<>();
-		for (int termid: feedbackTermScores.keySet())
-			rtr.add(new ExpansionTerm(termid, index.getLexicon().getLexiconEntry(termid).getKey(), feedbackTermScores.get(termid)));
+		if (ctx.terms != null) {
+			// the termids of a sharded expansion are not those of any lexicon
+			for (int termid: ctx.feedbackTermScores.keySet())
+				rtr.add(new ExpansionTerm(-1, ctx.terms.getTerm(termid), ctx.feedbackTermScores.get(termid)));
+		} else {
+			final LexiconCache lexicon = LexiconCache.of(ctx.index);
+			for (int termid: ctx.feedbackTermScores.keySet())
+				rtr.add(new ExpansionTerm(termid, lexicon.getTerm(termid), ctx.feedbackTermScores.get(termid)));
+			if (logger.isDebugEnabled())
+				logger.debug(lexicon.toString());
+		}
+		ctx.metrics.addTime("resolve", start);
+		ctx.metrics.count("expansionterms", rtr.size());
 		return rtr;
 	}
 
 	/**
 	 * This method retrieves from the direct index all terms if the top documents with the necessary statistics.
+	 * If the deadline of the expansion is nearly expired, only the top documents decoded so far are used.
+	 * If the documents were already decoded for a batch of requests, the shared document vectors are used instead,
+	 * otherwise the {@link FeedbackVectorStore} of the index, if it holds all candidate terms, or the documents prefetched
+	 * for the request by {@link FeedbackPrefetch}.
+	 * If the expansion is sharded, the weights of the terms are merged from the shards instead.
 
+	 * @param ctx the state of this expansion
 	 * @param rs the search request returned by Terrier with top documents' docids & scores
 	 * 
 	 * @throws IOException if there are problems in accessing the direct index
 	 */
-	protected void retrieveTopDocuments(final ResultSet rs) throws IOException 
+	protected void retrieveTopDocuments(final ExpansionContext ctx, final ResultSet rs) throws IOException 
 	{	
-		final int numDocs = rs.getResultSize() < fbDocs ? rs.getResultSize() : fbDocs;
+		if (ctx.shards != null) {
+			retrieveTopDocumentsFromShards(ctx, rs);
+			return;
+		}
+		final long start = System.nanoTime();
 		final double norm = logSumExp(rs.getScores());
+		final CandidateTermFilter filter = CandidateTermFilter.of(ctx.index);
+		final DocumentVectorCache vectors = DocumentVectorCache.of(ctx.index);
+		final int fbDocs = rs.getResultSize() < ctx.fbDocs ? rs.getResultSize() : ctx.fbDocs;
+		final FeedbackVectorStore store = FeedbackVectorStore.of(ctx.index);
+		final boolean fromStore = store != null && store.covers(filter);
+		final DocumentVector[] dvs;
+		if (ctx.prefetch != null && (ctx.sharedVectors != null || fromStore))
+			ctx.prefetch.cancel();
+		if (ctx.sharedVectors != null) {
+			dvs = new DocumentVector[fbDocs];
+			for (int i = 0; i < fbDocs; i++)
+				dvs[i] = ctx.sharedVectors.get(rs.getDocids()[i]);
+		} else if (fromStore) {
+			dvs = store.getAll(Arrays.copyOf(rs.getDocids(), fbDocs), ctx.deadline);
+		} else if (ctx.prefetch != null) {
+			final int[] docids = Arrays.copyOf(rs.getDocids(), fbDocs);
+			// the documents prefetched beyond the feedback documents of this model are not decoded
+			ctx.metrics.count("prefetched", ctx.prefetch.retain(docids));
+			dvs = ctx.prefetch.getAll(docids, ctx.deadline);
+		} else {
+			dvs = vectors.getAll(Arrays.copyOf(rs.getDocids(), fbDocs), ctx.deadline);
+		}
+		final int numDocs = dvs.length;
+		ctx.metrics.addTime("decode", start);
+		if (numDocs < fbDocs)
+			ctx.deadline.degrade(numDocs == 0 ? ExpansionDeadline.UNEXPANDED : ExpansionDeadline.PARTIAL);
+		final long filterStart = System.nanoTime();
+		long postings = 0;
 		for (int i = 0; i < numDocs; ++i) {
-			FeedbackDocument doc = new FeedbackDocument(rs.getDocids()[i], Math.exp(rs.getScores()[i] - norm), index);
-			topDocs.add(doc);
-			topLexicon.addAll(doc.getTermIds());			
+			postings += dvs[i].getTermIds().length;
+			FeedbackDocument doc = new FeedbackDocument(dvs[i], Math.exp(rs.getScores()[i] - norm), filter);
+			ctx.topDocs.add(doc);
+			ctx.topLexicon.addAll(doc.getTermIds());			
 		}
-		if (topLexicon.size() > 0) {
-			logger.info("Found " + topLexicon.size() + " terms after feedback document analysis");
+		if (ctx.topLexicon.size() > 0) {
+			logger.info("Found " + ctx.topLexicon.size() + " terms after feedback document analysis");
 		} else {
 			logger.warn("Did not find any useful candidate expansion terms after analysis of "+ numDocs + " feedback documents");
 		}
+		ctx.metrics.addTime("filter", filterStart);
+		ctx.metrics.count("documents", numDocs);
+		ctx.metrics.count("postings", postings);
+		ctx.metrics.count("candidateterms", ctx.topLexicon.size());
+		if (logger.isDebugEnabled())
+			logger.debug(vectors.toString());
 	}
 
 	/**
-	 * This method computes the relevance scores of all terms in the top documents according to RM1
+	 * This method obtains the unnormalised RM1 weights of the candidate terms of the top documents from the shards
+	 * holding them, as the direct index of the request does not hold all documents. The deadline of the expansion is not applied.
+	 * 
+	 * @param ctx the state of this expansion
+	 * @param rs the search request returned by Terrier with top documents' docids & scores, numbered across the shards
+	 * 
+	 * @throws IOException if there are problems in accessing the shards
+	 */
+	protected void retrieveTopDocumentsFromShards(final ExpansionContext ctx, final ResultSet rs) throws IOException
+	{
+		final long start = System.nanoTime();
+		final double norm = logSumExp(rs.getScores());
+		final int fbDocs = rs.getResultSize() < ctx.fbDocs ? rs.getResultSize() : ctx.fbDocs;
+		final double[] weights = new double[fbDocs];
+		for (int i = 0; i < fbDocs; i++)
+			weights[i] = Math.exp(rs.getScores()[i] - norm);
+		ctx.mergedWeights = ctx.shards.getRelevanceWeights(Arrays.copyOf(rs.getDocids(), fbDocs), weights, ctx.terms);
+		ctx.numberOfMergedDocuments = fbDocs;
+		ctx.topLexicon.addAll(ctx.mergedWeights.keySet());
+		ctx.metrics.addTime("shards", start);
+		ctx.metrics.count("documents", fbDocs);
+		ctx.metrics.count("candidateterms", ctx.topLexicon.size());
+	}
+
+	/**
+	 * This method computes the relevance scores of all terms in the top documents according to RM1.
+	 * Scores are accumulated document-at-a-time, with a single pass over the terms of each feedback
+	 * document, so the cost is proportional to the number of feedback postings rather than to
+	 * the size of the feedback vocabulary times the number of feedback documents.
+	 * 
+	 * @param ctx the state of this expansion
 	 */
-	protected void computeFeedbackTermScores() 
+	protected void computeFeedbackTermScores(final ExpansionContext ctx) 
 	{
-		for (int termid: topLexicon) {
-			float fbWeight = 0.0f;
-			for (FeedbackDocument doc: topDocs)
-				fbWeight += (double) doc.getFrequency(termid) / (double) doc.getLength() * doc.getOriginalScore();
-			feedbackTermScores.put(termid, fbWeight * (1.0f/topDocs.size())); //see galago line 231 in scoreGrams().
+		final long start = System.nanoTime();
+		final Int2FloatOpenHashMap fbWeights;
+		final int numDocs;
+		if (ctx.mergedWeights != null) {
+			fbWeights = ctx.mergedWeights;
+			numDocs = ctx.numberOfMergedDocuments;
+		} else {
+			fbWeights = new Int2FloatOpenHashMap(ctx.topLexicon.size());
+			for (FeedbackDocument doc: ctx.topDocs)
+				accumulateFeedbackWeights(doc, fbWeights);
+			numDocs = ctx.topDocs.size();
 		}
+		final float norm = 1.0f/numDocs; //see galago line 231 in scoreGrams().
+		for (int termid: ctx.topLexicon)
+			ctx.feedbackTermScores.put(termid, fbWeights.get(termid) * norm);
+		ctx.metrics.addTime("score", start);
 	}
 
 	/**
-	 * This method reduces the number of feedback terms to a fixed amount
+	 * This method adds the contribution of a feedback document to the unnormalised RM1 weights of its terms.
+	 * Documents must be added in rank order, so that the float accumulation is always the same.
+	 * 
+	 * @param doc the feedback document
+	 * @param fbWeights the termid to weight map to update
 	 */
-	protected void clipTerms()
+	protected static void accumulateFeedbackWeights(final FeedbackDocument doc, final Int2FloatOpenHashMap fbWeights)
 	{
-		feedbackTermScores = feedbackTermScores
-			.int2FloatEntrySet()
-			.stream()
-			.sorted(Collections.reverseOrder(Map.Entry.comparingByValue()))
-			.limit(fbTerms)
-			.collect(toMap(Map.Entry::getKey, 
-						   Map.Entry::getValue, 
-						   (e1, e2) -> e2, 
-						   Int2FloatOpenHashMap::new)
-			);		
+		final double length = (double) doc.getLength();
+		final double originalScore = doc.getOriginalScore();
+		for (Int2IntMap.Entry posting : Int2IntMaps.fastIterable(doc.terms)) {
+			// same float accumulation, in the same document order, as the term-at-a-time formulation
+			float fbWeight = fbWeights.get(posting.getIntKey());
+			fbWeight += (double) posting.getIntValue() / length * originalScore;
+			fbWeights.put(posting.getIntKey(), fbWeight);
+		}
+	}
+
+	/**
+	 * This method reduces the number of feedback terms to a fixed amount, using a bounded top-k
+	 * selection rather than sorting all candidate terms. Ties are broken by the iteration order
+	 * of the feedback term scores, as a stable sort would.
+	 * 
+	 * @param ctx the state of this expansion
+	 */
+	protected void clipTerms(final ExpansionContext ctx)
+	{
+		final long start = System.nanoTime();
+		final TopKSelector topTerms = new TopKSelector(ctx.fbTerms);
+		for (Int2FloatMap.Entry e : Int2FloatMaps.fastIterable(ctx.feedbackTermScores))
+			topTerms.add(e.getIntKey(), e.getFloatValue());
+		final int size = topTerms.sort();
+		final Int2FloatMap clipped = new Int2FloatOpenHashMap();
+		for (int i = 0; i < size; i++)
+			clipped.put(topTerms.getId(i), (float) topTerms.getScore(i));
+		ctx.feedbackTermScores = clipped;
+		ctx.metrics.addTime("clip", start);
 	}
 	
 	/**
 	 * This method transforms the feedback term scores into a probability distribution
+	 * 
+	 * @param ctx the state of this expansion
 	 */
-	protected void normalizeFeedbackTermScores() 
+	protected void normalizeFeedbackTermScores(final ExpansionContext ctx) 
 	{
-		float norm = feedbackTermScores.values().stream().reduce(0.0f,  Float::sum);
-		feedbackTermScores.replaceAll((termid, score) -> score / norm);	
+		final long start = System.nanoTime();
+		float norm = ctx.feedbackTermScores.values().stream().reduce(0.0f,  Float::sum);
+		ctx.feedbackTermScores.replaceAll((termid, score) -> score / norm);	
+		ctx.metrics.addTime("normalize", start);
 	}
 	
 	private static double logSumExp(final double[] scores)
@@ -8,14 +8,13 @@ import org.slf4j.LoggerFactory;
 import org.terrier.matching.BaseMatching;
 import org.terrier.matching.MatchingQueryTerms;
 import org.terrier.matching.MatchingQueryTerms.MatchingTerm;
+import org.terrier.matching.ResultSet;
 import org.terrier.matching.matchops.SingleTermOp;
 import org.terrier.querying.parser.Query.QTPBuilder;
 import org.terrier.structures.Index;
-import org.terrier.structures.LexiconEntry;
 
 import it.unimi.dsi.fastutil.ints.Int2FloatMap;
 import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 
 /**
  * RM3 implementation. This has been closely compared to the Anserini implementation using a common index.
@@ -28,32 +27,41 @@ public class RM3 extends RM1 {
     protected static Logger logger = LoggerFactory.getLogger(RM3.class);
 
     protected static final float DEFAULT_LAMBDA = 0.6F;
-    protected Int2FloatMap originalQueryTermScores;
     protected float lambda;
 
+    /**
+     * This class adds the original query and the interpolation weight of a request to the expansion state.
+     */
+    protected static class RM3ExpansionContext extends ExpansionContext {
+        protected final Int2FloatMap originalQueryTermScores;
+        protected final float lambda;
+
+        public RM3ExpansionContext(final Index index, final int fbTerms, final int fbDocs, final float lambda) {
+            super(index, fbTerms, fbDocs);
+            this.originalQueryTermScores = new Int2FloatOpenHashMap();
+            this.lambda = lambda;
+        }
+    }
+
     public RM3(final int fbTerms, final int fbDocs, final Index index) {
         this(fbTerms, fbDocs, index, DEFAULT_LAMBDA);
     }
 
     public RM3(final int fbTerms, final int fbDocs, final Index index, final float lambda) {
         super(fbTerms, fbDocs, index);
-
-        this.originalQueryTermScores = new Int2FloatOpenHashMap();
         this.lambda = lambda;
     }
 
     public RM3() {
         super();
-        this.originalQueryTermScores = new Int2FloatOpenHashMap();
         this.lambda = DEFAULT_LAMBDA;
     }
 
     public boolean expandQuery(MatchingQueryTerms mqt, Request rq) throws IOException {
-        this.index = rq.getIndex();
-        computeOriginalTermScore(mqt);
-        if (rq.hasControl("rm3.lambda"))
-            this.lambda = Float.parseFloat(rq.getControl("rm3.lambda"));
-        List<ExpansionTerm> expansions = this.expand(rq);
+        RM3ExpansionContext ctx = newContext(rq, mqt);
+        List<ExpansionTerm> expansions = this.expand(ctx, rq, mqt);
+        if (expansions == null)
+            return false;
         mqt.clear();
         StringBuilder sQuery = new StringBuilder();
         for (ExpansionTerm et : expansions) {
@@ -61,43 +69,70 @@ public class RM3 extends RM1 {
                     .setWeight(et.getWeight()).build());
             sQuery.append(et.getText() + "^" + et.getWeight() + " ");
         }
-        logger.info("Reformulated query "+ mqt.getQueryId() +" @ lambda="+this.lambda+": " + sQuery.toString());
+        logger.info("Reformulated query "+ mqt.getQueryId() +" @ lambda="+ctx.lambda+": " + sQuery.toString());
         //logger.info("Reformulated query: " + mqt.toString());
         return true;
     }
 
-    protected void computeOriginalTermScore(final MatchingQueryTerms mqt) {
-        this.originalQueryTermScores.clear();
+    /**
+     * Creates the expansion state of a request, using the rm3.lambda control of the request, if set.
+     */
+    @Override
+    protected RM3ExpansionContext newContext(final Request rq, final MatchingQueryTerms mqt) {
+        float lambda = this.lambda;
+        if (rq.hasControl("rm3.lambda"))
+            lambda = Float.parseFloat(rq.getControl("rm3.lambda"));
+        RM3ExpansionContext ctx = new RM3ExpansionContext(rq.getIndex() != null ? rq.getIndex() : index, fbTerms, fbDocs, lambda);
+        ctx.setShards(shards);
+        computeOriginalTermScore(ctx, mqt);
+        return ctx;
+    }
+
+    @Override
+    protected String getCacheParameters(final ExpansionContext ctx) {
+        return super.getCacheParameters(ctx) + ",lambda=" + ((RM3ExpansionContext) ctx).lambda;
+    }
+
+    protected void computeOriginalTermScore(final RM3ExpansionContext ctx, final MatchingQueryTerms mqt) {
         final float queryLength = (float) mqt.stream().map(mt -> mt.getValue().getWeight())
                 .mapToDouble(Double::doubleValue).sum();
         for (MatchingTerm mt : mqt) {
 
-            LexiconEntry le = super.index.getLexicon().getLexiconEntry(mt.getKey().toString());
-            if (le == null)
+            int termid = ctx.getTermId(mt.getKey().toString());
+            if (termid == -1)
                 continue;
-            int termid = le.getTermId();
             float termCount = (float) mt.getValue().getWeight();
-            originalQueryTermScores.put(termid, termCount / queryLength);
+            ctx.originalQueryTermScores.put(termid, termCount / queryLength);
         }
     }
 
     @Override
-    protected void computeFeedbackTermScores() {
-        super.computeFeedbackTermScores();
-        super.clipTerms();
-        super.normalizeFeedbackTermScores();
+    protected void computeFeedbackTermScores(final ExpansionContext context) {
+        super.computeFeedbackTermScores(context);
+        super.clipTerms(context);
+        super.normalizeFeedbackTermScores(context);
+        interpolateOriginalQuery((RM3ExpansionContext) context);
+    }
 
+    /**
+     * Mixes the normalised feedback term scores with the original query term scores, using the lambda of the context.
+     */
+    protected void interpolateOriginalQuery(final RM3ExpansionContext ctx) {
+        final long start = System.nanoTime();
+        final float lambda = ctx.lambda;
+        final Int2FloatMap feedbackTermScores = ctx.feedbackTermScores;
+        final Int2FloatMap originalQueryTermScores = ctx.originalQueryTermScores;
         for (int termid : feedbackTermScores.keySet()) {
-            //System.err.println("termid " + termid + " term " + super.index.getLexicon().getLexiconEntry(termid).getKey() +" " + feedbackTermScores.get(termid));
+            //System.err.println("termid " + termid + " term " + ctx.index.getLexicon().getLexiconEntry(termid).getKey() +" " + feedbackTermScores.get(termid));
             if (originalQueryTermScores.containsKey(termid)) {
-                //System.err.println("termid " + termid + " term " + super.index.getLexicon().getLexiconEntry(termid).getKey() +" " +"not new: old weight = " +  originalQueryTermScores.get(termid) + " fbweight="  + feedbackTermScores.get(termid));
+                //System.err.println("termid " + termid + " term " + ctx.index.getLexicon().getLexiconEntry(termid).getKey() +" " +"not new: old weight = " +  originalQueryTermScores.get(termid) + " fbweight="  + feedbackTermScores.get(termid));
 
                 float weight = lambda * originalQueryTermScores.get(termid)
                         + (1 - lambda) * feedbackTermScores.get(termid);
                 feedbackTermScores.put(termid, weight);
             } else {
                 feedbackTermScores.put(termid, (1 - lambda) * feedbackTermScores.get(termid));
-                //System.err.println("termid " + termid + " term " + super.index.getLexicon().getLexiconEntry(termid).getKey() +" " + feedbackTermScores.get(termid));
+                //System.err.println("termid " + termid + " term " + ctx.index.getLexicon().getLexiconEntry(termid).getKey() +" " + feedbackTermScores.get(termid));
             }
         }
 
@@ -107,22 +142,18 @@ public class RM3 extends RM1 {
                 feedbackTermScores.put(termid, weight);
             }
         }
+        ctx.metrics.addTime("interpolate", start);
     }
 
     @Override
-    public List<ExpansionTerm> expand(Request srq) throws IOException {
-        //return super.expand(srq);
-
-		this.topLexicon.clear();
-		this.topDocs.clear();
-		this.feedbackTermScores.clear();
+    protected List<ExpansionTerm> expand(final ExpansionContext ctx, final ResultSet rs) throws IOException {
+        //return super.expand(ctx, rs);
 
-		retrieveTopDocuments(srq.getResultSet());	
-		computeFeedbackTermScores();
+		retrieveTopDocuments(ctx, rs);	
+		if (ctx.deadline.hasDegraded(ExpansionDeadline.UNEXPANDED))
+			return null;
+		computeFeedbackTermScores(ctx);
 		
-		List<ExpansionTerm> rtr = new ObjectArrayList<>();
-		for (int termid: feedbackTermScores.keySet())
-			rtr.add(new ExpansionTerm(termid, index.getLexicon().getLexiconEntry(termid).getKey(), feedbackTermScores.get(termid)));
-		return rtr;
+		return getExpansionTerms(ctx);
     }
 }
@@ -0,0 +1,262 @@
+package org.terrier.querying;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.matching.MatchingQueryTerms;
+import org.terrier.matching.ResultSet;
+import org.terrier.querying.RM1.ExpansionContext;
+import org.terrier.querying.RM1.ExpansionTerm;
+import org.terrier.querying.RM1.FeedbackDocument;
+import org.terrier.querying.RM3.RM3ExpansionContext;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.utility.ApplicationSetup;
+
+import it.unimi.dsi.fastutil.ints.Int2FloatMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatMaps;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import lombok.Getter;
+
+/**
+ * This class computes the RM3 expansions of a query for a grid of fbDocs, fbTerms and lambda settings
+ * in a single pass, as needed when tuning these parameters. The largest number of feedback documents is
+ * decoded once; the RM1 weights for each fbDocs setting are prefix sums over the ranked feedback documents;
+ * the terms are selected once per fbDocs setting for the largest fbTerms, the smaller fbTerms settings
+ * being prefixes of that selection; and only the final normalisation and interpolation are repeated for
+ * each setting. The expansions are exactly those that {@link RM3} would compute for each setting.
+ * <p>
+ * Usage: <tt>bin/terrier org.terrier.querying.RMSweep</tt>, which retrieves each query of the topics file once,
+ * writes the expanded queries of each setting, and optionally retrieves them.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>rm.sweep.fbdocs - comma-separated fbDocs settings, defaults to <tt>expansion.documents</tt></li>
+ * <li>rm.sweep.fbterms - comma-separated fbTerms settings, defaults to <tt>expansion.terms</tt></li>
+ * <li>rm.sweep.lambdas - comma-separated lambda settings, defaults to 0.6</li>
+ * <li>rm.sweep.topics - file of queries, one per line, with the query id followed by the query text, defaults to <tt>trec.topics</tt></li>
+ * <li>rm.sweep.output - folder where a <tt>.queries</tt> file (and a <tt>.res</tt> run, if rm.sweep.runs is set) is written for each setting,
+ * defaults to <tt>trec.results</tt></li>
+ * <li>rm.sweep.runs - set to true to also retrieve the expanded queries of each setting, defaults to false</li>
+ * </ul>
+ */
+public class RMSweep
+{
+	protected static Logger logger = LoggerFactory.getLogger(RMSweep.class);
+
+	/**
+	 * This class represents the expansion of a query for one setting of the grid.
+	 */
+	public static class SweepPoint
+	{
+		@Getter protected final int fbDocs;
+		@Getter protected final int fbTerms;
+		@Getter protected final float lambda;
+		@Getter protected final List<ExpansionTerm> expansionTerms;
+
+		public SweepPoint(final int fbDocs, final int fbTerms, final float lambda, final List<ExpansionTerm> expansionTerms)
+		{
+			this.fbDocs = fbDocs;
+			this.fbTerms = fbTerms;
+			this.lambda = lambda;
+			this.expansionTerms = expansionTerms;
+		}
+
+		/** Returns a name identifying the setting of this point, suitable for a filename. */
+		public String getName()
+		{
+			return "rm3_fbdocs" + fbDocs + "_fbterms" + fbTerms + "_lambda" + lambda;
+		}
+
+		/** Returns the expanded query in the Terrier query language. */
+		public String toQuery()
+		{
+			StringBuilder sQuery = new StringBuilder();
+			for (ExpansionTerm et : expansionTerms)
+				sQuery.append(et.getText() + "^" + et.getWeight() + " ");
+			return sQuery.toString().trim();
+		}
+	}
+
+	protected final Index index;
+	protected final int[] fbDocsGrid;
+	protected final int[] fbTermsGrid;
+	protected final float[] lambdas;
+	protected final RM3 rm3;
+
+	/**
+	 * Constructor
+	 *
+	 * @param index the index to used to access the direct index postings, if not specified by the request
+	 * @param fbDocsGrid the fbDocs settings
+	 * @param fbTermsGrid the fbTerms settings
+	 * @param lambdas the lambda settings
+	 */
+	public RMSweep(final Index index, final int[] fbDocsGrid, final int[] fbTermsGrid, final float[] lambdas)
+	{
+		this.index = index;
+		this.fbDocsGrid = fbDocsGrid.clone();
+		this.fbTermsGrid = fbTermsGrid.clone();
+		this.lambdas = lambdas.clone();
+		Arrays.sort(this.fbDocsGrid);
+		Arrays.sort(this.fbTermsGrid);
+		this.rm3 = new RM3(this.fbTermsGrid[this.fbTermsGrid.length - 1], this.fbDocsGrid[this.fbDocsGrid.length - 1], index);
+	}
+
+	/**
+	 * Computes the expansions of a request for all settings of the grid, ordered by fbDocs, then fbTerms, then lambda.
+	 *
+	 * @param rq the request, with its first-pass result set
+	 * @return the expansion of each setting
+	 *
+	 * @throws IOException if there are problems in accessing the direct index
+	 */
+	public List<SweepPoint> sweep(final Request rq) throws IOException
+	{
+		return sweep(rq.getIndex() != null ? rq.getIndex() : index, rq.getMatchingQueryTerms(), rq.getResultSet());
+	}
+
+	/**
+	 * Computes the expansions of a query for all settings of the grid, ordered by fbDocs, then fbTerms, then lambda.
+	 *
+	 * @param index the index to used to access the direct index postings
+	 * @param mqt the original query
+	 * @param rs the first-pass result set
+	 * @return the expansion of each setting
+	 *
+	 * @throws IOException if there are problems in accessing the direct index
+	 */
+	public List<SweepPoint> sweep(final Index index, final MatchingQueryTerms mqt, final ResultSet rs) throws IOException
+	{
+		final int maxFbTerms = fbTermsGrid[fbTermsGrid.length - 1];
+		final ExpansionContext feedback = new ExpansionContext(index, maxFbTerms, fbDocsGrid[fbDocsGrid.length - 1]);
+		rm3.retrieveTopDocuments(feedback, rs);
+
+		final List<SweepPoint> points = new ObjectArrayList<>();
+		// the lexicon and weights of the first d feedback documents, built as RM1 does for fbDocs=d
+		final IntOpenHashSet topLexicon = new IntOpenHashSet();
+		final Int2FloatOpenHashMap fbWeights = new Int2FloatOpenHashMap();
+		int d = 0;
+		for (int fbDocs : fbDocsGrid) {
+			final int numDocs = Math.min(fbDocs, feedback.topDocs.size());
+			for (; d < numDocs; d++) {
+				final FeedbackDocument doc = feedback.topDocs.get(d);
+				topLexicon.addAll(doc.getTermIds());
+				RM1.accumulateFeedbackWeights(doc, fbWeights);
+			}
+
+			// select the terms once, for the largest fbTerms
+			final float norm = 1.0f / numDocs;
+			final Int2FloatMap feedbackTermScores = new Int2FloatOpenHashMap();
+			for (int termid : topLexicon)
+				feedbackTermScores.put(termid, fbWeights.get(termid) * norm);
+			final TopKSelector topTerms = new TopKSelector(maxFbTerms);
+			for (Int2FloatMap.Entry e : Int2FloatMaps.fastIterable(feedbackTermScores))
+				topTerms.add(e.getIntKey(), e.getFloatValue());
+			final int size = topTerms.sort();
+
+			for (int fbTerms : fbTermsGrid) {
+				for (float lambda : lambdas) {
+					final RM3ExpansionContext ctx = new RM3ExpansionContext(index, fbTerms, fbDocs, lambda);
+					rm3.computeOriginalTermScore(ctx, mqt);
+					for (int i = 0; i < Math.min(fbTerms, size); i++)
+						ctx.feedbackTermScores.put(topTerms.getId(i), (float) topTerms.getScore(i));
+					rm3.normalizeFeedbackTermScores(ctx);
+					rm3.interpolateOriginalQuery(ctx);
+					points.add(new SweepPoint(fbDocs, fbTerms, lambda, rm3.getExpansionTerms(ctx)));
+				}
+			}
+		}
+		return points;
+	}
+
+	static int[] parseInts(final String values)
+	{
+		return Arrays.stream(values.split("\\s*,\\s*")).mapToInt(Integer::parseInt).toArray();
+	}
+
+	static float[] parseFloats(final String values)
+	{
+		final String[] parts = values.split("\\s*,\\s*");
+		final float[] rtr = new float[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			rtr[i] = Float.parseFloat(parts[i]);
+		return rtr;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		final IndexOnDisk index = IndexOnDisk.createIndex();
+		if (index == null) {
+			logger.error("Could not load index: " + IndexOnDisk.getLastIndexLoadError());
+			return;
+		}
+		final RMSweep sweep = new RMSweep(index,
+			parseInts(ApplicationSetup.getProperty("rm.sweep.fbdocs", String.valueOf(ApplicationSetup.EXPANSION_DOCUMENTS))),
+			parseInts(ApplicationSetup.getProperty("rm.sweep.fbterms", String.valueOf(ApplicationSetup.EXPANSION_TERMS))),
+			parseFloats(ApplicationSetup.getProperty("rm.sweep.lambdas", String.valueOf(RM3.DEFAULT_LAMBDA))));
+		final String output = ApplicationSetup.getProperty("rm.sweep.output", ApplicationSetup.getProperty("trec.results", "."));
+		final boolean runs = Boolean.parseBoolean(ApplicationSetup.getProperty("rm.sweep.runs", "false"));
+		final Manager manager = ManagerFactory._from_(index.getIndexRef());
+
+		final List<String> topics = Files.readAllLines(Paths.get(ApplicationSetup.getProperty("rm.sweep.topics",
+			ApplicationSetup.getProperty("trec.topics", ""))), StandardCharsets.UTF_8);
+		PrintWriter[] queryWriters = null;
+		PrintWriter[] runWriters = null;
+		final long start = System.currentTimeMillis();
+		try {
+			for (String line : topics) {
+				final String[] parts = line.trim().split("\\s+", 2);
+				if (parts.length < 2)
+					continue;
+				final Request rq = (Request) manager.newSearchRequest(parts[0], parts[1]);
+				manager.runSearchRequest(rq);
+				final List<SweepPoint> points = sweep.sweep(rq);
+				if (queryWriters == null) {
+					queryWriters = new PrintWriter[points.size()];
+					runWriters = new PrintWriter[points.size()];
+					for (int p = 0; p < points.size(); p++) {
+						queryWriters[p] = new PrintWriter(Files.newBufferedWriter(Paths.get(output, points.get(p).getName() + ".queries"), StandardCharsets.UTF_8));
+						if (runs)
+							runWriters[p] = new PrintWriter(Files.newBufferedWriter(Paths.get(output, points.get(p).getName() + ".res"), StandardCharsets.UTF_8));
+					}
+				}
+				for (int p = 0; p < points.size(); p++) {
+					final SweepPoint point = points.get(p);
+					queryWriters[p].println(parts[0] + " " + point.toQuery());
+					if (! runs)
+						continue;
+					final Request expanded = (Request) manager.newSearchRequest(parts[0], point.toQuery());
+					manager.runSearchRequest(expanded);
+					writeRun(runWriters[p], index, parts[0], expanded.getResultSet(), point.getName());
+				}
+			}
+		} finally {
+			for (PrintWriter[] writers : new PrintWriter[][]{queryWriters, runWriters})
+				if (writers != null)
+					for (PrintWriter w : writers)
+						if (w != null)
+							w.close();
+		}
+		logger.info("Swept " + topics.size() + " queries over " + (queryWriters == null ? 0 : queryWriters.length) + " settings in "
+			+ (System.currentTimeMillis() - start) + "ms, writing to " + new File(output).getAbsolutePath());
+		index.close();
+	}
+
+	static void writeRun(final PrintWriter w, final Index index, final String qid, final ResultSet rs, final String tag) throws IOException
+	{
+		final int[] docids = rs.getDocids();
+		final double[] scores = rs.getScores();
+		for (int i = 0; i < rs.getResultSize(); i++)
+			w.println(qid + " Q0 " + index.getMetaIndex().getItem("docno", docids[i]) + " " + i + " " + scores[i] + " " + tag);
+	}
+}
@@ -0,0 +1,554 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexFactory;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.utility.ApplicationSetup;
+
+import it.unimi.dsi.fastutil.ints.Int2FloatMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatMaps;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import lombok.Getter;
+
+/**
+ * This class computes pseudo-relevance feedback statistics over a collection split across several index shards,
+ * each holding the direct index of its own documents. Each feedback document is sent to its shard, which only
+ * returns compact partial statistics over its documents: the RM1 weights of their terms, or the document and joint
+ * document frequencies needed by {@link AxiomaticQE}. The partials are keyed by term, as each shard has its own
+ * lexicon, and are merged here, together with the document frequencies of the terms in the whole collection.
+ * <p>
+ * Documents are numbered across shards as by Terrier's MultiIndex: the documents of the first shard, then those
+ * of the second shard, and so on, so that a docid of the collection is the offset of its shard plus its docid in
+ * the shard. The first-pass result set must use these docids.
+ * <p>
+ * {@link IndexShard} is an in-process stand-in for a shard, reading a local index. A remote shard would implement
+ * {@link Shard} by sending the docids to its node and returning the partials, which are serializable.
+ * <p><b>Properties:</b>
+ * <ul>
+ * <li>prf.shards - comma-separated locations of the indices of the shards, in docid order, used by RM1, RM3 and
+ * AxiomaticQE to obtain their feedback statistics, rather than the direct index of the request. Not set by default.</li>
+ * <li>prf.shards.threads - number of threads used to query the shards concurrently, defaults to 0, i.e. the shards
+ * are queried in turn by the calling thread</li>
+ * <li>prf.mindf, prf.maxdp - the document frequency range of the RM1 candidate terms in the whole collection, see {@link CandidateTermFilter}</li>
+ * </ul>
+ */
+public class ShardedFeedback
+{
+	protected static Logger logger = LoggerFactory.getLogger(ShardedFeedback.class);
+
+	/**
+	 * A shard of the collection, which computes partial feedback statistics over its own documents.
+	 */
+	public interface Shard
+	{
+		/** Returns the number of documents of this shard. */
+		int getNumberOfDocuments();
+
+		/**
+		 * Returns the document frequencies of terms in this shard.
+		 *
+		 * @param terms the terms
+		 * @return the number of documents of this shard containing each term, 0 if unknown, aligned with terms
+		 *
+		 * @throws IOException if there are problems in accessing the shard
+		 */
+		int[] getDocumentFrequencies(String[] terms) throws IOException;
+
+		/**
+		 * Computes the unnormalised RM1 weights of the terms of feedback documents of this shard, i.e. for each
+		 * term, the sum over the documents of its frequency divided by the document length times the document weight.
+		 * The weights are accumulated in the order of the documents.
+		 *
+		 * @param docids the docids of the documents in this shard, by rank
+		 * @param weights the weight of each document, aligned with docids
+		 * @param maxDf the terms occurring in at least this many documents of this shard, and hence of the collection, can be left out
+		 * @return the partial weights
+		 *
+		 * @throws IOException if there are problems in accessing the shard
+		 */
+		RelevancePartial getRelevancePartial(int[] docids, double[] weights, int maxDf) throws IOException;
+
+		/**
+		 * Counts the document frequencies of the terms of documents of this shard, and their joint document
+		 * frequencies with the query terms.
+		 *
+		 * @param docids the docids of the documents in this shard
+		 * @param queryTerms the query terms
+		 * @return the partial counts
+		 *
+		 * @throws IOException if there are problems in accessing the shard
+		 */
+		CooccurrencePartial getCooccurrencePartial(int[] docids, String[] queryTerms) throws IOException;
+	}
+
+	/**
+	 * The unnormalised RM1 weights of the terms of the feedback documents of a shard.
+	 */
+	public static class RelevancePartial implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Getter protected final String[] terms;
+		@Getter protected final float[] weights;
+		@Getter protected final long postings;
+
+		public RelevancePartial(final String[] terms, final float[] weights, final long postings)
+		{
+			this.terms = terms;
+			this.weights = weights;
+			this.postings = postings;
+		}
+	}
+
+	/**
+	 * The document frequencies of the terms of some documents of a shard, and their joint document frequencies
+	 * with the query terms, as counted by {@link CooccurrenceCounter}.
+	 */
+	public static class CooccurrencePartial implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Getter protected final String[] terms;
+		@Getter protected final int[] documentFrequencies;
+		// query term -> joint document frequency of each term, aligned with terms
+		@Getter protected final int[][] jointDocumentFrequencies;
+		@Getter protected final int numberOfDocuments;
+		@Getter protected final long numberOfPairs;
+		@Getter protected final long postings;
+
+		public CooccurrencePartial(final String[] terms, final int[] documentFrequencies, final int[][] jointDocumentFrequencies,
+			final int numberOfDocuments, final long numberOfPairs, final long postings)
+		{
+			this.terms = terms;
+			this.documentFrequencies = documentFrequencies;
+			this.jointDocumentFrequencies = jointDocumentFrequencies;
+			this.numberOfDocuments = numberOfDocuments;
+			this.numberOfPairs = numberOfPairs;
+			this.postings = postings;
+		}
+	}
+
+	/**
+	 * The terms of a sharded expansion, numbered as they are first seen, as the termids of the shards differ.
+	 * These termids are only valid within the expansion.
+	 */
+	public static class Terms
+	{
+		protected final Object2IntOpenHashMap<String> termids = new Object2IntOpenHashMap<>();
+		protected final ObjectArrayList<String> terms = new ObjectArrayList<>();
+
+		public Terms()
+		{
+			termids.defaultReturnValue(-1);
+		}
+
+		/** Returns the termid of a term, numbering it if it is new. */
+		public int getOrAdd(final String term)
+		{
+			int termid = termids.getInt(term);
+			if (termid == -1) {
+				termid = terms.size();
+				terms.add(term);
+				termids.put(term, termid);
+			}
+			return termid;
+		}
+
+		/** Returns the termid of a term, or -1 if it has not been numbered. */
+		public int getTermId(final String term)
+		{
+			return termids.getInt(term);
+		}
+
+		/** Returns the term of a termid. */
+		public String getTerm(final int termid)
+		{
+			return terms.get(termid);
+		}
+
+		/** Returns the number of terms numbered. */
+		public int size()
+		{
+			return terms.size();
+		}
+	}
+
+	/**
+	 * A shard reading a local index, as an in-process stand-in for a remote shard. Documents are decoded through
+	 * the {@link DocumentVectorCache} of the index, and terms are resolved through its {@link LexiconCache}.
+	 */
+	public static class IndexShard implements Shard
+	{
+		@Getter protected final Index index;
+
+		public IndexShard(final Index index)
+		{
+			this.index = index;
+		}
+
+		@Override
+		public int getNumberOfDocuments()
+		{
+			return index.getCollectionStatistics().getNumberOfDocuments();
+		}
+
+		@Override
+		public int[] getDocumentFrequencies(final String[] terms)
+		{
+			final LexiconCache lexicon = LexiconCache.of(index);
+			final int[] rtr = new int[terms.length];
+			for (int i = 0; i < terms.length; i++) {
+				final LexiconEntry le = lexicon.getLexiconEntry(terms[i]);
+				rtr[i] = le == null ? 0 : le.getDocumentFrequency();
+			}
+			return rtr;
+		}
+
+		@Override
+		public RelevancePartial getRelevancePartial(final int[] docids, final double[] weights, final int maxDf) throws IOException
+		{
+			final DocumentVector[] dvs = DocumentVectorCache.of(index).getAll(docids);
+			final Int2FloatOpenHashMap fbWeights = new Int2FloatOpenHashMap();
+			long postings = 0;
+			for (int d = 0; d < dvs.length; d++) {
+				final double length = (double) dvs[d].getLength();
+				final int[] termids = dvs[d].getTermIds();
+				final int[] frequencies = dvs[d].getFrequencies();
+				// same float accumulation, in the same document order, as RM1
+				for (int i = 0; i < termids.length; i++) {
+					float fbWeight = fbWeights.get(termids[i]);
+					fbWeight += (double) frequencies[i] / length * weights[d];
+					fbWeights.put(termids[i], fbWeight);
+				}
+				postings += termids.length;
+			}
+
+			final LexiconCache lexicon = LexiconCache.of(index);
+			final String[] terms = new String[fbWeights.size()];
+			final float[] termWeights = new float[fbWeights.size()];
+			int size = 0;
+			for (Int2FloatMap.Entry e : Int2FloatMaps.fastIterable(fbWeights)) {
+				final Map.Entry<String, LexiconEntry> le = lexicon.getLexiconEntry(e.getIntKey());
+				if (le.getValue().getDocumentFrequency() >= maxDf)
+					continue;
+				terms[size] = le.getKey();
+				termWeights[size] = e.getFloatValue();
+				size++;
+			}
+			return new RelevancePartial(Arrays.copyOf(terms, size), Arrays.copyOf(termWeights, size), postings);
+		}
+
+		@Override
+		public CooccurrencePartial getCooccurrencePartial(final int[] docids, final String[] queryTerms) throws IOException
+		{
+			final LexiconCache lexicon = LexiconCache.of(index);
+			final int[] queryTermIds = new int[queryTerms.length];
+			for (int q = 0; q < queryTerms.length; q++) {
+				final LexiconEntry le = lexicon.getLexiconEntry(queryTerms[q]);
+				// a query term missing from this shard gets a termid that no document contains
+				queryTermIds[q] = le != null ? le.getTermId() : -1 - q;
+			}
+			final int[] sorted = docids.clone();
+			Arrays.sort(sorted);
+			final DocumentVector[] dvs = DocumentVectorCache.of(index).getAll(sorted);
+			final CooccurrenceCounter counter = CooccurrenceCounter.create(queryTermIds, dvs.length);
+			long postings = 0;
+			for (DocumentVector dv : dvs) {
+				counter.addDocument(dv.getTermIds());
+				postings += dv.getTermIds().length;
+			}
+
+			final int numberOfTerms = counter.getNumberOfTerms();
+			final String[] terms = new String[numberOfTerms];
+			final int[] documentFrequencies = new int[numberOfTerms];
+			final int[][] jointDocumentFrequencies = new int[queryTerms.length][numberOfTerms];
+			for (int q = 0; q < queryTerms.length; q++)
+				terms[counter.getQueryTermSlot(q)] = queryTerms[q];
+			for (int slot = 0; slot < numberOfTerms; slot++) {
+				if (terms[slot] == null)
+					terms[slot] = lexicon.getTerm(counter.getTermId(slot));
+				documentFrequencies[slot] = counter.getDocumentFrequency(slot);
+				for (int q = 0; q < queryTerms.length; q++)
+					jointDocumentFrequencies[q][slot] = counter.getJointDocumentFrequency(q, slot);
+			}
+			return new CooccurrencePartial(terms, documentFrequencies, jointDocumentFrequencies,
+				counter.getNumberOfDocuments(), counter.getNumberOfPairs(), postings);
+		}
+	}
+
+	static ShardedFeedback configured = null;
+	static boolean configuredInitialised = false;
+
+	/**
+	 * Returns the shards configured by the <tt>prf.shards</tt> property, loading their indices if necessary.
+	 *
+	 * @return the shards, or null if prf.shards is not set
+	 */
+	public static synchronized ShardedFeedback get()
+	{
+		if (! configuredInitialised) {
+			final String locations = ApplicationSetup.getProperty("prf.shards", "");
+			if (locations.length() > 0) {
+				final List<Shard> shards = new ObjectArrayList<>();
+				for (String location : locations.split("\\s*,\\s*")) {
+					final Index index = IndexFactory.of(IndexRef.of(location));
+					if (index == null)
+						throw new IllegalArgumentException("Could not load shard " + location);
+					shards.add(new IndexShard(index));
+				}
+				configured = new ShardedFeedback(shards);
+			}
+			configuredInitialised = true;
+		}
+		return configured;
+	}
+
+	/**
+	 * Returns the in-process shards of several indices.
+	 *
+	 * @param indices the indices of the shards, in docid order
+	 * @return the shards
+	 */
+	public static ShardedFeedback of(final Index... indices)
+	{
+		final List<Shard> shards = new ObjectArrayList<>();
+		for (Index index : indices)
+			shards.add(new IndexShard(index));
+		return new ShardedFeedback(shards);
+	}
+
+	static final SharedPool SHARD_POOL = new SharedPool("prf.shards.threads", 0, "prf-shard", "Querying shards");
+
+	/** Returns the shared pool used to query shards concurrently, or null if shards should be queried in turn. */
+	static ExecutorService getShardPool()
+	{
+		return SHARD_POOL.get();
+	}
+
+	protected final Shard[] shards;
+	// shard -> docid of its first document, followed by the number of documents of the collection
+	protected final int[] offsets;
+
+	public ShardedFeedback(final List<? extends Shard> shards)
+	{
+		this.shards = shards.toArray(new Shard[shards.size()]);
+		this.offsets = new int[this.shards.length + 1];
+		for (int s = 0; s < this.shards.length; s++)
+			offsets[s + 1] = offsets[s] + this.shards[s].getNumberOfDocuments();
+		logger.info("Feedback documents are split across " + this.shards.length + " shards of " + offsets[this.shards.length] + " documents");
+	}
+
+	/** Returns the number of shards. */
+	public int size()
+	{
+		return shards.length;
+	}
+
+	/** Returns the number of documents of the collection, i.e. of all shards. */
+	public int getNumberOfDocuments()
+	{
+		return offsets[shards.length];
+	}
+
+	/**
+	 * Returns the shard holding a document.
+	 *
+	 * @param docid the docid of the document in the collection
+	 * @return the position of the shard
+	 */
+	public int getShard(final int docid)
+	{
+		if (docid < 0 || docid >= getNumberOfDocuments())
+			throw new IllegalArgumentException("Docid " + docid + " is not in any of the " + shards.length + " shards");
+		int s = 0;
+		// shards with no documents share their offset with the next shard
+		while (offsets[s + 1] <= docid)
+			s++;
+		return s;
+	}
+
+	/**
+	 * Returns the document frequencies of terms in the collection, summed over all shards.
+	 *
+	 * @param terms the terms
+	 * @return the document frequency of each term, aligned with terms
+	 *
+	 * @throws IOException if there are problems in accessing the shards
+	 */
+	public int[] getDocumentFrequencies(final String[] terms) throws IOException
+	{
+		final List<Callable<int[]>> calls = new ObjectArrayList<>();
+		for (Shard shard : shards)
+			calls.add(() -> shard.getDocumentFrequencies(terms));
+		final int[] rtr = new int[terms.length];
+		for (int[] partial : fanOut(calls))
+			for (int i = 0; i < terms.length; i++)
+				rtr[i] += partial[i];
+		return rtr;
+	}
+
+	/**
+	 * Computes the unnormalised RM1 weights of the candidate terms of the feedback documents, merging the partial
+	 * weights of their shards. The candidate terms are those whose document frequency in the collection is within
+	 * the range set by the <tt>prf.mindf</tt> and <tt>prf.maxdp</tt> properties, as for {@link CandidateTermFilter}.
+	 * The weights are those of RM1 over a single index, up to the rounding of the float sums of the partials.
+	 *
+	 * @param docids the docids of the feedback documents in the collection, by rank
+	 * @param weights the weight of each document, aligned with docids
+	 * @param terms the terms of the expansion, where the candidate terms are numbered
+	 * @return the termid of each candidate term in terms -> its weight
+	 *
+	 * @throws IOException if there are problems in accessing the shards
+	 */
+	public Int2FloatOpenHashMap getRelevanceWeights(final int[] docids, final double[] weights, final Terms terms) throws IOException
+	{
+		final int minDf = Integer.parseInt(ApplicationSetup.getProperty("prf.mindf", "2"));
+		final double maxDocPercentage = Float.parseFloat(ApplicationSetup.getProperty("prf.maxdp", "0.1"));
+		final int maxDf = (int) (maxDocPercentage * getNumberOfDocuments());
+
+		final int[][] localDocids = split(docids);
+		final double[][] localWeights = new double[shards.length][];
+		final int[] counts = new int[shards.length];
+		for (int s = 0; s < shards.length; s++)
+			localWeights[s] = new double[localDocids[s].length];
+		for (int i = 0; i < docids.length; i++) {
+			final int s = getShard(docids[i]);
+			localWeights[s][counts[s]++] = weights[i];
+		}
+		final List<Callable<RelevancePartial>> calls = new ObjectArrayList<>();
+		for (int s = 0; s < shards.length; s++) {
+			if (localDocids[s].length == 0)
+				continue;
+			final Shard shard = shards[s];
+			final int[] shardDocids = localDocids[s];
+			final double[] shardWeights = localWeights[s];
+			calls.add(() -> shard.getRelevancePartial(shardDocids, shardWeights, maxDf));
+		}
+
+		final Int2FloatOpenHashMap rtr = new Int2FloatOpenHashMap();
+		long postings = 0;
+		for (RelevancePartial partial : fanOut(calls)) {
+			for (int i = 0; i < partial.getTerms().length; i++) {
+				final int termid = terms.getOrAdd(partial.getTerms()[i]);
+				float fbWeight = rtr.get(termid);
+				fbWeight += partial.getWeights()[i];
+				rtr.put(termid, fbWeight);
+			}
+			postings += partial.getPostings();
+		}
+
+		final int[] termids = rtr.keySet().toIntArray();
+		final String[] candidates = new String[termids.length];
+		for (int i = 0; i < termids.length; i++)
+			candidates[i] = terms.getTerm(termids[i]);
+		final int[] dfs = getDocumentFrequencies(candidates);
+		for (int i = 0; i < termids.length; i++)
+			if (dfs[i] < minDf || dfs[i] >= maxDf)
+				rtr.remove(termids[i]);
+		logger.info("Merged the weights of " + rtr.size() + " candidate terms, out of " + termids.length + ", from "
+			+ calls.size() + " shards holding " + docids.length + " feedback documents (" + postings + " postings)");
+		return rtr;
+	}
+
+	/**
+	 * Counts the document frequencies of the terms of a sample of documents, and their joint document frequencies with
+	 * the query terms, merging the partial counts of their shards. The counts are exactly those of a single index.
+	 *
+	 * @param docids the docids of the sampled documents in the collection
+	 * @param queryTerms the query terms
+	 * @param terms the terms of the expansion, where the query terms and the terms of the sample are numbered
+	 * @return the merged counts, where terms are identified by their termids in terms
+	 *
+	 * @throws IOException if there are problems in accessing the shards
+	 */
+	public CooccurrenceCounter getCooccurrences(final int[] docids, final String[] queryTerms, final Terms terms) throws IOException
+	{
+		final int[][] localDocids = split(docids);
+		final List<Callable<CooccurrencePartial>> calls = new ObjectArrayList<>();
+		for (int s = 0; s < shards.length; s++) {
+			if (localDocids[s].length == 0)
+				continue;
+			final Shard shard = shards[s];
+			final int[] shardDocids = localDocids[s];
+			calls.add(() -> shard.getCooccurrencePartial(shardDocids, queryTerms));
+		}
+
+		final int[] queryTermIds = new int[queryTerms.length];
+		for (int q = 0; q < queryTerms.length; q++)
+			queryTermIds[q] = terms.getOrAdd(queryTerms[q]);
+		final CooccurrenceCounter.MergedCooccurrenceCounter rtr = new CooccurrenceCounter.MergedCooccurrenceCounter(queryTermIds);
+		final int[] joint = new int[queryTerms.length];
+		long postings = 0;
+		for (CooccurrencePartial partial : fanOut(calls)) {
+			for (int i = 0; i < partial.getTerms().length; i++) {
+				for (int q = 0; q < queryTerms.length; q++)
+					joint[q] = partial.getJointDocumentFrequencies()[q][i];
+				rtr.addCounts(terms.getOrAdd(partial.getTerms()[i]), partial.getDocumentFrequencies()[i], joint);
+			}
+			rtr.addDocuments(partial.getNumberOfDocuments(), partial.getNumberOfPairs());
+			postings += partial.getPostings();
+		}
+		logger.info("Merged the counts of " + rtr.getNumberOfTerms() + " terms from " + calls.size() + " shards holding "
+			+ docids.length + " sampled documents (" + postings + " postings)");
+		return rtr;
+	}
+
+	/** Splits docids of the collection into the docids of each shard, keeping their order. */
+	protected int[][] split(final int[] docids)
+	{
+		final int[] counts = new int[shards.length];
+		for (int docid : docids)
+			counts[getShard(docid)]++;
+		final int[][] rtr = new int[shards.length][];
+		for (int s = 0; s < shards.length; s++)
+			rtr[s] = new int[counts[s]];
+		Arrays.fill(counts, 0);
+		for (int docid : docids) {
+			final int s = getShard(docid);
+			rtr[s][counts[s]++] = docid - offsets[s];
+		}
+		return rtr;
+	}
+
+	/** Runs calls to the shards, concurrently if <tt>prf.shards.threads</tt> is set, and returns their results in order. */
+	protected static <T> List<T> fanOut(final List<Callable<T>> calls) throws IOException
+	{
+		final List<T> rtr = new ObjectArrayList<>(calls.size());
+		final ExecutorService pool = getShardPool();
+		try {
+			if (pool == null || calls.size() < 2) {
+				for (Callable<T> call : calls)
+					rtr.add(call.call());
+				return rtr;
+			}
+			final List<Future<T>> futures = new ObjectArrayList<>(calls.size());
+			try {
+				for (Callable<T> call : calls)
+					futures.add(pool.submit(call));
+				for (Future<T> future : futures)
+					rtr.add(SharedPool.await(future));
+			} finally {
+				for (Future<T> future : futures)
+					future.cancel(false);
+			}
+			return rtr;
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package org.terrier.querying;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terrier.utility.ApplicationSetup;
+
+/**
+ * A pool of daemon threads shared by all requests, e.g. to decode documents or query shards concurrently, which
+ * is created when it is first needed, with the number of threads set by a property. This class also unwraps the
+ * exceptions of the tasks run by such pools.
+ */
+public class SharedPool
+{
+	protected static Logger logger = LoggerFactory.getLogger(SharedPool.class);
+
+	protected final String property;
+	protected final int defaultThreads;
+	protected final String threadName;
+	protected final String description;
+	protected ExecutorService pool = null;
+	protected boolean initialised = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param property the property setting the number of threads
+	 * @param defaultThreads the number of threads if the property is not set; 0 means no pool
+	 * @param threadName the name of the threads
+	 * @param description what the threads do, for the log
+	 */
+	public SharedPool(final String property, final int defaultThreads, final String threadName, final String description)
+	{
+		this.property = property;
+		this.defaultThreads = defaultThreads;
+		this.threadName = threadName;
+		this.description = description;
+	}
+
+	/** Returns the pool, creating it if necessary, or null if the number of threads is 0. */
+	public synchronized ExecutorService get()
+	{
+		if (! initialised) {
+			final int threads = Integer.parseInt(ApplicationSetup.getProperty(property, String.valueOf(defaultThreads)));
+			if (threads > 0) {
+				pool = Executors.newFixedThreadPool(threads, r -> {
+					Thread t = new Thread(r, threadName);
+					t.setDaemon(true);
+					return t;
+				});
+				logger.info(description + " using " + threads + " threads");
+			}
+			initialised = true;
+		}
+		return pool;
+	}
+
+	/**
+	 * Shuts the pool down once its tasks are done, so that the next call to {@link #get()} creates a new pool with
+	 * the number of threads set by the property at that time.
+	 */
+	public synchronized void reset()
+	{
+		if (pool != null)
+			pool.shutdown();
+		pool = null;
+		initialised = false;
+	}
+
+	/**
+	 * Waits for the result of a task.
+	 *
+	 * @param result the result of the task
+	 * @return the result
+	 *
+	 * @throws IOException if the task threw an IOException, or the wait was interrupted
+	 */
+	public static <T> T await(final Future<T> result) throws IOException
+	{
+		try {
+			return result.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ie);
+		} catch (ExecutionException ee) {
+			throw unwrap(ee);
+		}
+	}
+
+	/**
+	 * Waits for the result of a task, for at most the specified time.
+	 *
+	 * @param result the result of the task
+	 * @param nanos the maximum time to wait, in nanoseconds
+	 * @return the result
+	 *
+	 * @throws IOException if the task threw an IOException, or the wait was interrupted
+	 * @throws TimeoutException if the task did not complete in time
+	 */
+	public static <T> T await(final Future<T> result, final long nanos) throws IOException, TimeoutException
+	{
+		try {
+			return result.get(nanos, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ie);
+		} catch (ExecutionException ee) {
+			throw unwrap(ee);
+		}
+	}
+
+	/**
+	 * Returns the IOException thrown by a task, to be rethrown, or throws its other exceptions as a RuntimeException.
+	 *
+	 * @param ee the exception of the task
+	 * @return the IOException thrown by the task
+	 */
+	public static IOException unwrap(final ExecutionException ee)
+	{
+		if (ee.getCause() instanceof IOException)
+			return (IOException) ee.getCause();
+		throw new RuntimeException(ee.getCause());
+	}
+}
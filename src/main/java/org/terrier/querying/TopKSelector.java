@@ -0,0 +1,155 @@
+package org.terrier.querying;
+
+import java.util.Arrays;
+
+/**
+ * A bounded top-k selector over (id, score) pairs, implemented as a binary min-heap over parallel
+ * primitive arrays, so that no object is allocated per candidate. Among candidates with equal scores,
+ * those added first are preferred, i.e. the selection is the same as a stable sort by descending score
+ * truncated to k elements.
+ */
+public class TopKSelector
+{
+	protected final int k;
+	protected int[] ids;
+	protected double[] scores;
+	// the position of each candidate in the order that they were added, to break ties
+	protected int[] sequence;
+	protected int size = 0;
+	protected int added = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param k the maximum number of candidates to retain
+	 */
+	public TopKSelector(final int k)
+	{
+		this.k = Math.max(k, 0);
+		final int capacity = Math.min(this.k, 16);
+		this.ids = new int[capacity];
+		this.scores = new double[capacity];
+		this.sequence = new int[capacity];
+	}
+
+	/** Removes all candidates, so that this selector can be reused. */
+	public void clear()
+	{
+		size = 0;
+		added = 0;
+	}
+
+	/** Returns the number of retained candidates. */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Offers a candidate to this selector.
+	 *
+	 * @param id the id of the candidate
+	 * @param score the score of the candidate
+	 */
+	public void add(final int id, final double score)
+	{
+		final int seq = added++;
+		if (size < k) {
+			if (size == ids.length) {
+				final int capacity = (int) Math.min((long) k, 2L * size);
+				ids = Arrays.copyOf(ids, capacity);
+				scores = Arrays.copyOf(scores, capacity);
+				sequence = Arrays.copyOf(sequence, capacity);
+			}
+			set(size, id, score, seq);
+			siftUp(size++);
+		} else if (k > 0 && worse(scores[0], sequence[0], score, seq)) {
+			set(0, id, score, seq);
+			siftDown(0, size);
+		}
+	}
+
+	/**
+	 * Sorts the retained candidates by descending score, so that they can be accessed using
+	 * {@link #getId(int)} and {@link #getScore(int)}. No candidate should be added after sorting,
+	 * until {@link #clear()} is called.
+	 *
+	 * @return the number of retained candidates
+	 */
+	public int sort()
+	{
+		// heapsort: repeatedly move the worst remaining candidate to the end
+		for (int end = size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+		return size;
+	}
+
+	/** Returns the id of the i-th best candidate, after {@link #sort()}. */
+	public int getId(final int i)
+	{
+		return ids[i];
+	}
+
+	/** Returns the score of the i-th best candidate, after {@link #sort()}. */
+	public double getScore(final int i)
+	{
+		return scores[i];
+	}
+
+	/** Returns true if candidate (score1, seq1) should be ranked after candidate (score2, seq2). */
+	protected static boolean worse(final double score1, final int seq1, final double score2, final int seq2)
+	{
+		final int cmp = Double.compare(score1, score2);
+		return cmp < 0 || (cmp == 0 && seq1 > seq2);
+	}
+
+	protected boolean worse(final int i, final int j)
+	{
+		return worse(scores[i], sequence[i], scores[j], sequence[j]);
+	}
+
+	protected void siftUp(int i)
+	{
+		while (i > 0) {
+			final int parent = (i - 1) >>> 1;
+			if (! worse(i, parent))
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	protected void siftDown(int i, final int end)
+	{
+		while (true) {
+			final int left = 2 * i + 1;
+			if (left >= end)
+				break;
+			int child = left;
+			if (left + 1 < end && worse(left + 1, left))
+				child = left + 1;
+			if (! worse(child, i))
+				break;
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	protected void set(final int i, final int id, final double score, final int seq)
+	{
+		ids[i] = id;
+		scores[i] = score;
+		sequence[i] = seq;
+	}
+
+	protected void swap(final int i, final int j)
+	{
+		final int id = ids[i];
+		final double score = scores[i];
+		final int seq = sequence[i];
+		set(i, ids[j], scores[j], sequence[j]);
+		set(j, id, score, seq);
+	}
+}
@@ -0,0 +1,68 @@
+package org.terrier.querying;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.terrier.indexing.IndexTestUtils;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.tests.ApplicationSetupBasedTest;
+import org.terrier.utility.ApplicationSetup;
+
+public class TestAxiomaticMIIndex extends ApplicationSetupBasedTest
+{
+    @Test public void testBuildAndRead() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        Index indx = IndexTestUtils.makeIndex(
+            new String[]{"doc1", "doc2", "doc3", "doc4"}, 
+            new String[]{"the lazy fox jumped over the dog", "but had the presence of mind",
+                "a quick brown fox and a lazy dog", "the dog had a bone"});
+        // a co-occurrence index built after the index was first used is found
+        assertNull(AxiomaticMIIndex.of(indx));
+        new AxiomaticMIIndexBuilder((IndexOnDisk) indx, 5, 0, 1, 1).build();
+        AxiomaticMIIndex miIndex = AxiomaticMIIndex.of(indx);
+        assertNotNull(miIndex);
+        assertEquals(4, miIndex.getNumberOfSampledDocuments());
+
+        // fox occurs in docs 1 and 3, lazy in docs 1 and 3, dog in docs 1, 3 and 4
+        int fox = indx.getLexicon().getLexiconEntry("fox").getTermId();
+        int lazy = indx.getLexicon().getLexiconEntry("lazy").getTermId();
+        long first = miIndex.getFirstEntry(fox);
+        int count = miIndex.getNumberOfRelatedTerms(fox);
+        assertEquals(5, count);
+        boolean foundLazy = false;
+        for (long entry = first; entry < first + count; entry++)
+        {
+            if (entry > first)
+                assertTrue(miIndex.getMutualInformation(entry - 1) >= miIndex.getMutualInformation(entry));
+            assertTrue(miIndex.getRelatedTerm(entry) != fox);
+            if (miIndex.getRelatedTerm(entry) == lazy)
+            {
+                foundLazy = true;
+                assertEquals((float) AxiomaticQE.mutualInformation(4, 2, 2, 2), miIndex.getMutualInformation(entry), 0f);
+                assertEquals(2, miIndex.getDocumentFrequency(entry));
+            }
+        }
+        assertTrue(foundLazy);
+        assertEquals(0, miIndex.getNumberOfRelatedTerms(-1));
+
+        // the same index mapped in segments of a few bytes, so that offsets and entries straddle segments
+        AxiomaticMIIndex segmented = new AxiomaticMIIndex(AxiomaticMIIndex.getFilename((IndexOnDisk) indx), 20);
+        assertEquals(miIndex.getNumberOfTerms(), segmented.getNumberOfTerms());
+        for (int t = 0; t < miIndex.getNumberOfTerms(); t++)
+        {
+            assertEquals(miIndex.getFirstEntry(t), segmented.getFirstEntry(t));
+            assertEquals(miIndex.getNumberOfRelatedTerms(t), segmented.getNumberOfRelatedTerms(t));
+            for (long entry = miIndex.getFirstEntry(t); entry < miIndex.getFirstEntry(t) + miIndex.getNumberOfRelatedTerms(t); entry++)
+            {
+                assertEquals(miIndex.getRelatedTerm(entry), segmented.getRelatedTerm(entry));
+                assertEquals(miIndex.getMutualInformation(entry), segmented.getMutualInformation(entry), 0f);
+                assertEquals(miIndex.getDocumentFrequency(entry), segmented.getDocumentFrequency(entry));
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.terrier.querying;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.function.LongSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terrier.indexing.IndexTestUtils;
+import org.terrier.matching.MatchingQueryTerms;
+import org.terrier.matching.MatchingQueryTerms.MatchingTerm;
+import org.terrier.structures.Index;
+import org.terrier.tests.ApplicationSetupBasedTest;
+import org.terrier.utility.ApplicationSetup;
+
+public class TestAxiomaticQE extends ApplicationSetupBasedTest
+{
+    static final String[] DOCNOS = TestFeedbackVectorStore.DOCNOS;
+    static final String[] DOCUMENTS = TestFeedbackVectorStore.DOCUMENTS;
+
+    // ApplicationSetup.EXPANSION_DOCUMENTS, set by makeIndex, is restored after each test
+    int previousExpansionDocuments;
+
+    @Before public void saveExpansionDocuments()
+    {
+        previousExpansionDocuments = ApplicationSetup.EXPANSION_DOCUMENTS;
+    }
+
+    @After public void restoreExpansionDocuments()
+    {
+        ApplicationSetup.EXPANSION_DOCUMENTS = previousExpansionDocuments;
+    }
+
+    protected Index makeIndex(int feedbackDocuments, int randomDocumentsPerFeedbackDocument) throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        ApplicationSetup.setProperty("expansion.documents", String.valueOf(feedbackDocuments));
+        ApplicationSetup.EXPANSION_DOCUMENTS = feedbackDocuments;
+        ApplicationSetup.setProperty("ax.R", String.valueOf(randomDocumentsPerFeedbackDocument));
+        ApplicationSetup.setProperty("querying.processes",
+            "terrierql:TerrierQLParser,parsecontrols:TerrierQLToControls,parseql:TerrierQLToMatchingQueryTerms,matchopql:MatchingOpQLParser,applypipeline:ApplyTermPipeline,localmatching:LocalManager$ApplyLocalMatching,qe:AxiomaticQE,labels:org.terrier.learning.LabelDecorator,filters:LocalManager$PostFilterProcess");
+        return IndexTestUtils.makeIndex(DOCNOS, DOCUMENTS);
+    }
+
+    /** runs the query through a new manager, i.e. new AxiomaticQE instance, configured by the current properties */
+    protected Request expand(Index indx, String qid, String query, String... controls) throws Exception
+    {
+        return expand(indx, (LongSupplier) null, qid, query, controls);
+    }
+
+    /** as above, reading the deadline of the expansion from the specified clock, if not null */
+    protected Request expand(Index indx, LongSupplier clock, String qid, String query, String... controls) throws Exception
+    {
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        SearchRequest srq = m.newSearchRequest(qid, query);
+        if (clock != null)
+            ((Request) srq).setContextObject(ExpansionDeadline.CLOCK_KEY, clock);
+        srq.setControl("qe", "on");
+        for (int i = 0; i < controls.length; i += 2)
+            srq.setControl(controls[i], controls[i+1]);
+        m.runSearchRequest(srq);
+        return (Request) srq;
+    }
+
+    static String toString(MatchingQueryTerms mqt)
+    {
+        StringBuilder s = new StringBuilder();
+        for (MatchingTerm mt : mqt)
+            s.append(mt.getKey().toString() + "^" + mt.getValue().getWeight() + " ");
+        return s.toString();
+    }
+
+    @Test public void testBackgroundMatchesRandomDocuments() throws Exception
+    {
+        // 1 feedback document, and (N-1)*R = 5 random documents, i.e. all the others
+        Index indx = makeIndex(1, 5);
+        String expected = toString(expand(indx, "q1", "lazy fox").getMatchingQueryTerms());
+        assertTrue(expected.split(" ").length > 2);
+        ApplicationSetup.setProperty("ax.background.documents", String.valueOf(DOCNOS.length));
+        assertEquals(expected, toString(expand(indx, "q1", "lazy fox").getMatchingQueryTerms()));
+    }
+
+    @Test public void testBackgroundDrawsByQuery() throws Exception
+    {
+        // 2 of the 5 documents that are not feedback documents are drawn, by query rather than by qid
+        Index indx = makeIndex(1, 2);
+        ApplicationSetup.setProperty("ax.background.documents", String.valueOf(DOCNOS.length));
+        String expected = toString(expand(indx, "q1", "lazy fox").getMatchingQueryTerms());
+        assertEquals(expected, toString(expand(indx, "q2", "lazy fox").getMatchingQueryTerms()));
+        PrfMetrics metrics = (PrfMetrics) expand(indx, "q3", "lazy fox").getContextObject(PrfMetrics.CONTEXT_KEY);
+        assertTrue(metrics.getCount("backgrounddocuments") <= 2);
+    }
+
+    @Test public void testCacheKeyByQid() throws Exception
+    {
+        Index indx = makeIndex(1, 2);
+        ExpansionCache previous = ExpansionCache.instance;
+        boolean previousInitialised = ExpansionCache.initialised;
+        try
+        {
+            // the random documents depend on the qid, so the expansion of another qid is not reused
+            ExpansionCache.instance = new ExpansionCache(10, null);
+            ExpansionCache.initialised = true;
+            assertEquals("miss", expand(indx, "q1", "lazy fox").getControl("prf.expansioncache"));
+            assertEquals("hit", expand(indx, "q1", "lazy fox").getControl("prf.expansioncache"));
+            assertEquals("miss", expand(indx, "q2", "lazy fox").getControl("prf.expansioncache"));
+
+            // the random documents drawn from the background sample only depend on the query
+            ApplicationSetup.setProperty("ax.background.documents", String.valueOf(DOCNOS.length));
+            assertEquals("miss", expand(indx, "q3", "lazy fox").getControl("prf.expansioncache"));
+            assertEquals("hit", expand(indx, "q4", "lazy fox").getControl("prf.expansioncache"));
+        }
+        finally
+        {
+            ExpansionCache.instance = previous;
+            ExpansionCache.initialised = previousInitialised;
+        }
+    }
+
+    @Test public void testDeadline() throws Exception
+    {
+        // 2 feedback documents, decoded first, then 2 random documents
+        Index indx = makeIndex(2, 2);
+        // 1ms passes each time the deadline is read: once to log it, then before each document is decoded,
+        // so with a budget of 5.5ms, of which 1.1ms is reserved, the feedback documents and 1 random document are decoded
+        Request rq = expand(indx, TestRM.steppingClock(1000000), "q1", "lazy fox", "prf.deadline", "5.5");
+        assertEquals(ExpansionDeadline.REDUCED_SAMPLE, rq.getControl("prf.degraded"));
+        assertTrue(toString(rq.getMatchingQueryTerms()).split(" ").length > 2);
+
+        // no document can be decoded if the deadline is nearly expired at the first check
+        rq = expand(indx, TestRM.steppingClock(1000000), "q2", "lazy fox", "prf.deadline", "1");
+        assertEquals(ExpansionDeadline.UNEXPANDED, rq.getControl("prf.degraded"));
+        assertEquals(2, rq.getMatchingQueryTerms().size());
+    }
+
+    @Test public void testDecodeThreads() throws Exception
+    {
+        // 2 feedback documents and 4 random documents, decoded without the cache of document vectors
+        Index indx = makeIndex(2, 4);
+        ApplicationSetup.setProperty("prf.vectorcache.bytes", "0");
+        String[] queries = new String[]{"lazy fox", "dog", "presence mind"};
+        String[][] expansions = new String[2][queries.length];
+        try
+        {
+            int[] threads = new int[]{0, 4};
+            for (int t = 0; t < threads.length; t++)
+            {
+                ApplicationSetup.setProperty("prf.decode.threads", String.valueOf(threads[t]));
+                DocumentVectorCache.resetDecodingPool();
+                assertEquals(threads[t] > 0, DocumentVectorCache.getDecodingPool() != null);
+                for (int i = 0; i < queries.length; i++)
+                    expansions[t][i] = toString(expand(indx, "q" + i, queries[i]).getMatchingQueryTerms());
+            }
+        }
+        finally
+        {
+            ApplicationSetup.setProperty("prf.decode.threads", "0");
+            DocumentVectorCache.resetDecodingPool();
+        }
+        assertTrue(expansions[0][0].split(" ").length > 2);
+        for (int i = 0; i < queries.length; i++)
+            assertEquals(expansions[0][i], expansions[1][i]);
+    }
+}
@@ -0,0 +1,102 @@
+package org.terrier.querying;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+import org.terrier.indexing.IndexTestUtils;
+import org.terrier.structures.Index;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.tests.ApplicationSetupBasedTest;
+import org.terrier.utility.ApplicationSetup;
+
+public class TestCandidateTermFilter extends ApplicationSetupBasedTest
+{
+    static final String[] DOCNOS = new String[]{"doc1", "doc2", "doc3", "doc4", "doc5", "doc6"};
+    static final String[] DOCUMENTS = new String[]{"the lazy fox jumped over the dog", "but had the presence of mind",
+        "a quick brown fox and a lazy dog", "the dog had a bone", "mind the brown dog", "presence of a fox in the garden"};
+
+    static boolean accept(CandidateTermFilter filter, Index indx, String term)
+    {
+        return filter.accept(indx.getLexicon().getLexiconEntry(term).getTermId());
+    }
+
+    @Test public void testBoundaries() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        ApplicationSetup.setProperty("prf.mindf", "2");
+        ApplicationSetup.setProperty("prf.maxdp", "0.5");
+        Index indx = IndexTestUtils.makeIndex(DOCNOS, DOCUMENTS);
+        CandidateTermFilter filter = CandidateTermFilter.of(indx);
+        assertEquals(3, filter.getMaxDf());
+        // mindf is inclusive: lazy occurs in 2 documents, jumped in 1
+        assertTrue(accept(filter, indx, "lazy"));
+        assertFalse(accept(filter, indx, "jumped"));
+        // maxdf is exclusive: fox occurs in 3 documents, i.e. 0.5 of them
+        assertFalse(accept(filter, indx, "fox"));
+        assertFalse(accept(filter, indx, "the"));
+    }
+
+    /** compares the filter to checking the document frequency of each term of the lexicon, as RM1 did before the filter */
+    @Test public void testLexicon() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        Index indx = IndexTestUtils.makeIndex(DOCNOS, DOCUMENTS);
+        final int numDocs = indx.getCollectionStatistics().getNumberOfDocuments();
+        for (int minDf : new int[]{0, 1, 2, 3, 5})
+        {
+            for (String maxdp : new String[]{"0.1", "0.5", "0.51", "0.7", "1"})
+            {
+                ApplicationSetup.setProperty("prf.mindf", String.valueOf(minDf));
+                ApplicationSetup.setProperty("prf.maxdp", maxdp);
+                CandidateTermFilter filter = CandidateTermFilter.of(indx);
+                final double maxDocPercentage = Float.parseFloat(maxdp);
+                final int maxDf = (int) (maxDocPercentage * numDocs);
+                int candidates = 0;
+                Iterator<Map.Entry<String, LexiconEntry>> iter = indx.getLexicon().iterator();
+                while (iter.hasNext())
+                {
+                    LexiconEntry le = iter.next().getValue();
+                    boolean expected = le.getDocumentFrequency() >= minDf && le.getDocumentFrequency() < maxDf;
+                    assertEquals(expected, filter.accept(le.getTermId()));
+                    if (expected)
+                        candidates++;
+                }
+                assertEquals(candidates, filter.getNumberOfCandidates());
+            }
+        }
+    }
+
+    @Test public void testRebuild() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        ApplicationSetup.setProperty("prf.mindf", "2");
+        ApplicationSetup.setProperty("prf.maxdp", "0.5");
+        Index indx = IndexTestUtils.makeIndex(DOCNOS, DOCUMENTS);
+        CandidateTermFilter filter = CandidateTermFilter.of(indx);
+        assertSame(filter, CandidateTermFilter.of(indx));
+        assertFalse(accept(filter, indx, "fox"));
+
+        // a new maximum document percentage rebuilds the filter
+        ApplicationSetup.setProperty("prf.maxdp", "0.7");
+        CandidateTermFilter rebuilt = CandidateTermFilter.of(indx);
+        assertNotSame(filter, rebuilt);
+        assertEquals(4, rebuilt.getMaxDf());
+        assertTrue(accept(rebuilt, indx, "fox"));
+        assertSame(rebuilt, CandidateTermFilter.of(indx));
+
+        // as does a new minimum document frequency
+        ApplicationSetup.setProperty("prf.mindf", "3");
+        CandidateTermFilter rebuiltAgain = CandidateTermFilter.of(indx);
+        assertNotSame(rebuilt, rebuiltAgain);
+        assertEquals(3, rebuiltAgain.getMinDf());
+        assertFalse(accept(rebuiltAgain, indx, "lazy"));
+        assertTrue(accept(rebuiltAgain, indx, "fox"));
+    }
+}
@@ -0,0 +1,266 @@
+package org.terrier.querying;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestCooccurrenceCounter
+{
+    @Test public void testDense()
+    {
+        testCounter((queryTerms, numDocs) -> new CooccurrenceCounter.DenseCooccurrenceCounter(queryTerms));
+    }
+
+    @Test public void testBitset()
+    {
+        testCounter((queryTerms, numDocs) -> new CooccurrenceCounter.BitsetCooccurrenceCounter(queryTerms, numDocs));
+        // bitsets must be resized when more documents than expected are added
+        testCounter((queryTerms, numDocs) -> new CooccurrenceCounter.BitsetCooccurrenceCounter(queryTerms, 1));
+    }
+
+    @Test public void testInterleaved()
+    {
+        testInterleaved((queryTerms, numDocs) -> new CooccurrenceCounter.DenseCooccurrenceCounter(queryTerms));
+        testInterleaved((queryTerms, numDocs) -> new CooccurrenceCounter.BitsetCooccurrenceCounter(queryTerms, numDocs));
+    }
+
+    /**
+     * checks that documents added after many documents without query terms are counted, as the position of the next
+     * document is then advanced by more than the bitsets can be resized for at once
+     */
+    protected void testInterleaved(CounterFactory factory)
+    {
+        final int[] queryTerms = new int[]{7, 1234};
+        CooccurrenceCounter counter = factory.create(queryTerms, 1);
+        int numDocs = 0;
+        for (int count : new int[]{1000, 1, 63, 64, 5000})
+        {
+            counter.addDocument(new int[]{7, 100, 200});
+            counter.addDocumentsWithoutQueryTerms(new int[]{100, 300}, new int[]{count, 1}, count);
+            counter.addDocument(new int[]{100, 1234});
+            numDocs += 2 + count;
+        }
+        assertEquals(numDocs, counter.getNumberOfDocuments());
+        assertEquals(5, counter.getDocumentFrequencyOfTerm(7));
+        assertEquals(5, counter.getDocumentFrequencyOfTerm(1234));
+        assertEquals(numDocs, counter.getDocumentFrequencyOfTerm(100));
+        assertEquals(5, counter.getDocumentFrequencyOfTerm(200));
+        assertEquals(5, counter.getDocumentFrequencyOfTerm(300));
+        assertEquals(5, counter.getJointDocumentFrequencyOfTerms(7, 100));
+        assertEquals(5, counter.getJointDocumentFrequencyOfTerms(7, 200));
+        assertEquals(0, counter.getJointDocumentFrequencyOfTerms(7, 300));
+        assertEquals(0, counter.getJointDocumentFrequencyOfTerms(7, 1234));
+        assertEquals(5, counter.getJointDocumentFrequencyOfTerms(1234, 100));
+        assertEquals(0, counter.getJointDocumentFrequencyOfTerms(1234, 200));
+        assertEquals(0, counter.getJointDocumentFrequencyOfTerms(1234, 300));
+    }
+
+    @Test public void testBudget()
+    {
+        for (CooccurrenceCounter.Overflow overflow : CooccurrenceCounter.Overflow.values())
+        {
+            testBudget((queryTerms, numDocs) -> new CooccurrenceCounter.DenseCooccurrenceCounter(queryTerms), overflow);
+            testBudget((queryTerms, numDocs) -> new CooccurrenceCounter.BitsetCooccurrenceCounter(queryTerms, numDocs), overflow);
+        }
+    }
+
+    /** checks that counts exceeding the budget are bounded, keep the query terms exact, and never overcount */
+    protected void testBudget(CounterFactory factory, CooccurrenceCounter.Overflow overflow)
+    {
+        Random r = new Random(42);
+        final int numTerms = 20000;
+        final int[] queryTerms = new int[]{7, 1234};
+        final int numDocs = 200;
+        final long budget = 256 * 1024;
+        CooccurrenceCounter counter = factory.create(queryTerms, numDocs);
+        CooccurrenceCounter unbounded = factory.create(queryTerms, numDocs);
+        counter.setMemoryBudget(budget, overflow);
+        for (int d = 0; d < numDocs; d++)
+        {
+            int[] terms = r.ints(400, 0, numTerms).toArray();
+            if (d % 2 == 0)
+                terms[0] = queryTerms[d % 4 / 2];
+            terms = Arrays.stream(terms).distinct().sorted().toArray();
+            counter.addDocument(terms);
+            unbounded.addDocument(terms);
+        }
+        assertTrue(counter.hasOverflowed());
+        assertFalse(unbounded.hasOverflowed());
+        assertTrue(unbounded.getMemoryUsage() > budget);
+        assertEquals(overflow == CooccurrenceCounter.Overflow.PRUNE, counter.getNumberOfPrunedTerms() > 0);
+        assertEquals(overflow == CooccurrenceCounter.Overflow.TRUNCATE, counter.getNumberOfTruncatedPostings() > 0);
+        if (overflow == CooccurrenceCounter.Overflow.PRUNE)
+            assertTrue(counter.getMemoryUsage() <= budget);
+        assertTrue(counter.getNumberOfTerms() < unbounded.getNumberOfTerms());
+        assertEquals(numDocs, counter.getNumberOfDocuments());
+        for (int q = 0; q < queryTerms.length; q++)
+        {
+            assertEquals(unbounded.getDocumentFrequencyOfTerm(queryTerms[q]), counter.getDocumentFrequencyOfTerm(queryTerms[q]));
+            for (int slot = 0; slot < counter.getNumberOfTerms(); slot++)
+            {
+                final int termid = counter.getTermId(slot);
+                assertEquals(slot, counter.getSlot(termid));
+                assertTrue(counter.getDocumentFrequency(slot) <= unbounded.getDocumentFrequencyOfTerm(termid));
+                if (termid != queryTerms[q])
+                    assertTrue(counter.getJointDocumentFrequency(q, slot) <= unbounded.getJointDocumentFrequencyOfTerms(queryTerms[q], termid));
+            }
+        }
+    }
+
+    @Test public void testBudgetBelowMinimum()
+    {
+        testBudgetBelowMinimum((queryTerms, numDocs) -> new CooccurrenceCounter.DenseCooccurrenceCounter(queryTerms));
+        testBudgetBelowMinimum((queryTerms, numDocs) -> new CooccurrenceCounter.BitsetCooccurrenceCounter(queryTerms, numDocs));
+    }
+
+    /** checks that a budget which pruning cannot meet, as it is below the minimum capacity of the slots, is only pruned for once */
+    protected void testBudgetBelowMinimum(CounterFactory factory)
+    {
+        Random r = new Random(42);
+        final int[] queryTerms = new int[]{7, 1234};
+        final int numDocs = 200;
+        CooccurrenceCounter counter = factory.create(queryTerms, numDocs);
+        CooccurrenceCounter unbounded = factory.create(queryTerms, numDocs);
+        final long minimum = counter.getMemoryUsage();
+        counter.setMemoryBudget(minimum / 2, CooccurrenceCounter.Overflow.PRUNE);
+        for (int d = 0; d < numDocs; d++)
+        {
+            int[] terms = r.ints(400, 0, 20000).toArray();
+            if (d % 2 == 0)
+                terms[0] = queryTerms[d % 4 / 2];
+            terms = Arrays.stream(terms).distinct().sorted().toArray();
+            counter.addDocument(terms);
+            unbounded.addDocument(terms);
+        }
+        assertTrue(counter.hasOverflowed());
+        // the candidate terms of the first document only are pruned, then new terms are no longer counted
+        assertTrue(counter.getNumberOfPrunedTerms() > 0);
+        assertTrue(counter.getNumberOfPrunedTerms() <= 400);
+        assertTrue(counter.getNumberOfTruncatedPostings() > 0);
+        assertEquals(queryTerms.length, counter.getNumberOfTerms());
+        assertEquals(minimum, counter.getMemoryUsage());
+        for (int q = 0; q < queryTerms.length; q++)
+            assertEquals(unbounded.getDocumentFrequencyOfTerm(queryTerms[q]), counter.getDocumentFrequencyOfTerm(queryTerms[q]));
+    }
+
+    @Test public void testBudgetExceededByFirstDocument()
+    {
+        testBudgetExceededByFirstDocument((queryTerms, numDocs) -> new CooccurrenceCounter.DenseCooccurrenceCounter(queryTerms));
+        testBudgetExceededByFirstDocument((queryTerms, numDocs) -> new CooccurrenceCounter.BitsetCooccurrenceCounter(queryTerms, numDocs));
+    }
+
+    /** checks that pruning every candidate term of a first document exceeding the budget does not stop the next documents being counted */
+    protected void testBudgetExceededByFirstDocument(CounterFactory factory)
+    {
+        Random r = new Random(42);
+        final int[] queryTerms = new int[]{7, 1234};
+        final int numDocs = 200;
+        CooccurrenceCounter counter = factory.create(queryTerms, numDocs);
+        CooccurrenceCounter unbounded = factory.create(queryTerms, numDocs);
+        counter.setMemoryBudget(8 * counter.getMemoryUsage(), CooccurrenceCounter.Overflow.PRUNE);
+        // every candidate term of the first document occurs once, so that all of them are pruned
+        final int[] first = Arrays.stream(r.ints(30000, 20000, 100000).toArray()).distinct().sorted().toArray();
+        counter.addDocument(first);
+        unbounded.addDocument(first);
+        assertTrue(counter.hasOverflowed());
+        assertEquals(first.length, counter.getNumberOfPrunedTerms());
+        assertEquals(queryTerms.length, counter.getNumberOfTerms());
+        for (int d = 1; d < numDocs; d++)
+        {
+            int[] terms = r.ints(20, 10000, 10100).toArray();
+            if (d % 2 == 0)
+                terms[0] = queryTerms[d % 4 / 2];
+            terms = Arrays.stream(terms).distinct().sorted().toArray();
+            counter.addDocument(terms);
+            unbounded.addDocument(terms);
+        }
+        assertEquals(0, counter.getNumberOfTruncatedPostings());
+        assertEquals(first.length, counter.getNumberOfPrunedTerms());
+        for (int t = 10000; t < 10100; t++)
+        {
+            assertEquals(unbounded.getDocumentFrequencyOfTerm(t), counter.getDocumentFrequencyOfTerm(t));
+            for (int q : queryTerms)
+                assertEquals(unbounded.getJointDocumentFrequencyOfTerms(q, t), counter.getJointDocumentFrequencyOfTerms(q, t));
+        }
+        for (int q : queryTerms)
+            assertEquals(unbounded.getDocumentFrequencyOfTerm(q), counter.getDocumentFrequencyOfTerm(q));
+    }
+
+    interface CounterFactory
+    {
+        CooccurrenceCounter create(int[] queryTerms, int numDocs);
+    }
+
+    /** compares the counter to counting all pairs of terms involving a query term */
+    protected void testCounter(CounterFactory factory)
+    {
+        Random r = new Random(42);
+        for (int iteration = 0; iteration < 50; iteration++)
+        {
+            final int numTerms = 5 + r.nextInt(3000);
+            final int[] queryTerms = r.ints(1 + r.nextInt(4), 0, numTerms).distinct().toArray();
+            final Set<Integer> querySet = new HashSet<>();
+            for (int q : queryTerms)
+                querySet.add(q);
+
+            final int numDocs = 1 + r.nextInt(150);
+            CooccurrenceCounter counter = factory.create(queryTerms, numDocs);
+            Map<Integer,Integer> singleCounts = new HashMap<>();
+            Map<Long,Integer> pairCounts = new HashMap<>();
+            // in every other iteration, the documents without query terms are added in aggregate, as for a background sample
+            final boolean aggregate = iteration % 2 == 1;
+            Map<Integer,Integer> aggregateCounts = new HashMap<>();
+            int aggregateDocs = 0;
+            for (int d = 0; d < numDocs; d++)
+            {
+                final int[] terms = r.ints(r.nextInt(400), 0, numTerms).distinct().sorted().toArray();
+                for (int t1 : terms)
+                {
+                    singleCounts.merge(t1, 1, Integer::sum);
+                    for (int t2 : terms)
+                        if (t2 > t1 && (querySet.contains(t1) || querySet.contains(t2)))
+                            pairCounts.merge((((long) t1) << 32) | t2, 1, Integer::sum);
+                }
+                if (aggregate && Arrays.stream(terms).noneMatch(querySet::contains))
+                {
+                    for (int t : terms)
+                        aggregateCounts.merge(t, 1, Integer::sum);
+                    aggregateDocs++;
+                }
+                else
+                    counter.addDocument(terms);
+            }
+            final int[] aggregateTerms = new int[aggregateCounts.size()];
+            final int[] aggregateFrequencies = new int[aggregateCounts.size()];
+            int i = 0;
+            for (Map.Entry<Integer,Integer> e : aggregateCounts.entrySet())
+            {
+                aggregateTerms[i] = e.getKey();
+                aggregateFrequencies[i++] = e.getValue();
+            }
+            counter.addDocumentsWithoutQueryTerms(aggregateTerms, aggregateFrequencies, aggregateDocs);
+
+            assertEquals(numDocs, counter.getNumberOfDocuments());
+            for (int q : queryTerms)
+            {
+                for (int t = 0; t < numTerms; t++)
+                {
+                    assertEquals((int) singleCounts.getOrDefault(t, 0), counter.getDocumentFrequencyOfTerm(t));
+                    if (t == q)
+                        continue;
+                    final long key = (((long) Math.min(q, t)) << 32) | Math.max(q, t);
+                    assertEquals((int) pairCounts.getOrDefault(key, 0), counter.getJointDocumentFrequencyOfTerms(q, t));
+                }
+            }
+        }
+    }
+}
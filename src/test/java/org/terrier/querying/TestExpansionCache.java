@@ -0,0 +1,111 @@
+package org.terrier.querying;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Test;
+import org.terrier.indexing.IndexTestUtils;
+import org.terrier.structures.Index;
+import org.terrier.tests.ApplicationSetupBasedTest;
+import org.terrier.utility.ApplicationSetup;
+
+public class TestExpansionCache extends ApplicationSetupBasedTest
+{
+    @Test public void testTiers() throws Exception
+    {
+        Path dir = Files.createTempDirectory("expansioncache");
+        ExpansionCache cache = new ExpansionCache(10, dir);
+        Request rq = new Request();
+        assertNull(cache.lookup("key", rq));
+        assertEquals("miss", rq.getControl("prf.expansioncache"));
+
+        cache.put("key", new ExpansionCache.CachedExpansion(new String[]{"fox", "dog"}, new int[]{3, -1}, new double[]{0.1d / 3, 0.7d}));
+        assertNotNull(cache.lookup("key", rq));
+        assertEquals("hit", rq.getControl("prf.expansioncache"));
+        assertEquals(0.5d, cache.getHitRate(), 0d);
+
+        // a new cache finds the expansion on disk, with exactly the same weights
+        ExpansionCache restarted = new ExpansionCache(10, dir);
+        ExpansionCache.CachedExpansion cached = restarted.lookup("key", rq);
+        assertEquals("diskhit", rq.getControl("prf.expansioncache"));
+        assertEquals(2, cached.size());
+        assertEquals("fox", cached.getTerm(0));
+        assertEquals(3, cached.getTermId(0));
+        assertEquals(0.1d / 3, cached.getWeight(0), 0d);
+        assertEquals(-1, cached.getTermId(1));
+        assertNull(restarted.lookup("other key", rq));
+    }
+
+    @Test public void testDiskSize() throws Exception
+    {
+        Path dir = Files.createTempDirectory("expansioncache");
+        ExpansionCache cache = new ExpansionCache(0, dir, 2);
+        ExpansionCache.CachedExpansion expansion = new ExpansionCache.CachedExpansion(new String[]{"fox"}, new int[]{3}, new double[]{0.5d});
+        cache.put("key1", expansion);
+        cache.put("key2", expansion);
+        // key2 is read after key1 was last used
+        Files.setLastModifiedTime(cache.getFile("key1"), FileTime.fromMillis(System.currentTimeMillis() - 20000));
+        Files.setLastModifiedTime(cache.getFile("key2"), FileTime.fromMillis(System.currentTimeMillis() - 30000));
+        Request rq = new Request();
+        assertNotNull(cache.lookup("key2", rq));
+        cache.put("key3", expansion);
+        assertEquals(2, cache.listFiles().size());
+        assertNull(cache.lookup("key1", rq));
+        assertNotNull(cache.lookup("key2", rq));
+        assertNotNull(cache.lookup("key3", rq));
+
+        // a restarted cache counts the expansions already on disk
+        ExpansionCache restarted = new ExpansionCache(0, dir, 2);
+        restarted.put("key4", expansion);
+        assertEquals(2, restarted.listFiles().size());
+    }
+
+    @Test public void testRM3() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        ApplicationSetup.setProperty("prf.mindf", "0");
+        ApplicationSetup.setProperty("prf.maxdp", "1");
+        Index indx = IndexTestUtils.makeIndex(
+            new String[]{"doc1", "doc2", "doc3"}, 
+            new String[]{"the lazy fox jumped over the dog", "but had the presence of mind", "a quick brown fox and a lazy dog"});
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        ExpansionCache previous = ExpansionCache.instance;
+        boolean previousInitialised = ExpansionCache.initialised;
+        try
+        {
+            ExpansionCache.instance = new ExpansionCache(10, null);
+            ExpansionCache.initialised = true;
+            RM3 rm = new RM3(5, 2, indx);
+
+            Request rq = (Request) m.newSearchRequest("q1", "fox");
+            m.runSearchRequest(rq);
+            String expected = TestRM.toString(rm.expand(rq));
+            assertEquals("miss", rq.getControl("prf.expansioncache"));
+            assertEquals(expected, TestRM.toString(rm.expand(rq)));
+            assertEquals("hit", rq.getControl("prf.expansioncache"));
+
+            // another lambda is another expansion
+            rq.setControl("rm3.lambda", "0.1");
+            assertFalse(expected.equals(TestRM.toString(rm.expand(rq))));
+            assertEquals("miss", rq.getControl("prf.expansioncache"));
+
+            Request bypassed = (Request) m.newSearchRequest("q2", "fox");
+            bypassed.setControl("prf.expansioncache.bypass", "on");
+            m.runSearchRequest(bypassed);
+            assertEquals(expected, TestRM.toString(rm.expand(bypassed)));
+            assertFalse(bypassed.hasControl("prf.expansioncache"));
+            assertEquals(1, ExpansionCache.instance.getHits());
+        }
+        finally
+        {
+            ExpansionCache.instance = previous;
+            ExpansionCache.initialised = previousInitialised;
+        }
+    }
+}
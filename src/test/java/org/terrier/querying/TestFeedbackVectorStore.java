@@ -0,0 +1,101 @@
+package org.terrier.querying;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.terrier.indexing.IndexTestUtils;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.tests.ApplicationSetupBasedTest;
+import org.terrier.utility.ApplicationSetup;
+
+public class TestFeedbackVectorStore extends ApplicationSetupBasedTest
+{
+    static final String[] DOCNOS = new String[]{"doc1", "doc2", "doc3", "doc4", "doc5", "doc6"};
+    static final String[] DOCUMENTS = new String[]{"the lazy fox jumped over the dog", "but had the presence of mind",
+        "a quick brown fox and a lazy dog", "the dog had a bone", "mind the brown dog", "presence of a fox in the garden"};
+
+    @Test public void testUnfiltered() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        Index indx = IndexTestUtils.makeIndex(DOCNOS, DOCUMENTS);
+        new FeedbackVectorStoreBuilder((IndexOnDisk) indx, null).build();
+        FeedbackVectorStore store = FeedbackVectorStore.of(indx);
+        assertNotNull(store);
+        assertFalse(store.isFiltered());
+        assertEquals(DOCNOS.length, store.getNumberOfDocuments());
+        for (int docid = 0; docid < DOCNOS.length; docid++)
+        {
+            DocumentVector expected = DocumentVector.read(indx, docid);
+            DocumentVector actual = store.get(docid);
+            assertEquals(expected.getLength(), actual.getLength());
+            assertArrayEquals(expected.getTermIds(), actual.getTermIds());
+            assertArrayEquals(expected.getFrequencies(), actual.getFrequencies());
+        }
+    }
+
+    @Test public void testBuiltWhileInUse() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        Index indx = IndexTestUtils.makeIndex(DOCNOS, DOCUMENTS);
+        assertNull(FeedbackVectorStore.of(indx));
+        new FeedbackVectorStoreBuilder((IndexOnDisk) indx, null).build();
+        FeedbackVectorStore store = FeedbackVectorStore.of(indx);
+        assertNotNull(store);
+        // the store is written to a temporary file, moved into place once complete
+        String filename = FeedbackVectorStore.getFilename((IndexOnDisk) indx);
+        assertFalse(new File(filename + ".tmp").exists());
+
+        // rebuilding replaces the file without disturbing the store already open
+        new FeedbackVectorStoreBuilder((IndexOnDisk) indx, null).build();
+        assertFalse(new File(filename + ".tmp").exists());
+        for (int docid = 0; docid < DOCNOS.length; docid++)
+            assertArrayEquals(DocumentVector.read(indx, docid).getTermIds(), store.get(docid).getTermIds());
+        assertArrayEquals(DocumentVector.read(indx, 0).getTermIds(), new FeedbackVectorStore(filename).get(0).getTermIds());
+    }
+
+    @Test public void testFilteredRM3() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        ApplicationSetup.setProperty("prf.mindf", "2");
+        ApplicationSetup.setProperty("prf.maxdp", "0.6");
+        Index indx = IndexTestUtils.makeIndex(DOCNOS, DOCUMENTS);
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        RM3 rm = new RM3(5, 3, indx);
+        String[] queries = new String[]{"fox", "lazy dog", "presence"};
+        Request[] requests = new Request[queries.length];
+        String[] expected = new String[queries.length];
+        ApplicationSetup.setProperty("prf.vectorstore", "false");
+        for (int i = 0; i < queries.length; i++)
+        {
+            requests[i] = (Request) m.newSearchRequest("q" + i, queries[i]);
+            m.runSearchRequest(requests[i]);
+            expected[i] = TestRM.toString(rm.expand(requests[i]));
+        }
+        ApplicationSetup.setProperty("prf.vectorstore", "true");
+
+        CandidateTermFilter filter = CandidateTermFilter.of(indx);
+        new FeedbackVectorStoreBuilder((IndexOnDisk) indx, filter).build();
+        FeedbackVectorStore store = FeedbackVectorStore.of(indx);
+        assertTrue(store.isFiltered());
+        assertTrue(store.covers(filter));
+        for (int docid = 0; docid < DOCNOS.length; docid++)
+            for (int termid : store.get(docid).getTermIds())
+                assertTrue(filter.accept(termid));
+        for (int i = 0; i < queries.length; i++)
+            assertEquals(expected[i], TestRM.toString(rm.expand(requests[i])));
+
+        // a stricter filter can still use the store, but a looser one cannot
+        ApplicationSetup.setProperty("prf.mindf", "3");
+        assertTrue(store.covers(CandidateTermFilter.of(indx)));
+        ApplicationSetup.setProperty("prf.mindf", "1");
+        assertFalse(store.covers(CandidateTermFilter.of(indx)));
+    }
+}
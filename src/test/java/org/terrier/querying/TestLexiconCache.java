@@ -0,0 +1,47 @@
+package org.terrier.querying;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.terrier.indexing.IndexTestUtils;
+import org.terrier.structures.Index;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.tests.ApplicationSetupBasedTest;
+import org.terrier.utility.ApplicationSetup;
+
+public class TestLexiconCache extends ApplicationSetupBasedTest
+{
+    @Test public void testLookups() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        Index indx = IndexTestUtils.makeIndex(TestFeedbackVectorStore.DOCNOS, TestFeedbackVectorStore.DOCUMENTS);
+        LexiconCache cache = new LexiconCache(indx, 100);
+        LexiconEntry fox = indx.getLexicon().getLexiconEntry("fox");
+        assertEquals(fox.getTermId(), cache.getLexiconEntry("fox").getTermId());
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // a term looked up by string is then known by termid
+        assertEquals("fox", cache.getTerm(fox.getTermId()));
+        assertEquals(fox.getDocumentFrequency(), cache.getLexiconEntry(fox.getTermId()).getValue().getDocumentFrequency());
+        assertEquals(2, cache.getHits());
+        assertNull(cache.getLexiconEntry("unicorn"));
+        assertEquals(0.5d, cache.getHitRate(), 0d);
+    }
+
+    @Test public void testWarm() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        ApplicationSetup.setProperty("prf.mindf", "2");
+        ApplicationSetup.setProperty("prf.maxdp", "0.7");
+        Index indx = IndexTestUtils.makeIndex(TestFeedbackVectorStore.DOCNOS, TestFeedbackVectorStore.DOCUMENTS);
+        LexiconCache cache = new LexiconCache(indx, 100);
+        cache.warm(2);
+        // the and dog occur in 4 or more documents, so fox and a are the candidates of highest document frequency
+        assertEquals(indx.getLexicon().getLexiconEntry("fox").getTermId(), cache.getLexiconEntry("fox").getTermId());
+        assertEquals(indx.getLexicon().getLexiconEntry("a").getTermId(), cache.getLexiconEntry("a").getTermId());
+        assertEquals(0, cache.getMisses());
+        cache.getLexiconEntry("brown");
+        assertEquals(1, cache.getMisses());
+    }
+}
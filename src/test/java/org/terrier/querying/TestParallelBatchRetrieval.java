@@ -0,0 +1,81 @@
+package org.terrier.querying;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.terrier.indexing.IndexTestUtils;
+import org.terrier.structures.Index;
+import org.terrier.tests.ApplicationSetupBasedTest;
+import org.terrier.utility.ApplicationSetup;
+
+public class TestParallelBatchRetrieval extends ApplicationSetupBasedTest
+{
+    @Test public void testOrderedAndSameAsSequential() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        ApplicationSetup.setProperty("prf.mindf", "0");
+        ApplicationSetup.setProperty("prf.maxdp", "1");
+        ApplicationSetup.setProperty("querying.processes",
+            "terrierql:TerrierQLParser,parsecontrols:TerrierQLToControls,parseql:TerrierQLToMatchingQueryTerms,matchopql:MatchingOpQLParser,applypipeline:ApplyTermPipeline,localmatching:LocalManager$ApplyLocalMatching,rm:RM3,qe:QueryExpansion,labels:org.terrier.learning.LabelDecorator,filters:LocalManager$PostFilterProcess");
+        Index indx = IndexTestUtils.makeIndex(
+            new String[]{"doc1", "doc2", "doc3", "doc4", "doc5", "doc6"},
+            new String[]{"the lazy fox jumped over the dog", "but had the presence of mind",
+                "a quick brown fox and a lazy dog", "the dog had a bone",
+                "mind the brown dog", "presence of a fox in the garden"});
+
+        String[] queries = new String[]{"fox", "dog", "lazy fox", "mind", "presence dog", "brown"};
+        StringBuilder topics = new StringBuilder();
+        List<String> qids = new ArrayList<>();
+        for (int round = 0; round < 10; round++)
+            for (int i = 0; i < queries.length; i++)
+            {
+                qids.add("q" + round + "_" + i);
+                topics.append("q" + round + "_" + i + " " + queries[i] + "\n");
+            }
+
+        String[] runs = new String[2];
+        int[][] settings = new int[][]{{1, 1}, {4, 3}};
+        for (int s = 0; s < settings.length; s++)
+        {
+            ParallelBatchRetrieval batch = new ParallelBatchRetrieval(indx, settings[s][0], settings[s][1],
+                ParallelBatchRetrieval.parseControls("rm:on"), "test");
+            StringWriter out = new StringWriter();
+            ParallelBatchRetrieval.Summary summary = batch.run(new BufferedReader(new StringReader(topics.toString())), new PrintWriter(out));
+            assertEquals(qids.size(), summary.getNumberOfQueries());
+            assertEquals(qids.size(), summary.getLatencies().getCount());
+            assertTrue(summary.getThroughput() > 0);
+            runs[s] = out.toString();
+        }
+        assertEquals(runs[0], runs[1]);
+
+        // the results are in the order of the topics
+        List<String> written = new ArrayList<>();
+        for (String line : runs[1].split("\n"))
+        {
+            String qid = line.split(" ")[0];
+            if (written.isEmpty() || ! written.get(written.size() - 1).equals(qid))
+                written.add(qid);
+        }
+        assertEquals(qids, written);
+    }
+
+    @Test(expected = IOException.class) public void testTrecTopicsRejected() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        Index indx = IndexTestUtils.makeIndex(
+            new String[]{"doc1", "doc2"},
+            new String[]{"the lazy fox jumped over the dog", "but had the presence of mind"});
+        ParallelBatchRetrieval batch = new ParallelBatchRetrieval(indx, 1, 1, ParallelBatchRetrieval.parseControls(""), "test");
+        String topics = "<top>\n<num> Number: 401\n<title> fox\n</top>\n";
+        batch.run(new BufferedReader(new StringReader(topics)), new PrintWriter(new StringWriter()));
+    }
+}
@@ -0,0 +1,73 @@
+package org.terrier.querying;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestPrfMetrics
+{
+    @Test public void testPercentiles()
+    {
+        Random r = new Random(42);
+        PrfMetrics.Histogram h = new PrfMetrics.Histogram();
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = (long) Math.exp(r.nextDouble() * 20);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, h.getCount());
+        assertEquals(values[values.length - 1], h.getMax());
+        for (double p : new double[]{0.5, 0.9, 0.99})
+        {
+            long expected = values[(int) Math.ceil(p * values.length) - 1];
+            long actual = h.getPercentile(p);
+            // an upper bound, within the width of a bucket
+            assertTrue(actual >= expected);
+            assertTrue(actual <= expected * 1.125 + 1);
+        }
+    }
+
+    @Test public void testBuckets()
+    {
+        for (long value = 0; value < 100000; value++)
+        {
+            int bucket = PrfMetrics.Histogram.bucket(value);
+            assertTrue(value <= PrfMetrics.Histogram.upperBound(bucket));
+            assertTrue(bucket == 0 || value > PrfMetrics.Histogram.upperBound(bucket - 1));
+        }
+        assertTrue(PrfMetrics.Histogram.bucket(Long.MAX_VALUE) < 64 * PrfMetrics.Histogram.SUB_BUCKETS);
+    }
+
+    @Test public void testAggregation()
+    {
+        PrfMetrics.reset();
+        PrfMetrics m1 = new PrfMetrics("Test");
+        m1.count("documents", 3);
+        m1.count("documents", 2);
+        m1.addTimeNanos("decode", 1000);
+        PrfMetrics m2 = new PrfMetrics("Test");
+        m2.count("documents", 10);
+        PrfMetrics m3 = new PrfMetrics(null);
+        m3.count("documents", 100);
+        assertEquals(5, m1.getCount("documents"));
+        assertEquals(1000, m1.getTime("decode"));
+        // nothing is aggregated until the metrics of a request are finished
+        assertTrue(PrfMetrics.HISTOGRAMS.isEmpty());
+        m1.finish();
+        m1.finish();
+        m2.finish();
+        m3.finish();
+        // one value per request, its total
+        assertEquals(2, PrfMetrics.HISTOGRAMS.get("Test.documents").getCount());
+        assertEquals(10, PrfMetrics.HISTOGRAMS.get("Test.documents").getMax());
+        assertEquals(7.5d, PrfMetrics.HISTOGRAMS.get("Test.documents").getMean(), 0d);
+        assertEquals(1, PrfMetrics.HISTOGRAMS.get("Test.time.decode").getCount());
+        PrfMetrics.reset();
+    }
+}
@@ -1,42 +1,497 @@
 package org.terrier.querying;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.terrier.indexing.IndexTestUtils;
 import org.terrier.matching.BaseMatching;
+import org.terrier.matching.ResultSet;
 import org.terrier.structures.Index;
 import org.terrier.tests.ApplicationSetupBasedTest;
 import org.terrier.utility.ApplicationSetup;
 
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
 public class TestRM extends ApplicationSetupBasedTest
 {
+    static final String[] DOCNOS = new String[]{"doc1", "doc2", "doc3", "doc4", "doc5", "doc6"};
+    static final String[] DOCUMENTS = new String[]{"the lazy fox jumped over the dog", "but had the presence of mind",
+        "a quick brown fox and a lazy dog", "the dog had a bone", "mind the brown dog", "presence of a fox in the garden"};
+
+    // the global state replaced by some tests, restored after each test
+    ExpansionCache previousExpansionCache;
+    boolean previousExpansionCacheInitialised;
+    Map<Index, DocumentVectorCache> previousVectorCaches;
+
+    @Before public void setUpFixture()
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        ApplicationSetup.setProperty("prf.mindf", "0");
+        ApplicationSetup.setProperty("prf.maxdp", "1");
+        previousExpansionCache = ExpansionCache.instance;
+        previousExpansionCacheInitialised = ExpansionCache.initialised;
+        previousVectorCaches = new HashMap<>(DocumentVectorCache.CACHES);
+    }
+
+    @After public void restoreGlobalState()
+    {
+        ExpansionCache.instance = previousExpansionCache;
+        ExpansionCache.initialised = previousExpansionCacheInitialised;
+        synchronized (DocumentVectorCache.CACHES)
+        {
+            DocumentVectorCache.CACHES.clear();
+            DocumentVectorCache.CACHES.putAll(previousVectorCaches);
+        }
+        ApplicationSetup.setProperty("prf.decode.threads", "0");
+        DocumentVectorCache.resetDecodingPool();
+    }
+
+    /** sets the retrieval pipeline, with the specified processes between matching and QueryExpansion, e.g. rm:RM3 */
+    static void setProcesses(String expansionProcesses)
+    {
+        ApplicationSetup.setProperty("querying.processes",
+            "terrierql:TerrierQLParser,parsecontrols:TerrierQLToControls,parseql:TerrierQLToMatchingQueryTerms,matchopql:MatchingOpQLParser,applypipeline:ApplyTermPipeline,localmatching:LocalManager$ApplyLocalMatching,"
+            + expansionProcesses + ",qe:QueryExpansion,labels:org.terrier.learning.LabelDecorator,filters:LocalManager$PostFilterProcess");
+    }
+
+    /** indexes all the documents of the corpus */
+    static Index makeIndex() throws Exception
+    {
+        return IndexTestUtils.makeIndex(DOCNOS, DOCUMENTS);
+    }
+
+    /** indexes the documents of the corpus at the specified positions, named doc1, doc2... */
+    static Index makeIndex(int... positions) throws Exception
+    {
+        String[] docnos = new String[positions.length];
+        String[] documents = new String[positions.length];
+        for (int i = 0; i < positions.length; i++)
+        {
+            docnos[i] = "doc" + (i + 1);
+            documents[i] = DOCUMENTS[positions[i]];
+        }
+        return IndexTestUtils.makeIndex(docnos, documents);
+    }
+
     @Test public void testItWorksRM1() throws Exception
     {
         testModel("RM1");
     }
 
+    @Test public void testAccumulationMatchesTermAtATime() throws Exception
+    {
+        // 40 documents of 5 to 200 words drawn from a vocabulary of 300 words
+        Random r = new Random(42);
+        final int numDocs = 40;
+        String[] docnos = new String[numDocs];
+        String[] documents = new String[numDocs];
+        for (int d = 0; d < numDocs; d++)
+        {
+            docnos[d] = "doc" + (d + 1);
+            StringBuilder document = new StringBuilder();
+            for (int w = 5 + r.nextInt(196); w > 0; w--)
+                document.append("w").append(r.nextInt(300)).append(' ');
+            documents[d] = document.toString();
+        }
+        Index indx = IndexTestUtils.makeIndex(docnos, documents);
+
+        // all documents are feedback documents, by decreasing score
+        List<RM1.FeedbackDocument> docs = new ArrayList<>();
+        IntSet lexicon = new IntOpenHashSet();
+        double score = 50;
+        for (int docid = 0; docid < numDocs; docid++)
+        {
+            score -= r.nextDouble();
+            RM1.FeedbackDocument doc = new RM1.FeedbackDocument(docid, score, indx);
+            docs.add(doc);
+            lexicon.addAll(doc.getTermIds());
+        }
+        assertTrue(lexicon.size() > 100);
+
+        Int2FloatOpenHashMap fbWeights = new Int2FloatOpenHashMap();
+        for (RM1.FeedbackDocument doc : docs)
+            RM1.accumulateFeedbackWeights(doc, fbWeights);
+        final float norm = 1.0f / docs.size();
+        for (int termid : lexicon)
+        {
+            // the previous term-at-a-time computation, over every feedback document for each term
+            float fbWeight = 0.0f;
+            for (RM1.FeedbackDocument doc : docs)
+                fbWeight += (double) doc.getFrequency(termid) / (double) doc.getLength() * doc.getOriginalScore();
+            assertEquals(Float.floatToIntBits(fbWeight * norm), Float.floatToIntBits(fbWeights.get(termid) * norm));
+        }
+    }
+
     @Test public void testItWorksRM3() throws Exception
     {
-        testModel("RM3");
+        Request rq = testModel("RM3");
+        PrfMetrics metrics = (PrfMetrics) rq.getContextObject(PrfMetrics.CONTEXT_KEY);
+        assertEquals("RM3", metrics.getModel());
+        assertEquals(2, metrics.getCount("documents"));
+        assertTrue(metrics.getCount("candidateterms") > 0);
+        assertTrue(metrics.getTimes().containsKey("decode"));
+        assertTrue(metrics.getTimes().containsKey("interpolate"));
+        assertTrue(metrics.getTimes().containsKey("secondpass"));
+        assertTrue(PrfMetrics.HISTOGRAMS.get("RM3.time.expand").getCount() > 0);
     }
 
-    protected void testModel(String clzName) throws Exception
+    @Test public void testItWorksRM3Rerank() throws Exception
     {
-        ApplicationSetup.setProperty("termpipelines", "");
-        ApplicationSetup.setProperty("prf.mindf", "0");
-        ApplicationSetup.setProperty("prf.maxdp", "1");
-        ApplicationSetup.setProperty("querying.processes",
-            "terrierql:TerrierQLParser,parsecontrols:TerrierQLToControls,parseql:TerrierQLToMatchingQueryTerms,matchopql:MatchingOpQLParser,applypipeline:ApplyTermPipeline,localmatching:LocalManager$ApplyLocalMatching,rm:"+clzName+",qe:QueryExpansion,labels:org.terrier.learning.LabelDecorator,filters:LocalManager$PostFilterProcess");
-        Index indx = IndexTestUtils.makeIndex(
-            new String[]{"doc1", "doc2"}, 
-            new String[]{"the lazy fox jumped over the dog", "but had the presence of mind"});
+        Request rq = testModel("RM3", "rm.rerank", "on");
+        assertTrue(rq.getResultSet().getResultSize() > 0);
+        assertTrue(rq.hasControl("rm.rerank.time"));
+        // no full second pass is run by default, so that the latency saved cannot be estimated on a new index
+        PrfMetrics metrics = (PrfMetrics) rq.getContextObject(PrfMetrics.CONTEXT_KEY);
+        assertFalse(metrics.getTimes().containsKey("calibration"));
+        assertFalse(rq.hasControl("rm.rerank.saved"));
+    }
+
+    @Test public void testRerankCalibrate() throws Exception
+    {
+        // the full second pass is also run, and measured, so that the latency saved is reported
+        Request rq = testModel("RM3", "rm.rerank", "on", "rm.rerank.calibrate", "on");
+        PrfMetrics metrics = (PrfMetrics) rq.getContextObject(PrfMetrics.CONTEXT_KEY);
+        assertTrue(metrics.getTimes().containsKey("calibration"));
+        assertTrue(rq.hasControl("rm.rerank.saved"));
+    }
+
+    @Test public void testRerankMatchesSecondPass() throws Exception
+    {
+        setProcesses("rm:RM3");
+        Index indx = makeIndex();
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        for (String query : new String[]{"fox", "lazy dog", "presence", "mind bone"})
+        {
+            // the candidate documents, from the first pass
+            Request first = (Request) m.newSearchRequest("q", query);
+            m.runSearchRequest(first);
+            Set<Integer> candidates = new HashSet<>();
+            for (int docid : first.getResultSet().getDocids())
+                candidates.add(docid);
+
+            // the full second pass, restricted to the candidate documents
+            Request full = (Request) m.newSearchRequest("q", query);
+            full.setControl("rm", "on");
+            m.runSearchRequest(full);
+            Map<Integer, Double> expected = new HashMap<>();
+            List<Double> expectedScores = new ArrayList<>();
+            ResultSet rs = full.getResultSet();
+            for (int i = 0; i < rs.getResultSize(); i++)
+                if (candidates.contains(rs.getDocids()[i]))
+                {
+                    expected.put(rs.getDocids()[i], rs.getScores()[i]);
+                    expectedScores.add(rs.getScores()[i]);
+                }
+
+            Request rerank = (Request) m.newSearchRequest("q", query);
+            rerank.setControl("rm", "on");
+            rerank.setControl("rm.rerank", "on");
+            m.runSearchRequest(rerank);
+            ResultSet rr = rerank.getResultSet();
+            assertEquals(expected.size(), rr.getResultSize());
+            for (int i = 0; i < rr.getResultSize(); i++)
+            {
+                // the same documents in the same order, up to the order of ties
+                assertEquals(expectedScores.get(i), rr.getScores()[i], 1e-6);
+                assertEquals(expected.get(rr.getDocids()[i]), rr.getScores()[i], 1e-6);
+                assertTrue(rr.getOccurrences()[i] != 0);
+            }
+            // the full second passes above were measured, so the latency saved is reported
+            assertTrue(rerank.hasControl("rm.rerank.saved"));
+        }
+    }
+
+    @Test public void testConcurrentRM3() throws Exception
+    {
+        setProcesses("rm:RM3");
+        Index indx = makeIndex();
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        
+        // first pass only, without expansion
+        String[] queries = new String[]{"fox", "dog", "lazy fox", "mind", "presence dog", "brown"};
+        Request[] requests = new Request[queries.length];
+        for (int i = 0; i < queries.length; i++)
+        {
+            requests[i] = (Request) m.newSearchRequest("q" + i, queries[i]);
+            requests[i].setControl("rm3.lambda", i % 2 == 0 ? "0.3" : "0.8");
+            m.runSearchRequest(requests[i]);
+        }
+        
+        final RM3 rm = new RM3(5, 3, indx);
+        String[] expected = new String[queries.length];
+        for (int i = 0; i < queries.length; i++)
+            expected[i] = toString(rm.expand(requests[i]));
+        
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<String>> results = new ArrayList<>();
+        for (int round = 0; round < 50; round++)
+            for (Request rq : requests)
+                results.add(pool.submit(() -> toString(rm.expand(rq))));
+        for (int i = 0; i < results.size(); i++)
+            assertEquals(expected[i % queries.length], results.get(i).get());
+        pool.shutdown();
+    }
+
+    @Test public void testSweepMatchesRM3() throws Exception
+    {
+        Index indx = makeIndex();
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        RMSweep sweep = new RMSweep(indx, new int[]{5, 1, 3}, new int[]{2, 5}, new float[]{0.3f, 0.8f});
+        for (String query : new String[]{"fox", "lazy dog", "presence"})
+        {
+            Request rq = (Request) m.newSearchRequest("q", query);
+            m.runSearchRequest(rq);
+            List<RMSweep.SweepPoint> points = sweep.sweep(rq);
+            assertEquals(3 * 2 * 2, points.size());
+            for (RMSweep.SweepPoint point : points)
+            {
+                RM3 rm = new RM3(point.getFbTerms(), point.getFbDocs(), indx, point.getLambda());
+                assertEquals(toString(rm.expand(rq)), toString(point.getExpansionTerms()));
+            }
+        }
+    }
+
+    @Test public void testBatchMatchesExpand() throws Exception
+    {
+        Index indx = makeIndex();
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        List<Request> requests = new ArrayList<>();
+        for (String query : new String[]{"fox", "dog", "lazy fox", "unknownterm", "presence dog", "brown"})
+        {
+            Request rq = (Request) m.newSearchRequest("q" + requests.size(), query);
+            m.runSearchRequest(rq);
+            requests.add(rq);
+        }
+        RM3 rm = new RM3(5, 3, indx);
+        List<List<RM1.ExpansionTerm>> expansions = rm.expandAll(requests);
+        assertEquals(requests.size(), expansions.size());
+        for (int i = 0; i < requests.size(); i++)
+            assertEquals(toString(rm.expand(requests.get(i))), toString(expansions.get(i)));
+
+        boolean[] expanded = rm.expandQueries(requests);
+        for (int i = 0; i < requests.size(); i++)
+        {
+            assertTrue(expanded[i]);
+            assertEquals(expansions.get(i).size(), requests.get(i).getMatchingQueryTerms().size());
+        }
+    }
+
+    @Test public void testBatchCachedAndDeadline() throws Exception
+    {
+        Index indx = makeIndex();
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        List<Request> requests = new ArrayList<>();
+        for (String query : new String[]{"fox", "presence", "dog"})
+        {
+            Request rq = (Request) m.newSearchRequest("q" + requests.size(), query);
+            m.runSearchRequest(rq);
+            requests.add(rq);
+        }
+        RM3 rm = new RM3(5, 3, indx);
+        ExpansionCache.instance = null;
+        ExpansionCache.initialised = true;
+        String[] expected = new String[]{toString(rm.expand(requests.get(0))), toString(rm.expand(requests.get(1))),
+            toString(new RM3(5, 2, indx).expand(requests.get(2)))};
+
+        // the expansion of the first query is cached, and the last query has a budget for 2 of its 3 feedback documents
+        ExpansionCache.instance = new ExpansionCache(10, null);
+        rm.expand(requests.get(0));
+        requests.get(2).setContextObject(ExpansionDeadline.CLOCK_KEY, steppingClock(1000000));
+        requests.get(2).setControl("prf.deadline", "3");
+        DocumentVectorCache.CACHES.put(indx, new DocumentVectorCache(indx, 1 << 20));
+        List<List<RM1.ExpansionTerm>> expansions = rm.expandAll(requests);
+        for (int i = 0; i < requests.size(); i++)
+            assertEquals(expected[i], toString(expansions.get(i)));
+        assertEquals("hit", requests.get(0).getControl("prf.expansioncache"));
+        assertEquals(ExpansionDeadline.PARTIAL, requests.get(2).getControl("prf.degraded"));
+
+        // only the feedback documents of the expansions that are not cached are decoded
+        Set<Integer> decoded = new HashSet<>();
+        for (int i = 0; i < Math.min(3, requests.get(1).getResultSet().getResultSize()); i++)
+            decoded.add(requests.get(1).getResultSet().getDocids()[i]);
+        for (int i = 0; i < 2; i++)
+            decoded.add(requests.get(2).getResultSet().getDocids()[i]);
+        assertEquals(decoded.size(), DocumentVectorCache.of(indx).getMisses());
+    }
+
+    @Test public void testDeadline() throws Exception
+    {
+        Index indx = makeIndex(0, 2, 5);
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        Request rq = (Request) m.newSearchRequest("q1", "fox");
+        m.runSearchRequest(rq);
+        RM3 rm = new RM3(5, 3, indx);
+        String expected = toString(rm.expand(rq));
+
+        // a generous budget does not change the expansion
+        rq.setControl("prf.deadline", "60000");
+        assertEquals(expected, toString(rm.expand(rq)));
+        assertFalse(rq.hasControl("prf.degraded"));
+
+        // the deadline is checked before each document is decoded, and 1ms passes at each check: with a budget
+        // of 3ms, of which 0.6ms is reserved, the first 2 of the 3 feedback documents are decoded
+        String top2 = toString(new RM3(5, 2, indx).expand(rq));
+        rq.setContextObject(ExpansionDeadline.CLOCK_KEY, steppingClock(1000000));
+        rq.setControl("prf.deadline", "3");
+        assertEquals(top2, toString(rm.expand(rq)));
+        assertEquals(ExpansionDeadline.PARTIAL, rq.getControl("prf.degraded"));
+
+        // no document can be decoded if the deadline is nearly expired at the first check
+        rq = (Request) m.newSearchRequest("q2", "fox");
+        m.runSearchRequest(rq);
+        rq.setContextObject(ExpansionDeadline.CLOCK_KEY, steppingClock(1000000));
+        rq.setControl("prf.deadline", "1");
+        assertNull(rm.expand(rq));
+        assertEquals(ExpansionDeadline.UNEXPANDED, rq.getControl("prf.degraded"));
+
+        // the reserve is read when each deadline starts: without any, all 3 documents fit in a budget of 3ms
+        ApplicationSetup.setProperty("prf.deadline.reserve", "0");
+        rq = (Request) m.newSearchRequest("q3", "fox");
+        m.runSearchRequest(rq);
+        rq.setContextObject(ExpansionDeadline.CLOCK_KEY, steppingClock(1000000));
+        rq.setControl("prf.deadline", "3.5");
+        assertEquals(expected, toString(rm.expand(rq)));
+        assertFalse(rq.hasControl("prf.degraded"));
+    }
+
+    @Test public void testNoDeadlineIsNotDegraded() throws Exception
+    {
+        ExpansionDeadline.NONE.degrade(ExpansionDeadline.PARTIAL);
+        assertFalse(ExpansionDeadline.NONE.isDegraded());
+        assertFalse(ExpansionDeadline.NONE.isNearlyExpired());
+    }
+
+    /** a clock, in nanoseconds, which advances by the specified step each time it is read */
+    static LongSupplier steppingClock(long stepNanos)
+    {
+        AtomicLong now = new AtomicLong();
+        return () -> now.addAndGet(stepNanos);
+    }
+
+    @Test public void testDecodeThreadsRM3() throws Exception
+    {
+        // no cached document vectors, so that every expansion decodes its feedback documents
+        ApplicationSetup.setProperty("prf.vectorcache.bytes", "0");
+        Index indx = makeIndex();
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        RM3 rm = new RM3(10, 4, indx);
+        String[] queries = new String[]{"fox", "lazy dog", "presence mind"};
+        String[][] expansions = new String[2][queries.length];
+        int[] threads = new int[]{0, 4};
+        for (int t = 0; t < threads.length; t++)
+        {
+            ApplicationSetup.setProperty("prf.decode.threads", String.valueOf(threads[t]));
+            DocumentVectorCache.resetDecodingPool();
+            assertEquals(threads[t] > 0, DocumentVectorCache.getDecodingPool() != null);
+            for (int i = 0; i < queries.length; i++)
+            {
+                Request rq = (Request) m.newSearchRequest("q" + i, queries[i]);
+                m.runSearchRequest(rq);
+                expansions[t][i] = toString(rm.expand(rq));
+            }
+        }
+        for (int i = 0; i < queries.length; i++)
+            assertEquals(expansions[0][i], expansions[1][i]);
+    }
+
+    static String toString(List<RM1.ExpansionTerm> terms)
+    {
+        StringBuilder s = new StringBuilder();
+        for (RM1.ExpansionTerm t : terms)
+            s.append(t.getText() + "^" + t.getWeight() + " ");
+        return s.toString();
+    }
+
+    @Test public void testPrefetchRM3() throws Exception
+    {
+        setProcesses("prefetch:FeedbackPrefetch,rm:RM3");
+        Index indx = makeIndex();
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        RM3 rm = new RM3(10, 3, indx);
+        String[] expansions = new String[2];
+        for (int i = 0; i < 2; i++)
+        {
+            // the rm control is not set, so the request is only matched, then expanded below
+            SearchRequest srq = m.newSearchRequest("q" + i, "lazy fox");
+            srq.setControl("prefetch", i == 0 ? "off" : "on");
+            // more documents than the feedback documents of the model are prefetched
+            srq.setControl("prf.prefetch.documents", "5");
+            m.runSearchRequest(srq);
+            Request rq = (Request) srq;
+            assertEquals(i == 1, FeedbackPrefetch.of(rq, indx) != null);
+            expansions[i] = toString(rm.expand(rq));
+            PrfMetrics metrics = (PrfMetrics) rq.getContextObject(PrfMetrics.CONTEXT_KEY);
+            assertEquals(i == 0 ? 0 : Math.min(3, rq.getResultSet().getResultSize()), metrics.getCount("prefetched"));
+            if (i == 1)
+                assertEquals(Math.min(3, rq.getResultSet().getResultSize()), FeedbackPrefetch.of(rq, indx).size());
+        }
+        assertEquals(expansions[0], expansions[1]);
+    }
+
+    @Test public void testPruneRM3() throws Exception
+    {
+        Index indx = makeIndex();
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        RM3 rm = new RM3(10, 3, indx);
+        Request rq = (Request) m.newSearchRequest("q1", "lazy fox");
+        m.runSearchRequest(rq);
+        List<RM1.ExpansionTerm> all = rm.expand(rq);
+        assertFalse(rq.hasControl("prf.pruned"));
+
+        rq = (Request) m.newSearchRequest("q2", "lazy fox");
+        rq.setControl("prf.prune.mass", "0.5");
+        m.runSearchRequest(rq);
+        List<RM1.ExpansionTerm> pruned = rm.expand(rq);
+        assertTrue(pruned.size() < all.size());
+        assertTrue(rq.getControl("prf.pruned").startsWith("mass="));
+        PrfMetrics metrics = (PrfMetrics) rq.getContextObject(PrfMetrics.CONTEXT_KEY);
+        assertEquals(all.size() - pruned.size(), metrics.getCount("prunedterms"));
+        assertTrue(metrics.getCount("postingssaved") > 0);
+
+        // the original query terms are kept, and the kept terms are not reweighted
+        List<String> kept = new ArrayList<>();
+        for (RM1.ExpansionTerm t : pruned)
+            kept.add(t.getText());
+        assertTrue(kept.contains("lazy"));
+        assertTrue(kept.contains("fox"));
+        for (RM1.ExpansionTerm t : all)
+            if (kept.contains(t.getText()))
+                assertEquals(t.getWeight(), pruned.get(kept.indexOf(t.getText())).getWeight(), 0d);
+    }
+
+    protected Request testModel(String clzName, String... controls) throws Exception
+    {
+        setProcesses("rm:" + clzName);
+        Index indx = makeIndex(0, 1);
         Manager m = ManagerFactory._from_(indx.getIndexRef());
         SearchRequest srq = m.newSearchRequest("testQ", "fox");
         srq.setControl("rm", "on");
+        for (int i = 0; i < controls.length; i += 2)
+            srq.setControl(controls[i], controls[i+1]);
         m.runSearchRequest(srq);
         assertTrue( ((Request)srq).getMatchingQueryTerms().size() > 1);
         assertTrue( ((Request)srq).getMatchingQueryTerms().get(0).getValue().getTags().contains(BaseMatching.BASE_MATCHING_TAG));
+        return (Request) srq;
     }
 
 }
\ No newline at end of file
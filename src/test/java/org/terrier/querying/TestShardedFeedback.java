@@ -0,0 +1,165 @@
+package org.terrier.querying;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terrier.indexing.IndexTestUtils;
+import org.terrier.matching.MatchingQueryTerms;
+import org.terrier.matching.MatchingQueryTerms.MatchingTerm;
+import org.terrier.structures.Index;
+import org.terrier.structures.indexing.classical.BasicIndexer;
+import org.terrier.tests.ApplicationSetupBasedTest;
+import org.terrier.utility.ApplicationSetup;
+
+public class TestShardedFeedback extends ApplicationSetupBasedTest
+{
+    static final String[] DOCNOS = TestFeedbackVectorStore.DOCNOS;
+    static final String[] DOCUMENTS = TestFeedbackVectorStore.DOCUMENTS;
+
+    // the number of feedback documents of AxiomaticQE, set by testAxiomaticQEMatchesSingleIndex
+    int previousExpansionDocuments;
+
+    @Before public void saveExpansionDocuments()
+    {
+        previousExpansionDocuments = ApplicationSetup.EXPANSION_DOCUMENTS;
+    }
+
+    @After public void restoreExpansionDocuments()
+    {
+        ApplicationSetup.EXPANSION_DOCUMENTS = previousExpansionDocuments;
+    }
+
+    protected ShardedFeedback makeShards() throws Exception
+    {
+        Index shard0 = IndexTestUtils.makeIndex(Arrays.copyOfRange(DOCNOS, 0, 4), Arrays.copyOfRange(DOCUMENTS, 0, 4),
+            new BasicIndexer(ApplicationSetup.TERRIER_INDEX_PATH, "shard0"));
+        Index shard1 = IndexTestUtils.makeIndex(Arrays.copyOfRange(DOCNOS, 4, 6), Arrays.copyOfRange(DOCUMENTS, 4, 6),
+            new BasicIndexer(ApplicationSetup.TERRIER_INDEX_PATH, "shard1"));
+        return ShardedFeedback.of(shard0, shard1);
+    }
+
+    static Map<String, Double> toMap(List<RM1.ExpansionTerm> terms)
+    {
+        Map<String, Double> rtr = new HashMap<>();
+        for (RM1.ExpansionTerm t : terms)
+            rtr.put(t.getText(), t.getWeight());
+        return rtr;
+    }
+
+    static Map<String, Double> toMap(MatchingQueryTerms mqt)
+    {
+        Map<String, Double> rtr = new HashMap<>();
+        for (MatchingTerm mt : mqt)
+            rtr.put(mt.getKey().toString(), mt.getValue().getWeight());
+        return rtr;
+    }
+
+    @Test public void testRM3MatchesSingleIndex() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        ApplicationSetup.setProperty("prf.mindf", "2");
+        ApplicationSetup.setProperty("prf.maxdp", "0.7");
+        Index indx = IndexTestUtils.makeIndex(DOCNOS, DOCUMENTS);
+        ShardedFeedback shards = makeShards();
+        assertEquals(indx.getCollectionStatistics().getNumberOfDocuments(), shards.getNumberOfDocuments());
+        assertEquals(0, shards.getShard(3));
+        assertEquals(1, shards.getShard(4));
+
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        // enough feedback terms to keep all candidates, so that ties are not broken differently
+        RM3 rm = new RM3(100, 3, indx);
+        for (String query : new String[]{"fox", "lazy dog", "presence"})
+        {
+            Request rq = (Request) m.newSearchRequest(query, query);
+            m.runSearchRequest(rq);
+            rm.setShards(null);
+            Map<String, Double> expected = toMap(rm.expand(rq));
+            rm.setShards(shards);
+            Map<String, Double> actual = toMap(rm.expand(rq));
+            assertEquals(expected.keySet(), actual.keySet());
+            for (Map.Entry<String, Double> e : expected.entrySet())
+                assertEquals(e.getKey(), e.getValue(), actual.get(e.getKey()), 1e-6);
+        }
+    }
+
+    @Test public void testAxiomaticQEMatchesSingleIndex() throws Exception
+    {
+        // 2 feedback documents and (N-1)*R = 3 random documents, drawn with the seed of the qid
+        ApplicationSetup.setProperty("termpipelines", "");
+        ApplicationSetup.setProperty("expansion.documents", "2");
+        ApplicationSetup.EXPANSION_DOCUMENTS = 2;
+        ApplicationSetup.setProperty("ax.R", "3");
+        ApplicationSetup.setProperty("querying.processes",
+            "terrierql:TerrierQLParser,parsecontrols:TerrierQLToControls,parseql:TerrierQLToMatchingQueryTerms,matchopql:MatchingOpQLParser,applypipeline:ApplyTermPipeline,localmatching:LocalManager$ApplyLocalMatching,qe:AxiomaticQE,labels:org.terrier.learning.LabelDecorator,filters:LocalManager$PostFilterProcess");
+        Index indx = IndexTestUtils.makeIndex(DOCNOS, DOCUMENTS);
+        ShardedFeedback shards = makeShards();
+        ShardedFeedback previous = ShardedFeedback.configured;
+        boolean previousInitialised = ShardedFeedback.configuredInitialised;
+        try
+        {
+            for (String query : new String[]{"lazy fox", "dog", "presence mind"})
+            {
+                // each manager has its own AxiomaticQE, which uses the shards configured when it is created
+                ShardedFeedback.configured = null;
+                ShardedFeedback.configuredInitialised = true;
+                Map<String, Double> expected = toMap(expand(indx, "q7", query).getMatchingQueryTerms());
+                ShardedFeedback.configured = shards;
+                Map<String, Double> actual = toMap(expand(indx, "q7", query).getMatchingQueryTerms());
+                assertTrue(query, expected.size() > query.split(" ").length);
+                assertEquals(query, expected.keySet(), actual.keySet());
+                for (Map.Entry<String, Double> e : expected.entrySet())
+                    assertEquals(e.getKey(), e.getValue(), actual.get(e.getKey()), 1e-6);
+            }
+        }
+        finally
+        {
+            ShardedFeedback.configured = previous;
+            ShardedFeedback.configuredInitialised = previousInitialised;
+        }
+    }
+
+    protected Request expand(Index indx, String qid, String query) throws Exception
+    {
+        Manager m = ManagerFactory._from_(indx.getIndexRef());
+        SearchRequest srq = m.newSearchRequest(qid, query);
+        srq.setControl("qe", "on");
+        m.runSearchRequest(srq);
+        return (Request) srq;
+    }
+
+    @Test public void testCooccurrencesMatchSingleIndex() throws Exception
+    {
+        ApplicationSetup.setProperty("termpipelines", "");
+        Index indx = IndexTestUtils.makeIndex(DOCNOS, DOCUMENTS);
+        ShardedFeedback shards = makeShards();
+        int[] docids = new int[]{0, 2, 3, 4, 5};
+        String[] queryTerms = new String[]{"fox", "dog"};
+
+        CooccurrenceCounter expected = CooccurrenceCounter.create(new int[]{
+            indx.getLexicon().getLexiconEntry("fox").getTermId(), indx.getLexicon().getLexiconEntry("dog").getTermId()}, docids.length);
+        for (int docid : docids)
+            expected.addDocument(DocumentVector.read(indx, docid).getTermIds());
+        ShardedFeedback.Terms terms = new ShardedFeedback.Terms();
+        CooccurrenceCounter actual = shards.getCooccurrences(docids, queryTerms, terms);
+
+        assertEquals(expected.getNumberOfDocuments(), actual.getNumberOfDocuments());
+        assertEquals(expected.getNumberOfPairs(), actual.getNumberOfPairs());
+        assertEquals(expected.getNumberOfTerms(), actual.getNumberOfTerms());
+        for (int slot = 0; slot < expected.getNumberOfTerms(); slot++)
+        {
+            String term = indx.getLexicon().getLexiconEntry(expected.getTermId(slot)).getKey();
+            int actualSlot = actual.getSlot(terms.getTermId(term));
+            assertEquals(term, expected.getDocumentFrequency(slot), actual.getDocumentFrequency(actualSlot));
+            for (int q = 0; q < queryTerms.length; q++)
+                assertEquals(term, expected.getJointDocumentFrequency(q, slot), actual.getJointDocumentFrequency(q, actualSlot));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.terrier.querying;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestTopKSelector
+{
+    @Test public void testSameAsStableSort()
+    {
+        Random r = new Random(42);
+        for (int iteration = 0; iteration < 1000; iteration++)
+        {
+            final int n = r.nextInt(200);
+            final int k = r.nextInt(50);
+            // few distinct values, to exercise the tie-breaking
+            final float[] scores = new float[n];
+            for (int i = 0; i < n; i++)
+                scores[i] = r.nextInt(20) / 4f;
+            Integer[] expected = new Integer[n];
+            for (int i = 0; i < n; i++)
+                expected[i] = i;
+            Arrays.sort(expected, (i1, i2) -> Float.compare(scores[i2], scores[i1]));
+
+            TopKSelector topk = new TopKSelector(k);
+            for (int i = 0; i < n; i++)
+                topk.add(i, scores[i]);
+            final int size = topk.sort();
+            assertEquals(Math.min(k, n), size);
+            for (int i = 0; i < size; i++)
+            {
+                assertEquals((int) expected[i], topk.getId(i));
+                assertEquals(scores[expected[i]], topk.getScore(i), 0d);
+            }
+        }
+    }
+}